@@ -0,0 +1,480 @@
+package edu.stevens.cs549.ftpclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.ftpinterface.IServer;
+import edu.stevens.cs549.ftpinterface.IServerFactory;
+import edu.stevens.cs549.util.DataChannelSecurity;
+import edu.stevens.cs549.util.DigestMismatchException;
+import edu.stevens.cs549.util.TransferDigest;
+import edu.stevens.cs549.util.TransferEvent;
+import edu.stevens.cs549.util.TransferTuner;
+
+/**
+ * Programmatic, non-blocking client for one server session. Every operation
+ * returns a CompletableFuture.
+ * <p>
+ * Control operations (cd, pwd, dir) are sent to the server one at a time, in
+ * the order they were issued. Each transfer moves its data on its own
+ * dedicated data connection, so several can be in progress at once, up to
+ * maxInFlight. Further transfers wait their turn without holding up control
+ * operations issued after them, and start in the working directory they were
+ * issued in, so a get issued after a cd sees the new directory and one issued
+ * before it does not. Transfers of the same file name are run one after the
+ * other. Cancelling the future of a transfer closes its data connection, or
+ * if it has not started, means it never starts.
+ * 
+ * @author dduggan
+ */
+public class AsyncClient implements Closeable {
+
+	private static Logger log = Logger.getLogger(AsyncClient.class.getCanonicalName());
+
+	private final IServer svr;
+
+	private final InetAddress serverAddress;
+
+	private final Slots inFlight;
+
+	private final ExecutorService control = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "ftp-async-control");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final ExecutorService transfers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "ftp-async-transfer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/*
+	 * The latest transfer of each file name, so that the next one waits for it,
+	 * and every transfer not yet finished, so that close waits for them.
+	 */
+	private final Map<String, CompletableFuture<Long>> byName = new ConcurrentHashMap<String, CompletableFuture<Long>>();
+
+	private final Set<CompletableFuture<Long>> outstanding = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean closed = false;
+
+	/*
+	 * The working directory after the control operations issued so far; null
+	 * until it is needed. Used only on the control thread.
+	 */
+	private String cwd = null;
+
+	private String digestAlgorithm = null;
+
+	/*
+	 * Settings learned from this client's transfers with the server.
+	 */
+	private final TransferTuner tuner = new TransferTuner(1);
+
+	private final DataChannelSecurity security;
+
+	/*
+	 * tls is the client's TLS context, used if the server encrypts data
+	 * connections; null if the client has no truststore.
+	 */
+	public AsyncClient(IServer svr, InetAddress serverAddress, int maxInFlight, DataChannelSecurity tls)
+			throws IOException {
+		this.svr = svr;
+		this.serverAddress = serverAddress;
+		this.inFlight = new Slots(maxInFlight);
+		this.security = DataChannelSecurity.forServer(svr.dataSecure(), tls);
+	}
+
+	public AsyncClient(IServer svr, InetAddress serverAddress, int maxInFlight) throws IOException {
+		this(svr, serverAddress, maxInFlight, null);
+	}
+
+	/*
+	 * Open a new session on the server registered under the given name.
+	 */
+	public static AsyncClient connect(String host, int port, String name, int maxInFlight)
+			throws IOException, NotBoundException {
+		Registry registry = LocateRegistry.getRegistry(host, port);
+		IServerFactory factory = (IServerFactory) registry.lookup(name);
+		return new AsyncClient(factory.createServer(), InetAddress.getByName(host), maxInFlight);
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Control operations.
+	 */
+
+	private <T> CompletableFuture<T> submit(Callable<T> op) {
+		checkOpen();
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		control.execute(() -> {
+			if (result.isDone()) {
+				return;
+			}
+			try {
+				result.complete(op.call());
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/*
+	 * Change directory, returning the new working directory.
+	 */
+	public CompletableFuture<String> cd(String dir) {
+		return submit(() -> {
+			cwd = null;
+			svr.cd(dir);
+			cwd = svr.pwd();
+			return cwd;
+		});
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new RejectedExecutionException("Client closed");
+		}
+	}
+
+	/*
+	 * The working directory; called on the control thread.
+	 */
+	private String cwd() throws IOException {
+		if (cwd == null) {
+			cwd = svr.pwd();
+		}
+		return cwd;
+	}
+
+	/*
+	 * Change the working directory on the server to an absolute one, a
+	 * component at a time; called on the control thread.
+	 */
+	private void moveTo(String dir) throws IOException {
+		String current = svr.pwd();
+		while (!"/".equals(current)) {
+			svr.cd("..");
+			current = svr.pwd();
+		}
+		for (String part : dir.split("/")) {
+			if (!part.isEmpty()) {
+				svr.cd(part);
+			}
+		}
+	}
+
+	public CompletableFuture<String> pwd() {
+		return submit(() -> svr.pwd());
+	}
+
+	public CompletableFuture<String[]> dir() {
+		return submit(() -> svr.dir());
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Transfers.
+	 */
+
+	/*
+	 * The data connection of a transfer, closed if the transfer is cancelled.
+	 */
+	private static class DataConnection {
+		private Socket socket = null;
+		private boolean cancelled = false;
+
+		synchronized void attach(Socket s) throws IOException {
+			socket = s;
+			if (cancelled) {
+				socket.close();
+			}
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					;
+				}
+			}
+		}
+	}
+
+	private interface DataPhase {
+		long run(int port, TransferDigest digest, DataConnection conn) throws Exception;
+	}
+
+	private interface StartPhase {
+		int start() throws Exception;
+	}
+
+	/*
+	 * Slots for transfers in flight, handed out in order. A transfer waits for
+	 * one on a future rather than in a thread.
+	 */
+	private static class Slots {
+		private int free;
+		private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<CompletableFuture<Void>>();
+
+		Slots(int free) {
+			this.free = free;
+		}
+
+		synchronized CompletableFuture<Void> acquire() {
+			if (free > 0) {
+				free--;
+				return CompletableFuture.completedFuture(null);
+			}
+			CompletableFuture<Void> slot = new CompletableFuture<Void>();
+			waiting.add(slot);
+			return slot;
+		}
+
+		void release() {
+			CompletableFuture<Void> next;
+			synchronized (this) {
+				next = waiting.poll();
+				if (next == null) {
+					free++;
+					return;
+				}
+			}
+			if (!next.complete(null)) {
+				/*
+				 * Abandoned while waiting.
+				 */
+				release();
+			}
+		}
+	}
+
+	/*
+	 * Issued on the control thread, in order, which fixes the directory the
+	 * transfer runs in. It starts once the previous transfer of the same name
+	 * has finished and a slot is free, going back to the control thread to do
+	 * so.
+	 */
+	private CompletableFuture<Long> transfer(String file, StartPhase start, DataPhase data, Runnable onFailure) {
+		checkOpen();
+		CompletableFuture<Long> result = new CompletableFuture<Long>();
+		DataConnection conn = new DataConnection();
+		outstanding.add(result);
+		result.whenComplete((n, e) -> {
+			outstanding.remove(result);
+			byName.remove(file, result);
+			if (result.isCancelled()) {
+				conn.cancel();
+			}
+		});
+		CompletableFuture<Long> previous = byName.put(file, result);
+		control.execute(() -> {
+			if (result.isDone()) {
+				return;
+			}
+			String dir;
+			try {
+				dir = cwd();
+			} catch (IOException e) {
+				result.completeExceptionally(e);
+				return;
+			}
+			CompletableFuture<?> turn = previous == null ? CompletableFuture.completedFuture(null)
+					: previous.handle((n, e) -> null);
+			CompletableFuture<Void> slot = turn.thenCompose(v -> inFlight.acquire());
+			result.whenComplete((n, e) -> slot.cancel(false));
+			slot.thenRun(() -> {
+				if (result.isDone()) {
+					inFlight.release();
+				} else {
+					control.execute(() -> begin(file, dir, start, data, onFailure, conn, result));
+				}
+			});
+		});
+		return result;
+	}
+
+	/*
+	 * Start a transfer that has its slot; called on the control thread.
+	 */
+	private void begin(String file, String dir, StartPhase start, DataPhase data, Runnable onFailure,
+			DataConnection conn, CompletableFuture<Long> result) {
+		/*
+		 * Cancelled since it got its slot: do not take one on the server.
+		 */
+		if (result.isDone()) {
+			inFlight.release();
+			return;
+		}
+		int port;
+		TransferDigest digest;
+		try {
+			digest = newDigest();
+			port = inDirectory(dir, start);
+		} catch (Exception e) {
+			inFlight.release();
+			result.completeExceptionally(e);
+			return;
+		}
+		transfers.execute(() -> {
+			try {
+				long bytes = data.run(port, digest, conn);
+				String expected = svr.transferDigest(file);
+				String actual = digest.value();
+				if (!actual.equals(expected)) {
+					throw new DigestMismatchException(file, expected, actual);
+				}
+				result.complete(bytes);
+			} catch (Exception e) {
+				if (onFailure != null) {
+					onFailure.run();
+				}
+				result.completeExceptionally(e);
+			} finally {
+				inFlight.release();
+			}
+		});
+	}
+
+	/*
+	 * Start a transfer in the directory it was issued in, which control
+	 * operations issued since may have changed.
+	 */
+	private int inDirectory(String dir, StartPhase start) throws Exception {
+		String here = cwd();
+		if (dir.equals(here)) {
+			return start.start();
+		}
+		moveTo(dir);
+		try {
+			return start.start();
+		} finally {
+			moveTo(here);
+		}
+	}
+
+	private TransferDigest newDigest() throws IOException {
+		if (digestAlgorithm == null) {
+			digestAlgorithm = svr.digestAlgorithm();
+		}
+		return TransferDigest.create(digestAlgorithm);
+	}
+
+	/*
+	 * Download a file from the current directory on the server, returning the
+	 * number of bytes received. A failed download removes the local file.
+	 */
+	public CompletableFuture<Long> get(String file, Path local) {
+		return transfer(file, () -> svr.openGet(file), (port, digest, conn) -> {
+			TransferEvent event = new TransferEvent(Client.SIDE, "get", file, "DEDICATED");
+			event.begin();
+			TransferTuner.Transfer transfer = tuner.begin(serverAddress.getHostAddress());
+			try (Socket socket = security.secure(transfer.connect(new InetSocketAddress(serverAddress, port)),
+					serverAddress.getHostName())) {
+				conn.attach(socket);
+				try (InputStream in = socket.getInputStream();
+						OutputStream out = digest.wrap(new BufferedOutputStream(Files.newOutputStream(local)))) {
+					event.bytes = transfer.copy(in, out);
+				}
+				transfer.finish();
+				return event.bytes;
+			} finally {
+				event.commit();
+			}
+		}, () -> {
+			try {
+				Files.deleteIfExists(local);
+			} catch (IOException e) {
+				log.warning("Could not remove " + local + ": " + e);
+			}
+		});
+	}
+
+	/*
+	 * Upload a local file to the current directory on the server, returning the
+	 * number of bytes sent.
+	 */
+	public CompletableFuture<Long> put(Path local, String file) {
+		return transfer(file, () -> {
+			if (!Files.isReadable(local)) {
+				throw new IOException("Cannot read " + local);
+			}
+			return svr.openPut(file);
+		}, (port, digest, conn) -> {
+			TransferEvent event = new TransferEvent(Client.SIDE, "put", file, "DEDICATED");
+			event.begin();
+			TransferTuner.Transfer transfer = tuner.begin(serverAddress.getHostAddress());
+			try (Socket socket = security.secure(transfer.connect(new InetSocketAddress(serverAddress, port)),
+					serverAddress.getHostName())) {
+				conn.attach(socket);
+				try (InputStream in = digest.wrap(new BufferedInputStream(Files.newInputStream(local)));
+						OutputStream out = socket.getOutputStream()) {
+					event.bytes = transfer.copy(in, out);
+				}
+				transfer.finish();
+				return event.bytes;
+			} finally {
+				event.commit();
+			}
+		}, null);
+	}
+
+	/*
+	 * Stop accepting operations. Transfers already issued run to completion, and
+	 * then the session on the server is closed.
+	 */
+	public void close() {
+		closed = true;
+		/*
+		 * Queued behind the operations already issued, so that every transfer has
+		 * been issued; those waiting their turn still need the control thread to
+		 * start.
+		 */
+		control.execute(() -> {
+			CompletableFuture.allOf(outstanding.toArray(new CompletableFuture<?>[0])).handle((v, e) -> null)
+					.thenRun(() -> control.execute(() -> {
+						transfers.shutdown();
+						try {
+							transfers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+							svr.close();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (RemoteException e) {
+							log.info("Closing session: " + e);
+						} finally {
+							control.shutdown();
+						}
+					}));
+		});
+	}
+
+}
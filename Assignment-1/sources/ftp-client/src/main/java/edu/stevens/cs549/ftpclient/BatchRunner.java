@@ -0,0 +1,277 @@
+package edu.stevens.cs549.ftpclient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.ftpinterface.IServerFactory;
+import edu.stevens.cs549.ftpinterface.ServerBusyException;
+import edu.stevens.cs549.util.DataChannelSecurity;
+
+/**
+ * Non-interactive transfers: a script of jobs, one per line,
+ * 
+ * <pre>
+ *   get remote-path [local-path]
+ *   put local-path [remote-path]
+ * </pre>
+ * 
+ * is read into a queue that several worker sessions drain in parallel. Remote
+ * paths are relative to the server root and may name subdirectories. Blank
+ * lines and lines starting with # are ignored. Jobs are independent and run
+ * in no particular order. Each job is retried on failure, and a summary of
+ * throughput and failures is printed at the end.
+ * 
+ * @author dduggan
+ */
+class BatchRunner {
+
+	private static Logger log = Logger.getLogger(BatchRunner.class.getCanonicalName());
+
+	static final int DEFAULT_WORKERS = 4;
+
+	static final int DEFAULT_RETRIES = 2;
+
+	/*
+	 * Back-off before retrying a job, multiplied by the attempt number.
+	 */
+	static final long RETRY_DELAY_MILLIS = 500;
+
+	private static class Job {
+		final int line;
+		final boolean get;
+		final List<String> remoteDir;
+		final String remoteName;
+		final Path local;
+
+		Job(int line, boolean get, String remote, Path local) throws IOException {
+			this.line = line;
+			this.get = get;
+			this.local = local;
+			List<String> parts = new ArrayList<String>();
+			for (String p : remote.split("/")) {
+				if (!p.isEmpty()) {
+					parts.add(p);
+				}
+			}
+			if (parts.isEmpty()) {
+				throw new IOException("Line " + line + ": missing remote file name");
+			}
+			this.remoteName = parts.remove(parts.size() - 1);
+			this.remoteDir = parts;
+		}
+
+		public String toString() {
+			return (get ? "get " : "put ") + String.join("/", remoteDir) + (remoteDir.isEmpty() ? "" : "/")
+					+ remoteName;
+		}
+	}
+
+	/*
+	 * Marks the end of the queue for a worker.
+	 */
+	private static final Object END = new Object();
+
+	private final IServerFactory factory;
+
+	private final InetAddress serverAddress;
+
+	private final int workers;
+
+	private final int retries;
+
+	private final DataChannelSecurity tls;
+
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong succeeded = new AtomicLong();
+
+	private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+	BatchRunner(IServerFactory factory, InetAddress serverAddress, int workers, int retries, DataChannelSecurity tls) {
+		this.factory = factory;
+		this.serverAddress = serverAddress;
+		this.workers = workers;
+		this.retries = retries;
+		this.tls = tls;
+	}
+
+	private List<Job> parse(BufferedReader in) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		String line;
+		int n = 0;
+		while ((line = in.readLine()) != null) {
+			n++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] words = line.split("\\s+");
+			if (words.length < 2 || words.length > 3) {
+				throw new IOException("Line " + n + ": expected get or put with one or two paths: " + line);
+			} else if ("get".equals(words[0])) {
+				Path local = Paths.get(words.length == 3 ? words[2] : Paths.get(words[1]).getFileName().toString());
+				jobs.add(new Job(n, true, words[1], local));
+			} else if ("put".equals(words[0])) {
+				String remote = words.length == 3 ? words[2] : Paths.get(words[1]).getFileName().toString();
+				jobs.add(new Job(n, false, remote, Paths.get(words[1])));
+			} else {
+				throw new IOException("Line " + n + ": unknown operation " + words[0]);
+			}
+		}
+		return jobs;
+	}
+
+	/*
+	 * Run the jobs in the script, returning the number of jobs that failed.
+	 */
+	int run(BufferedReader script) throws IOException, InterruptedException {
+		List<Job> jobs = parse(script);
+		queue.addAll(jobs);
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		int n = Math.max(1, Math.min(workers, jobs.size()));
+		for (int i = 0; i < n; i++) {
+			queue.add(END);
+			Thread t = new Thread(this::work, "batch-worker-" + i);
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		/*
+		 * Jobs are only left over if no worker could open a session.
+		 */
+		Object next;
+		while ((next = queue.poll()) != null) {
+			if (next != END) {
+				Job job = (Job) next;
+				failures.add("line " + job.line + ": " + job + ": no session");
+			}
+		}
+		double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+		Client.msgln(String.format("BATCH: %d of %d jobs succeeded with %d workers.", succeeded.get(), jobs.size(), n));
+		Client.msgln(String.format("BATCH: %d bytes in %.2f s (%.2f MB/s).", bytes.get(), seconds,
+				bytes.get() / seconds / (1024 * 1024)));
+		for (String failure : failures) {
+			Client.msgln("BATCH: failed: " + failure);
+		}
+		return failures.size();
+	}
+
+	/*
+	 * A worker owns one session, and keeps track of its working directory so
+	 * that it only changes directory as far as the next job needs.
+	 */
+	private void work() {
+		AsyncClient session = null;
+		for (int attempt = 0; session == null; attempt++) {
+			try {
+				session = new AsyncClient(factory.createServer(), serverAddress, 1, tls);
+			} catch (ServerBusyException e) {
+				if (attempt == retries) {
+					log.severe("Could not create a session: " + e);
+					return;
+				}
+				try {
+					Thread.sleep(e.getRetryAfterMillis());
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			} catch (IOException e) {
+				log.severe("Could not create a session: " + e);
+				return;
+			}
+		}
+		List<String> cwd = new ArrayList<String>();
+		try {
+			while (true) {
+				Object next = queue.take();
+				if (next == END) {
+					return;
+				}
+				Job job = (Job) next;
+				for (int attempt = 0;; attempt++) {
+					try {
+						cwd = navigate(session, cwd, job.remoteDir);
+						long n = job.get ? session.get(job.remoteName, job.local).get()
+								: session.put(job.local, job.remoteName).get();
+						bytes.addAndGet(n);
+						succeeded.incrementAndGet();
+						break;
+					} catch (ExecutionException e) {
+						/*
+						 * The directory may not be where we thought, so start again from the root.
+						 */
+						cwd = null;
+						if (attempt == retries) {
+							failures.add("line " + job.line + ": " + job + ": " + e.getCause());
+							break;
+						}
+						log.info("Retrying " + job + ": " + e.getCause());
+						Thread.sleep(Math.max(RETRY_DELAY_MILLIS * (attempt + 1), retryAfter(e.getCause())));
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			session.close();
+		}
+	}
+
+	/*
+	 * The delay a busy server asked for, if that is why a job failed.
+	 */
+	private static long retryAfter(Throwable e) {
+		for (; e != null; e = e.getCause()) {
+			if (e instanceof ServerBusyException) {
+				return ((ServerBusyException) e).getRetryAfterMillis();
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Move the session from one directory to another, returning the new one. A
+	 * null current directory means it is unknown.
+	 */
+	private List<String> navigate(AsyncClient session, List<String> from, List<String> to)
+			throws ExecutionException, InterruptedException {
+		if (from == null) {
+			String[] pwd = session.pwd().get().split("/");
+			from = new ArrayList<String>();
+			for (String p : pwd) {
+				if (!p.isEmpty()) {
+					from.add(p);
+				}
+			}
+		}
+		int common = 0;
+		while (common < from.size() && common < to.size() && from.get(common).equals(to.get(common))) {
+			common++;
+		}
+		for (int i = from.size(); i > common; i--) {
+			session.cd("..").get();
+		}
+		for (String d : to.subList(common, to.size())) {
+			session.cd(d).get();
+		}
+		return new ArrayList<String>(to);
+	}
+
+}
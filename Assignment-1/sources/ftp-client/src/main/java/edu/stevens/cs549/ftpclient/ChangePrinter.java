@@ -0,0 +1,67 @@
+package edu.stevens.cs549.ftpclient;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.stevens.cs549.ftpinterface.ChangeEvent;
+import edu.stevens.cs549.ftpinterface.IChangeListener;
+
+/**
+ * The client's callback for change notifications, which prints each change as
+ * it arrives. One object serves all of a session's subscriptions; it is
+ * exported with the first and unexported when the session ends, since an
+ * exported object keeps the client running.
+ * 
+ * @author dduggan
+ */
+class ChangePrinter implements IChangeListener {
+
+	/*
+	 * The directory of each subscription, by id.
+	 */
+	private final Map<String, String> subscriptions = new ConcurrentHashMap<String, String>();
+
+	private boolean exported = false;
+
+	synchronized IChangeListener export() throws RemoteException {
+		if (!exported) {
+			UnicastRemoteObject.exportObject(this, 0);
+			exported = true;
+		}
+		return this;
+	}
+
+	synchronized void unexport() {
+		if (exported) {
+			try {
+				UnicastRemoteObject.unexportObject(this, true);
+			} catch (RemoteException e) {
+				;
+			}
+			exported = false;
+		}
+	}
+
+	void subscribed(String id, String dir) {
+		subscriptions.put(id, dir);
+	}
+
+	String unsubscribed(String id) {
+		return subscriptions.remove(id);
+	}
+
+	Map<String, String> getSubscriptions() {
+		return subscriptions;
+	}
+
+	public void changed(String subscription, String dir, ChangeEvent[] events) {
+		StringBuilder out = new StringBuilder();
+		for (ChangeEvent event : events) {
+			out.append("CHANGE ").append(dir).append(": ").append(event).append(System.lineSeparator());
+		}
+		System.out.print(out);
+	}
+
+}
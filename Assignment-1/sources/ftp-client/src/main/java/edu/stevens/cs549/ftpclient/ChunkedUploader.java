@@ -0,0 +1,157 @@
+package edu.stevens.cs549.ftpclient;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import edu.stevens.cs549.ftpinterface.ChunkedUpload;
+import edu.stevens.cs549.ftpinterface.IServer;
+import edu.stevens.cs549.util.DataChannelSecurity;
+import edu.stevens.cs549.util.TransferEvent;
+import edu.stevens.cs549.util.TransferTuner;
+
+/**
+ * Client side of a chunked upload: the file is split into chunks that are sent
+ * in parallel over several data connections. Chunks that fail are sent again
+ * in another round, until the server reports that none are missing.
+ * 
+ * @author dduggan
+ */
+class ChunkedUploader {
+
+	private static Logger log = Logger.getLogger(ChunkedUploader.class.getCanonicalName());
+
+	static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	static final int DEFAULT_STREAMS = 4;
+
+	static final int MAX_ROUNDS = 3;
+
+	private final IServer svr;
+
+	private final InetAddress serverAddress;
+
+	private final int chunkSize;
+
+	/*
+	 * Connections are made with the settings tuned for the server, and the
+	 * throughput for the number of streams is reported back.
+	 */
+	private final TransferTuner.Transfer transfer;
+
+	private final DataChannelSecurity security;
+
+	ChunkedUploader(IServer svr, InetAddress serverAddress, int chunkSize, TransferTuner.Transfer transfer,
+			DataChannelSecurity security) {
+		this.svr = svr;
+		this.serverAddress = serverAddress;
+		this.chunkSize = chunkSize;
+		this.transfer = transfer;
+		this.security = security;
+	}
+
+	/*
+	 * Upload a local file, returning the number of bytes sent.
+	 */
+	long upload(String file, int streams) throws IOException, InterruptedException {
+		Path path = Path.of(file);
+		long size = Files.size(path);
+		ChunkedUpload upload = svr.beginChunkedPut(path.getFileName().toString(), size, chunkSize);
+		TransferEvent event = new TransferEvent(Client.SIDE, "cput", file, "CHUNKED");
+		event.begin();
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			/*
+			 * A set, so that a chunk left over from a round whose connections all
+			 * failed is not sent twice when the server reports it missing.
+			 */
+			NavigableSet<Integer> chunks = new ConcurrentSkipListSet<Integer>();
+			for (int i = 0; i < upload.getChunks(); i++) {
+				chunks.add(i);
+			}
+			for (int round = 1;; round++) {
+				send(upload, channel, chunks, streams);
+				int[] missing = svr.commitChunkedPut(upload.getId());
+				if (missing.length == 0) {
+					event.bytes = size;
+					transfer.finish(Math.max(1, Math.min(streams, upload.getChunks())), size, System.nanoTime() - start);
+					return size;
+				} else if (round == MAX_ROUNDS) {
+					throw new IOException(missing.length + " chunks of " + file + " could not be uploaded.");
+				}
+				log.info("Resending " + missing.length + " chunks of " + file);
+				for (int chunk : missing) {
+					chunks.add(chunk);
+				}
+			}
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			svr.abortChunkedPut(upload.getId());
+			throw e;
+		} finally {
+			event.commit();
+		}
+	}
+
+	/*
+	 * Drain the set of chunks over parallel connections. A connection that
+	 * fails is abandoned, and its chunk is left for the next round.
+	 */
+	private void send(ChunkedUpload upload, FileChannel channel, NavigableSet<Integer> chunks, int streams)
+			throws InterruptedException {
+		int n = Math.max(1, Math.min(streams, chunks.size()));
+		ExecutorService workers = Executors.newFixedThreadPool(n);
+		for (int i = 0; i < n; i++) {
+			workers.execute(() -> {
+				try (Socket socket = security.secure(transfer.connect(new InetSocketAddress(serverAddress, upload.getPort())),
+						serverAddress.getHostName())) {
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					InputStream acks = socket.getInputStream();
+					byte[] data = new byte[upload.getChunkSize()];
+					CRC32C crc = new CRC32C();
+					Integer chunk;
+					while ((chunk = chunks.pollFirst()) != null) {
+						int length = upload.length(chunk);
+						ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+						long position = upload.offset(chunk);
+						while (buf.hasRemaining()) {
+							int r = channel.read(buf, position + buf.position());
+							if (r < 0) {
+								throw new IOException("File changed during upload.");
+							}
+						}
+						crc.reset();
+						crc.update(data, 0, length);
+						out.writeInt(chunk);
+						out.write(data, 0, length);
+						out.writeLong(crc.getValue());
+						out.flush();
+						if (acks.read() != ChunkedUpload.CHUNK_OK) {
+							log.warning("Server rejected chunk " + chunk);
+						}
+					}
+				} catch (IOException e) {
+					log.warning("Chunk connection failed: " + e);
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+	}
+
+}
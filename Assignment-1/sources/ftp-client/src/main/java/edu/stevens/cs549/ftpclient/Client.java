@@ -5,8 +5,24 @@
 
 package edu.stevens.cs549.ftpclient;
 
+import edu.stevens.cs549.ftpinterface.FileInfo;
+import edu.stevens.cs549.ftpinterface.FileStatus;
+import edu.stevens.cs549.ftpinterface.FindPage;
+import edu.stevens.cs549.ftpinterface.FindQuery;
 import edu.stevens.cs549.ftpinterface.IServer;
 import edu.stevens.cs549.ftpinterface.IServerFactory;
+import edu.stevens.cs549.ftpinterface.ServerBusyException;
+import edu.stevens.cs549.ftpinterface.TransferPriority;
+import edu.stevens.cs549.util.AcceptEvent;
+import edu.stevens.cs549.util.DataChannelSecurity;
+import edu.stevens.cs549.util.DigestMismatchException;
+import edu.stevens.cs549.util.RpcEvent;
+import edu.stevens.cs549.util.RpcSocketFactory;
+import edu.stevens.cs549.util.Streams;
+import edu.stevens.cs549.util.Tar;
+import edu.stevens.cs549.util.TransferDigest;
+import edu.stevens.cs549.util.TransferEvent;
+import edu.stevens.cs549.util.TransferTuner;
 
 import java.io.*;
 import java.net.InetAddress;
@@ -15,13 +31,24 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.rmi.registry.LocateRegistry;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 /**
  * 
@@ -35,6 +62,14 @@ public class Client {
 
 	private static int BACKLOG_LENGTH = 5;
 
+	static final String SIDE = "client";
+
+	/*
+	 * Number of times a transfer is attempted before a checksum mismatch is
+	 * reported as an error.
+	 */
+	static final int MAX_TRANSFER_ATTEMPTS = 3;
+
 	private static String clientPropsFile = "/client.properties";
 
 	protected String clientIp;
@@ -43,6 +78,46 @@ public class Client {
 
 	protected int serverPort;
 
+	protected String serverName;
+
+	/*
+	 * Directory for the download cache; no caching if empty.
+	 */
+	protected String cacheDir;
+
+	/*
+	 * Batch mode: a script of transfers ("-" for standard input), run by a pool
+	 * of worker sessions instead of the interactive loop.
+	 */
+	protected String batchScript = null;
+
+	protected int batchWorkers = BatchRunner.DEFAULT_WORKERS;
+
+	protected int batchRetries = BatchRunner.DEFAULT_RETRIES;
+
+	/*
+	 * Replicas of the server for mget, as a comma-separated list of host:port
+	 * registry addresses, each exporting the same server name.
+	 */
+	protected String replicas;
+
+	/*
+	 * Truststore for servers that encrypt data connections, and the TLS context
+	 * made from it, shared by all sessions so that TLS sessions are resumed;
+	 * null if there is no truststore.
+	 */
+	protected String truststore;
+
+	protected String truststorePassword;
+
+	private DataChannelSecurity tls = null;
+
+	/*
+	 * Settings learned from transfers, by server host, kept for the life of the
+	 * client.
+	 */
+	private final TransferTuner tuner = new TransferTuner(ChunkedUploader.DEFAULT_STREAMS);
+
 	private static Logger log = Logger.getLogger(Client.class.getCanonicalName());
 
 	public void severe(String s) {
@@ -87,6 +162,18 @@ public class Client {
 				serverAddr = opts.get("serverAddr");
 			else if ("serverPort".equals(k))
 				serverPort = Integer.parseInt(opts.get("serverPort"));
+			else if ("cache".equals(k))
+				cacheDir = opts.get("cache");
+			else if ("batch".equals(k))
+				batchScript = opts.get("batch");
+			else if ("workers".equals(k))
+				batchWorkers = Integer.parseInt(opts.get("workers"));
+			else if ("retries".equals(k))
+				batchRetries = Integer.parseInt(opts.get("retries"));
+			else if ("replicas".equals(k))
+				replicas = opts.get("replicas");
+			else if ("truststore".equals(k))
+				truststore = opts.get("truststore");
 			else
 				severe("Unrecognized option: --" + k);
 		}
@@ -112,7 +199,11 @@ public class Client {
 			in.close();
 			clientIp = (String) props.get("client.ip");
 			serverAddr = (String) props.get("server.ip");
-			String serverName = (String) props.get("server.name");
+			serverName = (String) props.get("server.name");
+			cacheDir = props.getProperty("client.cache", "");
+			replicas = props.getProperty("client.replicas", "");
+			truststore = props.getProperty("client.truststore", "");
+			truststorePassword = props.getProperty("client.truststorePassword", "");
 			serverPort = Integer.parseInt((String) props.get("server.port"));
 
 			/*
@@ -124,13 +215,40 @@ public class Client {
 			log.info("Server addr = " + serverAddr);
 			log.info("Server port = " + serverPort);
 			log.info("Server name = " + serverName);
+			log.info("Cache dir = " + cacheDir);
+			log.info("Replicas = " + replicas);
+			log.info("Truststore = " + truststore);
+
+			/*
+			 * Control connections, including to the registry, use the client's socket
+			 * settings rather than the defaults or those the server advertises.
+			 */
+			RpcSocketFactory rpcSockets = RpcSocketFactory.fromProperties(props, "client.");
+			RpcSocketFactory.install(rpcSockets);
+			log.info("RPC sockets = " + rpcSockets);
+
+			if (truststore != null && !truststore.isEmpty()) {
+				tls = DataChannelSecurity.client(truststore, truststorePassword.toCharArray(), null, null);
+			}
 
 			/*
 			 * TODO: Get a server proxy.
 			 */
 			Registry registry = LocateRegistry.getRegistry(serverAddr, serverPort);
 			IServerFactory iServerFactory = (IServerFactory) registry.lookup(serverName);
-			IServer server = iServerFactory.createServer();
+
+			if (batchScript != null) {
+				BufferedReader script = "-".equals(batchScript)
+						? new BufferedReader(new InputStreamReader(System.in))
+						: new BufferedReader(new FileReader(batchScript));
+				BatchRunner batch = new BatchRunner(iServerFactory, InetAddress.getByName(serverAddr), batchWorkers,
+						batchRetries, tls);
+				int failed = batch.run(script);
+				script.close();
+				System.exit(failed == 0 ? 0 : 1);
+			}
+
+			IServer server = createSession(iServerFactory);
 
 
 			/*
@@ -150,6 +268,24 @@ public class Client {
 
 	}
 
+	/*
+	 * Open a session, backing off as the server suggests while it is at its
+	 * session limit.
+	 */
+	static IServer createSession(IServerFactory factory) throws IOException, InterruptedException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return factory.createServer();
+			} catch (ServerBusyException e) {
+				if (attempt == MAX_TRANSFER_ATTEMPTS) {
+					throw e;
+				}
+				msgln(e.getMessage() + ".");
+				Thread.sleep(e.getRetryAfterMillis());
+			}
+		}
+	}
+
 	static void msg(String m) {
 		System.out.print(m);
 	}
@@ -184,6 +320,18 @@ public class Client {
 						d.get(inputs);
 					else if ("put".equals(cmd))
 						d.put(inputs);
+					else if ("append".equals(cmd))
+						d.append(inputs);
+					else if ("cput".equals(cmd))
+						d.cput(inputs);
+					else if ("mget".equals(cmd))
+						d.mget(inputs);
+					else if ("fxp".equals(cmd))
+						d.fxp(inputs);
+					else if ("getarchive".equals(cmd))
+						d.getarchive(inputs);
+					else if ("pput".equals(cmd))
+						d.pput(inputs);
 					else if ("cd".equals(cmd))
 						d.cd(inputs);
 					else if ("pwd".equals(cmd))
@@ -192,14 +340,28 @@ public class Client {
 						d.dir(inputs);
 					else if ("ldir".equals(cmd))
 						d.ldir(inputs);
+					else if ("find".equals(cmd))
+						d.find(inputs);
+					else if ("checksum".equals(cmd))
+						d.checksum(inputs);
+					else if ("priority".equals(cmd))
+						d.priority(inputs);
+					else if ("unfollow".equals(cmd))
+						d.unfollow(inputs);
+					else if ("watch".equals(cmd))
+						d.watch(inputs);
+					else if ("unwatch".equals(cmd))
+						d.unwatch(inputs);
 					else if ("port".equals(cmd))
 						d.port(inputs);
 					else if ("pasv".equals(cmd))
 						d.pasv(inputs);
 					else if ("help".equals(cmd))
 						d.help(inputs);
-					else if ("quit".equals(cmd))
+					else if ("quit".equals(cmd)) {
+						d.close();
 						return;
+					}
 					else
 						msgln("Bad input.  Type \"help\" for more information.");
 				}
@@ -217,20 +379,54 @@ public class Client {
 
 		private InetAddress serverAddress;
 
-		Dispatch(IServer s, InetAddress sa) {
+		/*
+		 * The key for the server's tuned transfer settings.
+		 */
+		private String peer;
+
+		/*
+		 * Data connections are encrypted if the server requires it.
+		 */
+		private DataChannelSecurity security;
+
+		Dispatch(IServer s, InetAddress sa) throws IOException {
 			svr = s;
 			serverAddress = sa;
+			peer = sa.getHostAddress();
+			security = DataChannelSecurity.forServer(rpc("dataSecure", null, () -> svr.dataSecure()), tls);
+			if (cacheDir != null && !cacheDir.isEmpty()) {
+				cache = new DownloadCache(Paths.get(cacheDir));
+			}
 		}
 
 		public void help(String[] inputs) {
 			if (inputs.length == 1) {
 				msgln("Commands are:");
 				msgln("  get filename: download file from server");
+				msgln("  get -f filename: download file and keep appending what is added to it");
+				msgln("  unfollow [filename]: stop following a file, or list those followed");
 				msgln("  put filename: upload file to server");
+				msgln("  append filename: upload only what has been added to file since the server's copy");
+				msgln("  cput filename [streams]: upload file in chunks over parallel connections");
+				msgln("    (by default, as many as earlier uploads found best)");
+				msgln("  mget filename: download file in blocks from the server and its replicas");
+				msgln("  fxp filename host[:port] [dir]: copy file straight from server to another server");
+				msgln("    (into dir there, or its working directory)");
+				msgln("  getarchive dir [-z] [-x]: download directory as a tar archive (-z gzipped),");
+				msgln("    or unpack it as it arrives (-x)");
+				msgln("  pput file|dir ...: upload many small files at once as one packed stream");
 				msgln("  pwd: current working directory on server");
 				msgln("  cd filename: change working directory on server");
 				msgln("  dir: list contents of working directory on server");
 				msgln("  ldir: list contents of current directory on client");
+				msgln("  find glob [-min bytes] [-max bytes] [-newer minutes] [-older minutes]:");
+				msgln("    search the tree below the working directory on server");
+				msgln("    (a glob with a / is matched against the path, e.g. src/**.java)");
+				msgln("  checksum filename: compare server file with local copy");
+				msgln("  priority interactive|normal|bulk|auto: scheduling class for transfers");
+				msgln("  watch [dir]: print changes to a directory on server as they happen");
+				msgln("    (the working directory by default)");
+				msgln("  unwatch [id]: stop printing changes for a subscription, or list them");
 				msgln("  port: server should transfer files in active mode");
 				msgln("  pasv: server should transfer files in passive mode");
 				msgln("  quit: exit the client");
@@ -256,7 +452,9 @@ public class Client {
 		private int makeActive() throws IOException {
 			InetAddress myAddr = InetAddress.getByName(clientIp);
 			log.info("Client binding to server socket at address " + myAddr);
-			dataChan = new ServerSocket(0, BACKLOG_LENGTH, myAddr);
+			dataChan = security.newServerSocket(serverAddress.getHostName());
+			TransferTuner.configure(dataChan, tuner.settings(peer));
+			dataChan.bind(new InetSocketAddress(myAddr, 0), BACKLOG_LENGTH);
 			mode = Mode.ACTIVE;
 			/*
 			 * Note: this only works (for the server) if the client is not behind a NAT.
@@ -280,108 +478,213 @@ public class Client {
 		 * The client needs to create threads if running in active mode.
 		 */
 
-		private class GetThread implements Runnable {
+		/*
+		 * An accept on the client data socket that can be abandoned if the server
+		 * fails to start the transfer: cancel() connects to the socket itself so that
+		 * the thread does not later steal the connection for another transfer.
+		 */
+		private abstract class ActiveTransfer implements Runnable {
+			protected ServerSocket dataChan = null;
+			protected String file;
+			protected IOException error = null;
+			protected TransferTuner.Transfer transfer;
+			private volatile boolean cancelled = false;
+
+			protected ActiveTransfer(ServerSocket s, String f) {
+				dataChan = s;
+				file = f;
+				transfer = tuner.begin(peer);
+			}
+
+			protected Socket accept() throws IOException {
+				log.info("Client accepting conn request at port " + dataChan.getLocalPort());
+				AcceptEvent accept = new AcceptEvent(SIDE, dataChan.getLocalPort());
+				accept.begin();
+				Socket socket = dataChan.accept();
+				accept.commit();
+				transfer.accepted(socket);
+				return socket;
+			}
+
+			protected boolean isCancelled() {
+				return cancelled;
+			}
+
+			void cancel() {
+				cancelled = true;
+				try {
+					new Socket(dataChan.getInetAddress(), dataChan.getLocalPort()).close();
+				} catch (IOException e) {
+					log.warning("Could not release data channel: " + e);
+				}
+			}
+		}
+
+		private class GetThread extends ActiveTransfer {
 			/*
 			 * This client-side thread runs when the server is active mode and a file
 			 * download is initiated. This thread listens for a connection request from the
 			 * server. The client-side server socket (...) should have been created when the
 			 * port command put the server in active mode.
 			 */
-			private ServerSocket dataChan = null;
 			private OutputStream out = null;
 
-			public GetThread(ServerSocket s, OutputStream o) {
-				dataChan = s;
+			public GetThread(ServerSocket s, OutputStream o, String f) {
+				super(s, f);
 				out = o;
 			}
 
 			public void run() {
 				try {
-					log.info("Client accepting conn request at port " + dataChan.getLocalPort());
-					log.info("before dataChan.accept()");
-					Socket socket = dataChan.accept();
+					Socket socket = accept();
+					if (isCancelled()) {
+						out.close();
+						socket.close();
+						return;
+					}
 					DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
 
+					TransferEvent event = new TransferEvent(SIDE, "get", file, Mode.ACTIVE.name());
+					event.begin();
 					try {
 						log.info("Received connection request from server on client");
-						/*
-						 * TODO: Complete this thread.
-						 */
-
-						byte[] data;
-
-						// Reading 4K blocks at a time.
-						while (true) {
-							data = dataInputStream.readNBytes(4096);
-
-							if (data.length == 0) {
-								break;
-							}
-							out.write(data);
-						}
+						event.bytes = transfer.copy(dataInputStream, out);
 					} finally {
 						out.flush();
 						out.close();
 						dataInputStream.close();
 						log.info("Closed data input stream");
 						socket.close();
+						event.commit();
 					}
+					transfer.finish();
 				} catch (IOException e) {
-					msg("Exception: " + e);
-					e.printStackTrace();
+					error = e;
+					try {
+						out.close();
+					} catch (IOException ignored) {
+					}
 				}
 			}
 		}
 
-		private class PutThread implements Runnable {
+		private class PutThread extends ActiveTransfer {
 			/*
 			 * This client-side thread runs when the server is active mode and a file
-			 * download is initiated. This thread listens for a connection request from the
+			 * upload is initiated. This thread listens for a connection request from the
 			 * server. The client-side server socket (...) should have been created when the
 			 * port command put the server in active mode.
 			 */
-			private ServerSocket dataChan = null;
 			private InputStream in = null;
 
-			public PutThread(ServerSocket s, InputStream i) {
-				dataChan = s;
+			public PutThread(ServerSocket s, InputStream i, String f) {
+				super(s, f);
 				in = i;
 			}
 
 			public void run() {
 				try {
-					log.info("Client accepting conn request at port " + dataChan.getLocalPort());
-					Socket socket = dataChan.accept();
+					Socket socket = accept();
+					if (isCancelled()) {
+						in.close();
+						socket.close();
+						return;
+					}
 					OutputStream outputStream = socket.getOutputStream();
 
+					TransferEvent event = new TransferEvent(SIDE, "put", file, Mode.ACTIVE.name());
+					event.begin();
 					try {
 						log.info("Received connection request from server on client");
-						/*
-						 * TODO: Complete this thread.
-						 */
-						byte[] data;
-
-						while (true) {
-							data = in.readNBytes(4096);
-
-							if (data.length == 0) {
-								break;
-							}
-							outputStream.write(data);
-						}
+						event.bytes = transfer.copy(in, outputStream);
 					} finally {
 						outputStream.flush();
 						outputStream.close();
 						in.close();
 						socket.close();
+						event.commit();
 					}
+					transfer.finish();
 				} catch (IOException e) {
-					msg("Exception: " + e);
-					e.printStackTrace();
+					error = e;
+					try {
+						in.close();
+					} catch (IOException ignored) {
+					}
 				}
 			}
 		}
 
+		/*
+		 * Run an active-mode transfer: the thread accepts the server's connection
+		 * while the request to the server is in progress.
+		 */
+		private void runActive(ActiveTransfer transfer, String method) throws IOException, InterruptedException {
+			if ("get".equals(method)) {
+				runActive(transfer, method, () -> svr.get(transfer.file));
+			} else {
+				runActive(transfer, method, () -> svr.put(transfer.file));
+			}
+		}
+
+		/*
+		 * The call on the server that starts an active-mode transfer.
+		 */
+		private interface ServerCall {
+			void call() throws IOException;
+		}
+
+		private void runActive(ActiveTransfer transfer, String method, ServerCall call)
+				throws IOException, InterruptedException {
+			Thread thread = new Thread(transfer);
+			thread.start();
+			try {
+				rpc(method, () -> transfer.file, () -> call.call());
+			} catch (IOException e) {
+				transfer.cancel();
+				throw e;
+			}
+			thread.join();
+			if (transfer.error != null) {
+				throw transfer.error;
+			}
+		}
+
+		/*
+		 * JFR instrumentation of calls on the server proxy. The event duration
+		 * includes the RMI round trip.
+		 */
+		private <T, E extends Exception> T rpc(String method, Supplier<String> argument, RpcEvent.Call<T, E> call) throws E {
+			return RpcEvent.record(SIDE, method, argument, call);
+		}
+
+		private <E extends Exception> void rpc(String method, Supplier<String> argument, RpcEvent.Action<E> action) throws E {
+			RpcEvent.record(SIDE, method, argument, action);
+		}
+
+		/*
+		 * *****************************************************************************
+		 * Integrity checking. Both sides digest the data inline as it is transferred,
+		 * and the digests are compared once the transfer has finished.
+		 */
+
+		private String digestAlgorithm = null;
+
+		private TransferDigest newDigest() throws RemoteException {
+			if (digestAlgorithm == null) {
+				digestAlgorithm = rpc("digestAlgorithm", null, () -> svr.digestAlgorithm());
+			}
+			return TransferDigest.create(digestAlgorithm);
+		}
+
+		private void verify(String file, TransferDigest digest) throws IOException {
+			String expected = rpc("transferDigest", () -> file, () -> svr.transferDigest(file));
+			String actual = digest.value();
+			if (!actual.equals(expected)) {
+				throw new DigestMismatchException(file, expected, actual);
+			}
+		}
+
 		/**
 		 * Kashi Vishwanath Bondugula
 		 * CWID: 20012715
@@ -389,61 +692,246 @@ public class Client {
 		 * */
 		
 		public void get(String[] inputs) {
-			if (inputs.length == 2) {
+			if (inputs.length == 3 && "-f".equals(inputs[1])) {
+				try {
+					follow(inputs[2]);
+				} catch (Exception e) {
+					err(e);
+				}
+			} else if (inputs.length == 2) {
 				try {
-					if (mode == Mode.PASSIVE) {
-						/*
-						 * Get server ready for transfer.
-						 */
-						svr.get(inputs[1]);
-						/*
-						 * Open the output local file and connect to the server socket.
-						 */
-						OutputStream out = new BufferedOutputStream(new FileOutputStream(inputs[1]));
-						log.info("Client connecting to server at address " + serverAddress);
-						Socket socket = new Socket(serverAddress, serverSocket.getPort());
+					if (mode == Mode.NONE) {
+						msgln("GET: No mode set--use port or pasv command.");
+						return;
+					}
+					for (int attempt = 1;; attempt++) {
 						try {
-							/*
-							 * TODO: download the file through the socket connection
-							 */
+							TransferDigest digest = download(inputs[1]);
+							if (digest == null) {
+								msgln("GET: " + inputs[1] + " unchanged, copied from cache.");
+								break;
+							}
+							verify(inputs[1], digest);
+							if (cache != null) {
+								cache.store(cacheServer(), remotePath(inputs[1]), received, Paths.get(inputs[1]));
+							}
+							break;
+						} catch (DigestMismatchException e) {
+							if (attempt == MAX_TRANSFER_ATTEMPTS) {
+								throw e;
+							}
+							msgln("GET: " + e.getMessage() + ", retrying.");
+						} catch (ServerBusyException e) {
+							if (attempt == MAX_TRANSFER_ATTEMPTS) {
+								throw e;
+							}
+							msgln("GET: " + e.getMessage() + ".");
+							Thread.sleep(e.getRetryAfterMillis());
+						}
+					}
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
+		/*
+		 * *****************************************************************************
+		 * Follow mode: the local copy of a file grows as the file does on the
+		 * server, on a dedicated connection with a thread of its own, until the
+		 * follow is stopped or the server ends it.
+		 */
+		private final Map<String, Socket> follows = new ConcurrentHashMap<String, Socket>();
+
+		private void follow(String file) throws IOException {
+			if (follows.containsKey(file)) {
+				msgln("FOLLOW: already following " + file + ".");
+				return;
+			}
+			int port = rpc("openFollow", () -> file, () -> svr.openFollow(file, 0));
+			Socket socket = security.secure(new Socket(serverAddress, port), serverAddress.getHostName());
+			follows.put(file, socket);
+			Thread reader = new Thread(() -> {
+				long bytes = 0;
+				try (socket; OutputStream out = new FileOutputStream(file)) {
+					InputStream in = socket.getInputStream();
+					byte[] buffer = new byte[Streams.BUFFER_SIZE];
+					int n;
+					while ((n = in.read(buffer)) >= 0) {
+						out.write(buffer, 0, n);
+						bytes += n;
+					}
+				} catch (IOException e) {
+					if (follows.containsKey(file)) {
+						log.info("Following " + file + ": " + e);
+					}
+				}
+				if (follows.remove(file, socket)) {
+					msgln("FOLLOW: " + file + " ended by the server after " + bytes + " bytes.");
+				}
+			}, "follow");
+			reader.setDaemon(true);
+			reader.start();
+			msgln("FOLLOW: following " + file + "; unfollow " + file + " to stop.");
+		}
 
-							DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
-							byte[] data;
+		public void unfollow(String[] inputs) {
+			if (inputs.length == 1) {
+				for (String file : follows.keySet()) {
+					msgln(file);
+				}
+			} else if (inputs.length == 2) {
+				if (stopFollowing(inputs[1])) {
+					msgln("UNFOLLOW: stopped following " + inputs[1] + ".");
+				} else {
+					msgln("UNFOLLOW: not following " + inputs[1] + ".");
+				}
+			}
+		}
 
-							// Reading 4K blocks at a time.
-							while (true) {
-								data = dataInputStream.readNBytes(4096);
+		/*
+		 * Closing the connection tells the server to stop.
+		 */
+		private boolean stopFollowing(String file) {
+			Socket socket = follows.remove(file);
+			if (socket == null) {
+				return false;
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				;
+			}
+			return true;
+		}
 
-								if (data.length == 0) {
-									break;
-								}
-								out.write(data);
+		/*
+		 * *****************************************************************************
+		 * Download cache. With a cache, downloads use a conditional get, and the
+		 * server only sends the file if the cached copy is out of date.
+		 */
+
+		private DownloadCache cache = null;
+
+		/*
+		 * Working directory on the server, for cache keys; reset by cd.
+		 */
+		private String remoteCwd = null;
+
+		private String cacheServer() {
+			return serverAddr + ":" + serverPort + "/" + serverName;
+		}
+
+		private String remotePath(String file) throws RemoteException {
+			if (remoteCwd == null) {
+				remoteCwd = rpc("pwd", null, () -> svr.pwd());
+			}
+			return remoteCwd + file;
+		}
+
+		/*
+		 * The version of the file received by the last download, for the cache.
+		 */
+		private FileInfo received = null;
+
+		/*
+		 * One attempt at downloading a file, returning the digest of what was received,
+		 * or null if the file was unchanged and has been copied from the cache.
+		 */
+		private TransferDigest download(String file) throws IOException, InterruptedException {
+			TransferDigest digest = newDigest();
+			received = null;
+			if (cache != null) {
+				FileInfo cached = cache.lookup(cacheServer(), remotePath(file));
+				received = rpc("getIfChanged", () -> file, () -> svr.getIfChanged(file, cached));
+				if (received.sameVersion(cached)) {
+					log.info("Copying unchanged " + file + " from the cache");
+					cache.restore(cacheServer(), remotePath(file), Paths.get(file));
+					return null;
+				}
+			}
+			if (mode == Mode.PASSIVE) {
+				/*
+				 * Get server ready for transfer.
+				 */
+				if (cache == null) {
+					rpc("get", () -> file, () -> svr.get(file));
+				}
+				/*
+				 * Open the output local file and connect to the server socket.
+				 */
+				OutputStream out = digest.wrap(Streams.writeBehind(new FileOutputStream(file)));
+				log.info("Client connecting to server at address " + serverAddress);
+				TransferTuner.Transfer transfer = tuner.begin(peer);
+				Socket socket;
+				try {
+					socket = security.secure(transfer.connect(new InetSocketAddress(serverAddress, serverSocket.getPort())),
+							serverAddress.getHostName());
+				} catch (IOException e) {
+					out.close();
+					throw e;
+				}
+				TransferEvent event = new TransferEvent(SIDE, "get", file, mode.name());
+				event.begin();
+				try {
+					DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+					event.bytes = transfer.copy(dataInputStream, out);
+					dataInputStream.close();
+				} finally {
+					out.flush();
+					out.close();
+					socket.close();
+					event.commit();
+				}
+				transfer.finish();
+			} else {
+				/*
+				 * Open the output local file and get the client ready for the transfer,
+				 * then start the transfer on the server.
+				 */
+				OutputStream out = digest.wrap(Streams.writeBehind(new FileOutputStream(file)));
+				log.info("calling get thread in active mode");
+				GetThread getThread = new GetThread(dataChan, out, file);
+				if (cache == null) {
+					runActive(getThread, "get");
+				} else {
+					/*
+					 * The conditional get has already started the transfer.
+					 */
+					Thread thread = new Thread(getThread);
+					thread.start();
+					thread.join();
+					if (getThread.error != null) {
+						throw getThread.error;
+					}
+				}
+			}
+			return digest;
+		}
+
+		public void put(String[] inputs) {
+			if (inputs.length == 2) {
+				try {
+					if (mode == Mode.NONE) {
+						msgln("PUT: No mode set--use port or pasv command.");
+						return;
+					}
+					for (int attempt = 1;; attempt++) {
+						try {
+							verify(inputs[1], upload(inputs[1]));
+							break;
+						} catch (DigestMismatchException e) {
+							if (attempt == MAX_TRANSFER_ATTEMPTS) {
+								throw e;
 							}
-							dataInputStream.close();
-							/*
-							 * End TODO
-							 */
-							
-						} finally {
-							out.flush();
-							out.close();
-							socket.close();
+							msgln("PUT: " + e.getMessage() + ", retrying.");
+						} catch (ServerBusyException e) {
+							if (attempt == MAX_TRANSFER_ATTEMPTS) {
+								throw e;
+							}
+							msgln("PUT: " + e.getMessage() + ".");
+							Thread.sleep(e.getRetryAfterMillis());
 						}
-
-					} else if (mode == Mode.ACTIVE) {
-						/*
-						 * Open the output local file and get the client ready for the transfer.
-						 */
-						OutputStream out = new BufferedOutputStream(new FileOutputStream(inputs[1]));
-						log.info("calling get thread in active mode");
-						new Thread(new GetThread(dataChan, out)).start();
-						/*
-						 * Start the transfer on the server.
-						 */
-						log.info("Calling svr.get");
-						svr.get(inputs[1]);
-					} else {
-						msgln("GET: No mode set--use port or pasv command.");
 					}
 				} catch (Exception e) {
 					err(e);
@@ -451,45 +939,427 @@ public class Client {
 			}
 		}
 
-		public void put(String[] inputs) {
+		/*
+		 * One attempt at uploading a file, returning the digest of what was sent.
+		 */
+		private TransferDigest upload(String file) throws IOException, InterruptedException {
+			return upload(file, 0, false);
+		}
+
+		/*
+		 * An upload of a file from offset, either replacing the server's copy or
+		 * appended to it if that is offset bytes long.
+		 */
+		private TransferDigest upload(String file, long offset, boolean append) throws IOException, InterruptedException {
+			String method = append ? "append" : "put";
+			ServerCall start = append ? () -> svr.append(file, offset) : () -> svr.put(file);
+			TransferDigest digest = newDigest();
+			FileInputStream local = new FileInputStream(file);
+			try {
+				local.getChannel().position(offset);
+			} catch (IOException e) {
+				local.close();
+				throw e;
+			}
+			InputStream in = digest.wrap(Streams.readAhead(local));
+			if (mode == Mode.PASSIVE) {
+				try {
+					rpc(method, () -> file, () -> start.call());
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+				log.info("Client connecting to server at address " + serverAddress);
+				TransferTuner.Transfer transfer = tuner.begin(peer);
+				Socket socket;
+				try {
+					socket = security.secure(transfer.connect(new InetSocketAddress(serverAddress, serverSocket.getPort())),
+							serverAddress.getHostName());
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+				OutputStream out = socket.getOutputStream();
+
+				TransferEvent event = new TransferEvent(SIDE, method, file, mode.name());
+				event.begin();
+				try {
+					event.bytes = transfer.copy(in, out);
+				} finally {
+					out.flush();
+					out.close();
+					in.close();
+					socket.close();
+					event.commit();
+				}
+				transfer.finish();
+			} else {
+				runActive(new PutThread(dataChan, in, file), method, start);
+			}
+			return digest;
+		}
+
+		/*
+		 * Send the part of a local file that the server's copy lacks, taking the
+		 * server's copy to be the start of the local one. An append that fails
+		 * its check is not retried, since it may have been added.
+		 */
+		public void append(String[] inputs) {
 			if (inputs.length == 2) {
 				try {
-					if (mode == Mode.PASSIVE) {
-						/*
-						 * TODO
-						 */
-						svr.put(inputs[1]);
-						InputStream in = new BufferedInputStream(new FileInputStream(inputs[1]));
-						log.info("Client connecting to server at address " + serverAddress);
-						Socket socket = new Socket(serverAddress, serverSocket.getPort());
-						OutputStream out = socket.getOutputStream();
+					if (mode == Mode.NONE) {
+						msgln("APPEND: No mode set--use port or pasv command.");
+						return;
+					}
+					String file = inputs[1];
+					for (int attempt = 1;; attempt++) {
+						long offset;
+						try {
+							offset = rpc("stat", () -> file, () -> svr.stat(file)).getSize();
+						} catch (NoSuchFileException e) {
+							offset = 0;
+						}
+						long size = Files.size(Paths.get(file));
+						if (offset > size) {
+							msgln("APPEND: server's copy of " + file + " is longer than the local one.");
+							return;
+						} else if (offset == size) {
+							msgln("APPEND: nothing to add to " + file + ".");
+							return;
+						}
+						try {
+							verify(file, upload(file, offset, true));
+							msgln("APPEND: " + (size - offset) + " bytes added to " + file + ".");
+							break;
+						} catch (ServerBusyException e) {
+							if (attempt == MAX_TRANSFER_ATTEMPTS) {
+								throw e;
+							}
+							msgln("APPEND: " + e.getMessage() + ".");
+							Thread.sleep(e.getRetryAfterMillis());
+						}
+					}
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
+		public void cput(String[] inputs) {
+			if (inputs.length == 2 || inputs.length == 3) {
+				try {
+					/*
+					 * Without a stream count, use the one tuned by earlier uploads.
+					 */
+					int streams = inputs.length == 3 ? Integer.parseInt(inputs[2]) : tuner.settings(peer).getStreams();
+					long start = System.currentTimeMillis();
+					ChunkedUploader uploader = new ChunkedUploader(svr, serverAddress, ChunkedUploader.DEFAULT_CHUNK_SIZE,
+							tuner.begin(peer), security);
+					long bytes = uploader.upload(inputs[1], streams);
+					msgln("CPUT: " + bytes + " bytes over " + streams + " streams in " + (System.currentTimeMillis() - start)
+							+ " ms.");
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
 
+		/*
+		 * Sessions on the replicas, opened on the first mget.
+		 */
+		private List<MultiSourceDownload.Source> replicaSessions = null;
+
+		private List<MultiSourceDownload.Source> replicaSessions() {
+			if (replicaSessions == null) {
+				replicaSessions = new ArrayList<MultiSourceDownload.Source>();
+				for (String replica : replicas == null ? new String[0] : replicas.split(",")) {
+					replica = replica.trim();
+					if (replica.isEmpty()) {
+						continue;
+					}
+					try {
+						int colon = replica.lastIndexOf(':');
+						String host = colon < 0 ? replica : replica.substring(0, colon);
+						int port = colon < 0 ? serverPort : Integer.parseInt(replica.substring(colon + 1));
+						Registry registry = LocateRegistry.getRegistry(host, port);
+						IServerFactory factory = (IServerFactory) registry.lookup(serverName);
+						IServer session = createSession(factory);
+						replicaSessions.add(new MultiSourceDownload.Source(replica, session, InetAddress.getByName(host),
+								DataChannelSecurity.forServer(rpc("dataSecure", null, () -> session.dataSecure()), tls)));
+					} catch (Exception e) {
+						log.warning("Replica " + replica + " unavailable: " + e);
+					}
+				}
+			}
+			return replicaSessions;
+		}
+
+		/*
+		 * Move a session on a replica or another server to an absolute directory,
+		 * such as the working directory of the primary session.
+		 */
+		private void syncCwd(IServer session, String cwd) throws IOException {
+			String current = rpc("pwd", null, () -> session.pwd());
+			if (current.equals(cwd)) {
+				return;
+			}
+			while (!"/".equals(current)) {
+				rpc("cd", () -> "..", () -> session.cd(".."));
+				current = rpc("pwd", null, () -> session.pwd());
+			}
+			for (String dir : cwd.split("/")) {
+				if (!dir.isEmpty()) {
+					rpc("cd", () -> dir, () -> session.cd(dir));
+				}
+			}
+		}
+
+		public void mget(String[] inputs) {
+			if (inputs.length == 2) {
+				try {
+					String file = inputs[1];
+					String cwd = rpc("pwd", null, () -> svr.pwd());
+					List<MultiSourceDownload.Source> sources = new ArrayList<MultiSourceDownload.Source>();
+					sources.add(new MultiSourceDownload.Source(serverAddr + ":" + serverPort, svr, serverAddress, security));
+					for (MultiSourceDownload.Source replica : replicaSessions()) {
 						try {
-							byte[] data;
+							syncCwd(replica.svr, cwd);
+							sources.add(new MultiSourceDownload.Source(replica.name, replica.svr, replica.address,
+									replica.security));
+						} catch (IOException e) {
+							log.warning("Skipping replica " + replica.name + ": " + e);
+						}
+					}
+					long start = System.currentTimeMillis();
+					MultiSourceDownload download = new MultiSourceDownload(sources,
+							MultiSourceDownload.DEFAULT_BLOCK_SIZE);
+					long bytes = download.download(file, Paths.get(file));
+					msgln("MGET: " + bytes + " bytes in " + (System.currentTimeMillis() - start) + " ms.");
+					for (MultiSourceDownload.Source source : download.getSources()) {
+						msgln("  " + source.name + ": " + source.blocks + " blocks, " + source.failures + " failures");
+					}
+					/*
+					 * Ranges carry no digest, so check the assembled file as a whole.
+					 */
+					checksum(new String[] { "checksum", file });
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
+		/*
+		 * Sessions on other servers for transfers between servers, by host:port,
+		 * opened on first use.
+		 */
+		private final Map<String, IServer> otherServers = new Hashtable<String, IServer>();
+
+		private IServer otherServer(String host, int port) throws Exception {
+			String name = host + ":" + port;
+			IServer other = otherServers.get(name);
+			if (other == null) {
+				Registry registry = LocateRegistry.getRegistry(host, port);
+				IServerFactory factory = (IServerFactory) registry.lookup(serverName);
+				other = createSession(factory);
+				otherServers.put(name, other);
+			}
+			return other;
+		}
 
-							while (true) {
-								data = in.readNBytes(4096);
+		/*
+		 * Copy a file from the server to another, directly: the server is put in
+		 * passive mode, and the other pointed at it in active mode, so the data
+		 * never passes through the client. The other server reaches this one at
+		 * the address the client uses for it. The server stays in passive mode
+		 * afterwards.
+		 */
+		public void fxp(String[] inputs) {
+			if (inputs.length == 3 || inputs.length == 4) {
+				try {
+					String file = inputs[1];
+					int colon = inputs[2].lastIndexOf(':');
+					String host = colon < 0 ? inputs[2] : inputs[2].substring(0, colon);
+					int port = colon < 0 ? serverPort : Integer.parseInt(inputs[2].substring(colon + 1));
+					IServer other = otherServer(host, port);
+					if (inputs.length == 4) {
+						syncCwd(other, inputs[3]);
+					}
+					if (rpc("dataSecure", null, () -> svr.dataSecure()) || rpc("dataSecure", null, () -> other.dataSecure())) {
+						msgln("FXP: transfers between servers need data connections in the clear.");
+						return;
+					}
+					long start = System.currentTimeMillis();
+					int dataPort = rpc("pasv", null, () -> svr.pasv());
+					makePassive(dataPort);
+					rpc("port", () -> inputs[2], () -> other.port(serverAddress.getHostAddress(), dataPort));
+					rpc("get", () -> file, () -> svr.get(file));
+					/*
+					 * The other server connects to this one and copies the file within
+					 * the put.
+					 */
+					try {
+						rpc("put", () -> file, () -> other.put(file));
+					} catch (IOException e) {
+						release(dataPort);
+						throw e;
+					}
+					String sent = rpc("transferDigest", () -> file, () -> svr.transferDigest(file));
+					String received = rpc("transferDigest", () -> file, () -> other.transferDigest(file));
+					if (!sent.equals(received)) {
+						throw new DigestMismatchException(file, sent, received);
+					}
+					long bytes = rpc("stat", () -> file, () -> other.stat(file)).getSize();
+					msgln("FXP: " + bytes + " bytes copied to " + inputs[2] + " in " + (System.currentTimeMillis() - start)
+							+ " ms.");
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
 
-								if (data.length == 0) {
-									break;
-								}
-								out.write(data);
+		/*
+		 * Free the server's data connection after a transfer between servers that
+		 * never started, so that the server's send fails rather than waiting for
+		 * the next passive transfer.
+		 */
+		private void release(int dataPort) {
+			try {
+				new Socket(serverAddress, dataPort).close();
+			} catch (IOException e) {
+				log.warning("Could not release data channel: " + e);
+			}
+		}
+
+		public void getarchive(String[] inputs) {
+			if (inputs.length >= 2 && inputs.length <= 4) {
+				try {
+					String dir = inputs[1];
+					boolean compress = false, unpack = false;
+					for (int i = 2; i < inputs.length; i++) {
+						if ("-z".equals(inputs[i])) {
+							compress = true;
+						} else if ("-x".equals(inputs[i])) {
+							unpack = true;
+						} else {
+							msgln("GETARCHIVE: unknown option " + inputs[i]);
+							return;
+						}
+					}
+					TransferDigest digest = newDigest();
+					boolean gzip = compress;
+					int port = rpc("getArchive", () -> dir, () -> svr.getArchive(dir, gzip));
+					long start = System.currentTimeMillis();
+					TransferEvent event = new TransferEvent(SIDE, "getArchive", dir, compress ? "GZIP" : "TAR");
+					event.begin();
+					String result;
+					try (Socket socket = security.secure(new Socket(serverAddress, port), serverAddress.getHostName())) {
+						InputStream in = digest.wrap(new BufferedInputStream(socket.getInputStream()));
+						if (unpack) {
+							int files = unpack(compress ? new GZIPInputStream(in) : in);
+							/*
+							 * The digest covers everything the server sent, including padding.
+							 */
+							Streams.copy(in, OutputStream.nullOutputStream());
+							result = files + " files unpacked";
+						} else {
+							String name = (".".equals(dir) ? "archive" : dir) + (compress ? ".tar.gz" : ".tar");
+							try (OutputStream out = new BufferedOutputStream(new FileOutputStream(name))) {
+								event.bytes = Streams.copy(in, out);
 							}
-						} finally {
-							out.flush();
-							out.close();
-							socket.close();
+							result = event.bytes + " bytes saved to " + name;
 						}
-					} else if (mode == Mode.ACTIVE) {
-						/*
-						 * TODO: Need to create a thread
-						 */
-						InputStream in = new BufferedInputStream(new FileInputStream(inputs[1]));
-						new Thread(new PutThread(dataChan, in)).start();
-						svr.put(inputs[1]);
-					} else {
-						msgln("GET: No mode set--use port or pasv command.");
+					} finally {
+						event.commit();
 					}
+					verify(dir, digest);
+					msgln("GETARCHIVE: " + result + " in " + (System.currentTimeMillis() - start) + " ms.");
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
+		/*
+		 * Unpack an archive below the current directory, returning the number of
+		 * files. Entries that would land outside it are refused.
+		 */
+		private int unpack(InputStream in) throws IOException {
+			Tar.Reader tar = new Tar.Reader(in);
+			Path here = Paths.get("").toAbsolutePath();
+			int files = 0;
+			for (Tar.Entry entry = tar.next(); entry != null; entry = tar.next()) {
+				if (!Tar.safeName(entry.getName())) {
+					throw new IOException("Unsafe name in archive: " + entry.getName());
+				}
+				Path target = here.resolve(entry.getName());
+				if (entry.isDirectory()) {
+					Files.createDirectories(target);
+				} else {
+					if (target.getParent() != null) {
+						Files.createDirectories(target.getParent());
+					}
+					try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+						Streams.copy(tar.contents(), out);
+					}
+					files++;
+				}
+				Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getModified()));
+			}
+			return files;
+		}
+
+		/*
+		 * Upload files and directory trees as one tar archive on a single data
+		 * connection. Names are sent relative to the current directory, and each
+		 * file is checked against the digest the server reports for it.
+		 */
+		public void pput(String[] inputs) {
+			if (inputs.length >= 2) {
+				try {
+					List<Path> files = new ArrayList<Path>();
+					for (int i = 1; i < inputs.length; i++) {
+						if (!Tar.safeName(inputs[i])) {
+							msgln("PPUT: " + inputs[i] + " is not below the current directory.");
+							return;
+						}
+						try (Stream<Path> paths = Files.walk(Paths.get(inputs[i]))) {
+							paths.filter(Files::isRegularFile).forEach(files::add);
+						}
+					}
+					int port = rpc("openPackedPut", null, () -> svr.openPackedPut());
+					long start = System.currentTimeMillis();
+					Hashtable<String, String> digests = new Hashtable<String, String>();
+					TransferEvent event = new TransferEvent(SIDE, "packedPut", inputs[1], "DEDICATED");
+					event.begin();
+					try (Socket socket = security.secure(new Socket(serverAddress, port), serverAddress.getHostName())) {
+						OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+						Tar.Writer tar = new Tar.Writer(out);
+						for (Path file : files) {
+							String name = file.normalize().toString().replace(File.separatorChar, '/');
+							TransferDigest digest = newDigest();
+							try (InputStream in = digest.wrap(new BufferedInputStream(Files.newInputStream(file)))) {
+								event.bytes += tar.putFile(name, Files.size(file),
+										Files.getLastModifiedTime(file).toMillis(), in);
+							}
+							digests.put(name, digest.value());
+						}
+						tar.finish();
+					} finally {
+						event.commit();
+					}
+					FileStatus[] statuses = rpc("packedPutResult", () -> Integer.toString(port), () -> svr.packedPutResult(port));
+					int stored = 0;
+					for (FileStatus status : statuses) {
+						if (!status.isOk()) {
+							msgln("  " + status);
+						} else if (!status.getDigest().equals(digests.get(status.getName()))) {
+							msgln("  " + status.getName() + ": digest mismatch");
+						} else {
+							stored++;
+						}
+					}
+					msgln("PPUT: " + stored + " of " + files.size() + " files stored, " + event.bytes + " bytes in "
+							+ (System.currentTimeMillis() - start) + " ms.");
 				} catch (Exception e) {
 					err(e);
 				}
@@ -499,8 +1369,9 @@ public class Client {
 		public void cd(String[] inputs) {
 			if (inputs.length == 2)
 				try {
-					svr.cd(inputs[1]);
-					msgln("CWD: " + svr.pwd());
+					rpc("cd", () -> inputs[1], () -> svr.cd(inputs[1]));
+					remoteCwd = null;
+					pwd(new String[] { "pwd" });
 				} catch (Exception e) {
 					err(e);
 				}
@@ -509,7 +1380,7 @@ public class Client {
 		public void pwd(String[] inputs) {
 			if (inputs.length == 1)
 				try {
-					msgln("CWD: " + svr.pwd());
+					msgln("CWD: " + rpc("pwd", null, () -> svr.pwd()));
 				} catch (Exception e) {
 					err(e);
 				}
@@ -518,7 +1389,7 @@ public class Client {
 		public void dir(String[] inputs) {
 			if (inputs.length == 1) {
 				try {
-					String[] fs = svr.dir();
+					String[] fs = rpc("dir", null, () -> svr.dir());
 					for (int i = 0; i < fs.length; i++) {
 						msgln(fs[i]);
 					}
@@ -531,7 +1402,7 @@ public class Client {
 		public void pasv(String[] inputs) {
 			if (inputs.length == 1) {
 				try {
-					makePassive(svr.pasv());
+					makePassive(rpc("pasv", null, () -> svr.pasv()));
 					msgln("PASV: Server in passive mode.");
 				} catch (Exception e) {
 					err(e);
@@ -539,11 +1410,26 @@ public class Client {
 			}
 		}
 
+		public void priority(String[] inputs) {
+			if (inputs.length == 2) {
+				try {
+					TransferPriority p = "auto".equalsIgnoreCase(inputs[1]) ? null
+							: TransferPriority.valueOf(inputs[1].toUpperCase());
+					rpc("priority", () -> inputs[1], () -> svr.priority(p));
+					msgln("PRIORITY: " + (p == null ? "inferred from file size" : p.name().toLowerCase()) + ".");
+				} catch (IllegalArgumentException e) {
+					msgln("PRIORITY: expected interactive, normal, bulk or auto.");
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
 		public void port(String[] inputs) {
 			if (inputs.length == 1) {
 				try {
 					int s = makeActive();
-					svr.port(s);
+					rpc("port", () -> Integer.toString(s), () -> svr.port(s));
 					msgln("PORT: Server in active mode.");
 				} catch (Exception e) {
 					err(e);
@@ -551,6 +1437,129 @@ public class Client {
 			}
 		}
 
+		public void checksum(String[] inputs) {
+			if (inputs.length == 2) {
+				try {
+					String remote = rpc("checksum", () -> inputs[1], () -> svr.checksum(inputs[1]));
+					TransferDigest digest = newDigest();
+					msgln(digest.getAlgorithm() + " " + remote + "  " + inputs[1]);
+					File local = new File(inputs[1]);
+					if (local.isFile()) {
+						try (InputStream in = digest.wrap(Streams.readAhead(new FileInputStream(local)))) {
+							Streams.copy(in, OutputStream.nullOutputStream());
+						}
+						msgln(remote.equals(digest.value()) ? "Local copy matches." : "Local copy differs.");
+					}
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
+		/*
+		 * End the session on the server, and on any replicas.
+		 */
+		void close() {
+			changes.unexport();
+			for (String file : follows.keySet()) {
+				stopFollowing(file);
+			}
+			try {
+				svr.close();
+				if (replicaSessions != null) {
+					for (MultiSourceDownload.Source replica : replicaSessions) {
+						replica.svr.close();
+					}
+				}
+				for (IServer other : otherServers.values()) {
+					other.close();
+				}
+			} catch (RemoteException e) {
+				log.info("Closing session: " + e);
+			}
+		}
+
+		/*
+		 * *****************************************************************************
+		 * Change notifications, printed as the server pushes them.
+		 */
+		private final ChangePrinter changes = new ChangePrinter();
+
+		public void watch(String[] inputs) {
+			if (inputs.length <= 2) {
+				try {
+					String dir = inputs.length == 2 ? inputs[1] : ".";
+					String id = rpc("subscribe", () -> dir, () -> svr.subscribe(dir, changes.export()));
+					changes.subscribed(id, dir);
+					msgln("WATCH: " + id + " on " + dir);
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
+		public void unwatch(String[] inputs) {
+			if (inputs.length == 1) {
+				for (Map.Entry<String, String> e : changes.getSubscriptions().entrySet()) {
+					msgln(e.getKey() + "  " + e.getValue());
+				}
+			} else if (inputs.length == 2) {
+				try {
+					rpc("unsubscribe", () -> inputs[1], () -> svr.unsubscribe(inputs[1]));
+					String dir = changes.unsubscribed(inputs[1]);
+					msgln(dir == null ? "UNWATCH: no such subscription." : "UNWATCH: stopped watching " + dir + ".");
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
+		static final int FIND_PAGE_SIZE = 200;
+
+		public void find(String[] inputs) {
+			if (inputs.length >= 2 && inputs.length % 2 == 0) {
+				try {
+					long minSize = -1, maxSize = -1, after = -1, before = -1;
+					long now = System.currentTimeMillis();
+					for (int i = 2; i < inputs.length; i += 2) {
+						long value = Long.parseLong(inputs[i + 1]);
+						if ("-min".equals(inputs[i])) {
+							minSize = value;
+						} else if ("-max".equals(inputs[i])) {
+							maxSize = value;
+						} else if ("-newer".equals(inputs[i])) {
+							after = now - value * 60000;
+						} else if ("-older".equals(inputs[i])) {
+							before = now - value * 60000;
+						} else {
+							msgln("FIND: unknown option " + inputs[i]);
+							return;
+						}
+					}
+					FindQuery query = new FindQuery("*".equals(inputs[1]) ? null : inputs[1], minSize, maxSize, after,
+							before);
+					int count = 0;
+					FindPage page = rpc("find", () -> inputs[1], () -> svr.find(query, FIND_PAGE_SIZE));
+					while (true) {
+						for (FileInfo match : page.getMatches()) {
+							msgln(match.getName() + "  " + match.getSize());
+							count++;
+						}
+						if (page.isLast()) {
+							break;
+						}
+						String id = page.getId();
+						page = rpc("findNext", () -> id, () -> svr.findNext(id, FIND_PAGE_SIZE));
+					}
+					msgln("FIND: " + count + " matches.");
+				} catch (NumberFormatException e) {
+					msgln("FIND: bad number " + e.getMessage());
+				} catch (Exception e) {
+					err(e);
+				}
+			}
+		}
+
 		public void ldir(String[] inputs) {
 			if (inputs.length == 1) {
 				String[] fs = new File(".").list();
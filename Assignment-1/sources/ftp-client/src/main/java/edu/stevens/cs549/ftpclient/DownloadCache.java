@@ -0,0 +1,109 @@
+package edu.stevens.cs549.ftpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.ftpinterface.FileInfo;
+
+/**
+ * Local cache of downloaded files, keyed by server and remote path. Each entry
+ * remembers the size and modification time of the version it holds, so that
+ * a conditional get can tell the server which version the client already has.
+ * 
+ * @author dduggan
+ */
+class DownloadCache {
+
+	private static Logger log = Logger.getLogger(DownloadCache.class.getCanonicalName());
+
+	private final Path dir;
+
+	DownloadCache(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+	}
+
+	private String entryName(String server, String path) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(md.digest((server + "|" + path).getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Path dataFile(String name) {
+		return dir.resolve(name + ".data");
+	}
+
+	private Path metaFile(String name) {
+		return dir.resolve(name + ".meta");
+	}
+
+	/*
+	 * The version of a remote file held in the cache, or null if there is none.
+	 */
+	FileInfo lookup(String server, String path) {
+		String name = entryName(server, path);
+		Properties meta = new Properties();
+		try (InputStream in = Files.newInputStream(metaFile(name))) {
+			meta.load(in);
+			FileInfo info = new FileInfo(meta.getProperty("name"), Long.parseLong(meta.getProperty("size")),
+					Long.parseLong(meta.getProperty("modified")));
+			if (Files.size(dataFile(name)) != info.getSize()) {
+				return null;
+			}
+			return info;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | RuntimeException e) {
+			log.info("Ignoring cache entry for " + path + ": " + e);
+			return null;
+		}
+	}
+
+	/*
+	 * Copy the cached contents of a remote file to a local file.
+	 */
+	void restore(String server, String path, Path target) throws IOException {
+		Files.copy(dataFile(entryName(server, path)), target, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/*
+	 * Save a downloaded copy of a remote file. The metadata is written last, so
+	 * that an interrupted store leaves no entry.
+	 */
+	void store(String server, String path, FileInfo info, Path source) throws IOException {
+		String name = entryName(server, path);
+		Path meta = metaFile(name);
+		Files.deleteIfExists(meta);
+		Path tmp = Files.createTempFile(dir, name, ".tmp");
+		try {
+			Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp, dataFile(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		Properties props = new Properties();
+		props.setProperty("server", server);
+		props.setProperty("path", path);
+		props.setProperty("name", info.getName());
+		props.setProperty("size", Long.toString(info.getSize()));
+		props.setProperty("modified", Long.toString(info.getModified()));
+		try (OutputStream out = Files.newOutputStream(meta)) {
+			props.store(out, null);
+		}
+	}
+
+}
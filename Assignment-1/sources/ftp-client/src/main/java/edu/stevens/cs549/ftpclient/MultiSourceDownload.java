@@ -0,0 +1,246 @@
+package edu.stevens.cs549.ftpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.ftpinterface.FileInfo;
+import edu.stevens.cs549.ftpinterface.IServer;
+import edu.stevens.cs549.util.DataChannelSecurity;
+import edu.stevens.cs549.util.TransferEvent;
+
+/**
+ * Client side of a multi-source download: the file is split into blocks that
+ * are fetched as ranges from several replicas of the same server at once. Each
+ * replica pulls the next block when it finishes one, so faster replicas serve
+ * more of the file. A replica that fails or stalls has its block put back for
+ * the others and, after repeated failures, is dropped. Once no blocks are left
+ * to hand out, idle replicas also fetch the blocks still outstanding on slower
+ * ones, and the first copy to arrive is kept.
+ *
+ * @author dduggan
+ */
+class MultiSourceDownload {
+
+	private static Logger log = Logger.getLogger(MultiSourceDownload.class.getCanonicalName());
+
+	static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+	/*
+	 * A range read that makes no progress for this long is abandoned.
+	 */
+	static final int STALL_TIMEOUT_MILLIS = 5000;
+
+	static final int MAX_REPLICA_FAILURES = 3;
+
+	/*
+	 * A session on one replica, and the address for its data connections.
+	 */
+	static class Source {
+		final String name;
+		final IServer svr;
+		final InetAddress address;
+		final DataChannelSecurity security;
+		long bytes = 0;
+		int blocks = 0;
+		int failures = 0;
+
+		Source(String name, IServer svr, InetAddress address, DataChannelSecurity security) {
+			this.name = name;
+			this.svr = svr;
+			this.address = address;
+			this.security = security;
+		}
+	}
+
+	private final List<Source> sources;
+
+	private final int blockSize;
+
+	private final Deque<Integer> pending = new ConcurrentLinkedDeque<Integer>();
+
+	/*
+	 * Blocks written to the local file, and blocks handed out but not yet
+	 * written; both guarded by this.
+	 */
+	private final BitSet done = new BitSet();
+
+	private final BitSet inFlight = new BitSet();
+
+	private int remaining;
+
+	MultiSourceDownload(List<Source> sources, int blockSize) {
+		this.sources = sources;
+		this.blockSize = blockSize;
+	}
+
+	List<Source> getSources() {
+		return sources;
+	}
+
+	/*
+	 * Download a file from the current directory of every source to a local
+	 * path, returning the number of bytes in the file.
+	 */
+	long download(String file, Path local) throws IOException, InterruptedException {
+		FileInfo info = sources.get(0).svr.stat(file);
+		List<Source> agreeing = new ArrayList<Source>();
+		for (Source source : sources) {
+			try {
+				FileInfo other = source == sources.get(0) ? info : source.svr.stat(file);
+				if (other.getSize() == info.getSize()) {
+					agreeing.add(source);
+				} else {
+					log.warning("Skipping replica " + source.name + ": size of " + file + " is " + other.getSize());
+				}
+			} catch (IOException e) {
+				log.warning("Skipping replica " + source.name + ": " + e);
+			}
+		}
+		long size = info.getSize();
+		int blocks = (int) ((size + blockSize - 1) / blockSize);
+		for (int i = 0; i < blocks; i++) {
+			pending.add(i);
+		}
+		remaining = blocks;
+
+		TransferEvent event = new TransferEvent(Client.SIDE, "mget", file, "MULTI");
+		event.begin();
+		try (FileChannel channel = FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			List<Thread> workers = new ArrayList<Thread>();
+			for (Source source : agreeing) {
+				Thread worker = new Thread(() -> fetch(source, file, size, channel));
+				workers.add(worker);
+				worker.start();
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			synchronized (this) {
+				if (remaining > 0) {
+					throw new IOException(remaining + " blocks of " + file + " could not be downloaded.");
+				}
+			}
+			channel.truncate(size);
+			event.bytes = size;
+			return size;
+		} finally {
+			event.commit();
+		}
+	}
+
+	/*
+	 * Worker loop for one replica.
+	 */
+	private void fetch(Source source, String file, long size, FileChannel channel) {
+		ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+		Integer block;
+		while ((block = next()) != null) {
+			long offset = (long) block * blockSize;
+			int length = (int) Math.min(blockSize, size - offset);
+			try {
+				buffer.clear().limit(length);
+				read(source, file, offset, buffer);
+				buffer.flip();
+				synchronized (this) {
+					if (done.get(block)) {
+						/*
+						 * Another replica got there first.
+						 */
+						continue;
+					}
+					while (buffer.hasRemaining()) {
+						channel.write(buffer, offset + buffer.position());
+					}
+					done.set(block);
+					inFlight.clear(block);
+					remaining--;
+					notifyAll();
+				}
+				source.bytes += length;
+				source.blocks++;
+			} catch (IOException e) {
+				log.info("Block " + block + " of " + file + " failed on " + source.name + ": " + e);
+				synchronized (this) {
+					if (!done.get(block)) {
+						pending.addFirst(block);
+					}
+					notifyAll();
+				}
+				if (++source.failures >= MAX_REPLICA_FAILURES) {
+					log.warning("Dropping replica " + source.name + " after " + source.failures + " failures.");
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * The next block for a worker: a pending block if there is one, otherwise
+	 * one still in flight on another replica, or null when the file is done.
+	 */
+	private synchronized Integer next() {
+		while (remaining > 0) {
+			Integer block = pending.pollFirst();
+			if (block != null) {
+				if (!done.get(block)) {
+					inFlight.set(block);
+					return block;
+				}
+			} else {
+				int outstanding = inFlight.nextSetBit(0);
+				if (outstanding >= 0) {
+					inFlight.clear(outstanding);
+					return outstanding;
+				}
+				try {
+					/*
+					 * Every outstanding block already has a second fetch; wait for
+					 * one to finish or fail.
+					 */
+					wait(STALL_TIMEOUT_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void read(Source source, String file, long offset, ByteBuffer buffer) throws IOException {
+		int port = source.svr.openGetRange(file, offset, buffer.remaining());
+		Socket plain = new Socket();
+		try {
+			plain.connect(new InetSocketAddress(source.address, port), STALL_TIMEOUT_MILLIS);
+		} catch (IOException e) {
+			plain.close();
+			throw e;
+		}
+		try (Socket socket = source.security.secure(plain, source.address.getHostName())) {
+			socket.setSoTimeout(STALL_TIMEOUT_MILLIS);
+			InputStream in = socket.getInputStream();
+			while (buffer.hasRemaining()) {
+				int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+				if (n < 0) {
+					throw new IOException("Range ended early at " + (offset + buffer.position()));
+				}
+				buffer.position(buffer.position() + n);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+package edu.stevens.cs549.ftpinterface;
+
+import java.io.Serializable;
+
+/**
+ * A change to an entry in a watched directory. OVERFLOW means that changes
+ * were lost, and the client should list the directory again; it has no name.
+ * Uploads are moved into place when complete, so a file replaced by one is
+ * reported as created.
+ * 
+ * @author dduggan
+ */
+public class ChangeEvent implements Serializable {
+
+	static final long serialVersionUID = 0L;
+
+	public enum Kind {
+		CREATED, MODIFIED, DELETED, OVERFLOW
+	}
+
+	private final Kind kind;
+
+	private final String name;
+
+	public ChangeEvent(Kind kind, String name) {
+		this.kind = kind;
+		this.name = name;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String toString() {
+		return kind == Kind.OVERFLOW ? "overflow" : kind.name().toLowerCase() + " " + name;
+	}
+
+}
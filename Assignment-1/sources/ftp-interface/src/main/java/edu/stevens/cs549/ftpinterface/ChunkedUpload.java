@@ -0,0 +1,72 @@
+package edu.stevens.cs549.ftpinterface;
+
+import java.io.Serializable;
+
+/**
+ * A chunked upload started on the server. The client sends chunks over any
+ * number of connections to the given port. On each connection, every chunk
+ * is framed as
+ * 
+ * <pre>
+ *   int   chunk index
+ *   byte  data[chunk length]   (chunkSize, except possibly for the last chunk)
+ *   long  CRC32C of the data
+ * </pre>
+ * 
+ * and the server replies with a single byte, CHUNK_OK or CHUNK_BAD, once the
+ * chunk has been written.
+ * 
+ * @author dduggan
+ */
+public class ChunkedUpload implements Serializable {
+
+	static final long serialVersionUID = 0L;
+
+	public static final int CHUNK_OK = 1;
+
+	public static final int CHUNK_BAD = 0;
+
+	private final String id;
+
+	private final int port;
+
+	private final long size;
+
+	private final int chunkSize;
+
+	public ChunkedUpload(String id, int port, long size, int chunkSize) {
+		this.id = id;
+		this.port = port;
+		this.size = size;
+		this.chunkSize = chunkSize;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getChunks() {
+		return (int) ((size + chunkSize - 1) / chunkSize);
+	}
+
+	public long offset(int chunk) {
+		return (long) chunk * chunkSize;
+	}
+
+	public int length(int chunk) {
+		return (int) Math.min(chunkSize, size - offset(chunk));
+	}
+
+}
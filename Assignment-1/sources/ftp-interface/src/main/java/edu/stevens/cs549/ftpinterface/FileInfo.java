@@ -0,0 +1,50 @@
+package edu.stevens.cs549.ftpinterface;
+
+import java.io.Serializable;
+
+/**
+ * Metadata for a file on the server. Two FileInfo values describe the same
+ * version of a file if they have the same size and modification time.
+ * 
+ * @author dduggan
+ */
+public class FileInfo implements Serializable {
+
+	static final long serialVersionUID = 0L;
+
+	private final String name;
+
+	private final long size;
+
+	private final long modified;
+
+	public FileInfo(String name, long size, long modified) {
+		this.name = name;
+		this.size = size;
+		this.modified = modified;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/*
+	 * Modification time, in milliseconds since the epoch.
+	 */
+	public long getModified() {
+		return modified;
+	}
+
+	public boolean sameVersion(FileInfo other) {
+		return other != null && size == other.size && modified == other.modified;
+	}
+
+	public String toString() {
+		return name + " (" + size + " bytes, modified " + new java.util.Date(modified) + ")";
+	}
+
+}
@@ -0,0 +1,62 @@
+package edu.stevens.cs549.ftpinterface;
+
+import java.io.Serializable;
+
+/**
+ * Outcome for one file of a packed upload: the digest of the bytes the server
+ * wrote, or the reason the file was refused or failed.
+ * 
+ * @author dduggan
+ */
+public class FileStatus implements Serializable {
+
+	static final long serialVersionUID = 0L;
+
+	private final String name;
+
+	private final long size;
+
+	private final String digest;
+
+	private final String error;
+
+	public FileStatus(String name, long size, String digest, String error) {
+		this.name = name;
+		this.size = size;
+		this.digest = digest;
+		this.error = error;
+	}
+
+	public static FileStatus ok(String name, long size, String digest) {
+		return new FileStatus(name, size, digest, null);
+	}
+
+	public static FileStatus failed(String name, String error) {
+		return new FileStatus(name, -1, null, error);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public boolean isOk() {
+		return error == null;
+	}
+
+	public String toString() {
+		return name + ": " + (error == null ? size + " bytes" : error);
+	}
+
+}
@@ -0,0 +1,37 @@
+package edu.stevens.cs549.ftpinterface;
+
+import java.io.Serializable;
+
+/**
+ * One page of the results of a search. File names are paths relative to the
+ * directory the search started from. The id is used to ask for the next page,
+ * and is null on the last page.
+ * 
+ * @author dduggan
+ */
+public class FindPage implements Serializable {
+
+	static final long serialVersionUID = 0L;
+
+	private final String id;
+
+	private final FileInfo[] matches;
+
+	public FindPage(String id, FileInfo[] matches) {
+		this.id = id;
+		this.matches = matches;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public boolean isLast() {
+		return id == null;
+	}
+
+	public FileInfo[] getMatches() {
+		return matches;
+	}
+
+}
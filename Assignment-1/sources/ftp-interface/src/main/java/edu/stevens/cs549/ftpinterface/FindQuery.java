@@ -0,0 +1,69 @@
+package edu.stevens.cs549.ftpinterface;
+
+import java.io.Serializable;
+
+/**
+ * Criteria for a search of the tree below the working directory. A file
+ * matches if its name matches the glob (null for any name), its size is
+ * within the bounds, and it was last modified within the time bounds. A glob
+ * with a '/', such as src/**.java, is matched against the path below the
+ * working directory instead of the name. Bounds of -1 are not checked.
+ * 
+ * @author dduggan
+ */
+public class FindQuery implements Serializable {
+
+	static final long serialVersionUID = 0L;
+
+	private final String glob;
+
+	private final long minSize;
+
+	private final long maxSize;
+
+	private final long modifiedAfter;
+
+	private final long modifiedBefore;
+
+	public FindQuery(String glob, long minSize, long maxSize, long modifiedAfter, long modifiedBefore) {
+		this.glob = glob;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.modifiedAfter = modifiedAfter;
+		this.modifiedBefore = modifiedBefore;
+	}
+
+	public FindQuery(String glob) {
+		this(glob, -1, -1, -1, -1);
+	}
+
+	public String getGlob() {
+		return glob;
+	}
+
+	public long getMinSize() {
+		return minSize;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/*
+	 * Modification time bounds, in milliseconds since the epoch.
+	 */
+	public long getModifiedAfter() {
+		return modifiedAfter;
+	}
+
+	public long getModifiedBefore() {
+		return modifiedBefore;
+	}
+
+	public boolean matches(long size, long modified) {
+		return (minSize < 0 || size >= minSize) && (maxSize < 0 || size <= maxSize)
+				&& (modifiedAfter < 0 || modified > modifiedAfter)
+				&& (modifiedBefore < 0 || modified < modifiedBefore);
+	}
+
+}
@@ -0,0 +1,16 @@
+package edu.stevens.cs549.ftpinterface;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/*
+ * A callback exported by the client to receive changes to a directory it has
+ * subscribed to. The server calls it with a batch of changes at a time, in the
+ * order they happened, with those to the same name in quick succession
+ * combined. A listener that cannot be reached is unsubscribed.
+ */
+public interface IChangeListener extends Remote {
+
+	public void changed(String subscription, String dir, ChangeEvent[] events) throws RemoteException;
+
+}
@@ -14,6 +14,16 @@ public interface IServer extends Remote {
 	public void put(String f) throws IOException, FileNotFoundException,
 			RemoteException;
 
+	/*
+	 * Upload to the end of a file, in the current mode as for put, creating it
+	 * if need be. The bytes are added all at once when the upload completes, and
+	 * never interleaved with those of another append. If expectedSize is not
+	 * negative, they are added only if the file is then that long, so that a
+	 * client sending the new part of a growing local file neither repeats nor
+	 * skips any; otherwise transferDigest reports the failure.
+	 */
+	public void append(String f, long expectedSize) throws IOException, RemoteException;
+
 	public String pwd() throws RemoteException;
 
 	public void cd(String d) throws IOException, RemoteException;
@@ -22,6 +32,134 @@ public interface IServer extends Remote {
 
 	public void port(int clientPort) throws RemoteException;
 
+	/*
+	 * Active mode towards another host, normally another server in passive
+	 * mode, so that a get or put on one server is served by the other without
+	 * the data passing through the client. Only for data connections in the
+	 * clear, not to ports below 1024, and only to the peer servers the server
+	 * is configured with (server.thirdParty, off by default, and
+	 * server.thirdPartyPeers).
+	 */
+	public void port(String host, int port) throws IOException, RemoteException;
+
 	public int pasv() throws IOException, RemoteException;
 
+	/*
+	 * Start a transfer on a dedicated data connection, whatever the mode: the
+	 * server listens for a single connection on the port returned. This allows
+	 * several transfers at once on one session.
+	 */
+	public int openGet(String f) throws IOException, RemoteException;
+
+	public int openPut(String f) throws IOException, RemoteException;
+
+	/*
+	 * Metadata for a file in the current directory, and a download of part of
+	 * it, length bytes from offset, on a dedicated data connection. Ranges have
+	 * no transfer digest: check the assembled file against checksum().
+	 */
+	public FileInfo stat(String f) throws IOException, RemoteException;
+
+	public int openGetRange(String f, long offset, long length) throws IOException, RemoteException;
+
+	/*
+	 * Follow a file as it grows, as tail -f does, on a dedicated data
+	 * connection: the server sends the file from offset, then whatever is
+	 * appended to it, until the client closes the connection. The server
+	 * closes it if the file is truncated, replaced or deleted.
+	 */
+	public int openFollow(String f, long offset) throws IOException, RemoteException;
+
+	/*
+	 * End the session, giving up its place under the server's session limit. A
+	 * server at its limit of sessions or transfers raises ServerBusyException.
+	 */
+	public void close() throws RemoteException;
+
+	/*
+	 * Scheduling class for this session's transfers from now on; null to have
+	 * the server infer it from the size of each file.
+	 */
+	public void priority(TransferPriority p) throws RemoteException;
+
+	/*
+	 * Search the tree below the working directory. Results come back a page at
+	 * a time; pass the id of a page to findNext for the next one, or to
+	 * findClose to stop early. A session has only a few searches open at once,
+	 * and a search is dropped if its pages go unread for a while.
+	 */
+	public FindPage find(FindQuery query, int pageSize) throws IOException, RemoteException;
+
+	public FindPage findNext(String id, int pageSize) throws IOException, RemoteException;
+
+	public void findClose(String id) throws RemoteException;
+
+	/*
+	 * Download a directory (or "." for the working directory) as a tar archive,
+	 * gzipped if compress is set, on a dedicated data connection. The transfer
+	 * digest is of the archive as sent, under the directory name.
+	 */
+	public int getArchive(String dir, boolean compress) throws IOException, RemoteException;
+
+	/*
+	 * Upload many files as one tar archive on a dedicated data connection,
+	 * unpacked below the working directory. Once the client has closed the
+	 * connection, packedPutResult gives the outcome for each file, in archive
+	 * order.
+	 */
+	public int openPackedPut() throws IOException, RemoteException;
+
+	public FileStatus[] packedPutResult(int port) throws IOException, RemoteException;
+
+	/*
+	 * Integrity checking: the algorithm used for transfer digests, and the digest
+	 * of the bytes the server read or wrote in the most recent transfer of a file
+	 * on this session. Blocks until that transfer has finished.
+	 */
+	public String digestAlgorithm() throws RemoteException;
+
+	public String transferDigest(String f) throws IOException, RemoteException;
+
+	/*
+	 * Whether the server encrypts data connections with TLS. If so, the client
+	 * must secure its side of each connection, trusting the server's
+	 * certificate (see DataChannelSecurity).
+	 */
+	public boolean dataSecure() throws RemoteException;
+
+	/*
+	 * The digest of a file in the current directory, using digestAlgorithm().
+	 * Served from the server's checksum index when the file is unchanged.
+	 */
+	public String checksum(String f) throws IOException, RemoteException;
+
+	/*
+	 * Conditional download: returns the current metadata of the file, and starts
+	 * a transfer as for get only if that is not the same version as cached (which
+	 * may be null). In active mode the server connects to the client after this
+	 * call returns.
+	 */
+	public FileInfo getIfChanged(String f, FileInfo cached) throws IOException, RemoteException;
+
+	/*
+	 * Change notifications: the server calls the listener with changes to the
+	 * entries of a directory ("." for the working directory) until the
+	 * subscription with the id returned is cancelled or the session ends.
+	 */
+	public String subscribe(String dir, IChangeListener listener) throws IOException, RemoteException;
+
+	public void unsubscribe(String id) throws RemoteException;
+
+	/*
+	 * Chunked upload: the server opens a staging file and listens for chunk
+	 * connections (see ChunkedUpload). Commit returns the indices of the
+	 * chunks not yet received; if there are none, the file has been moved into
+	 * place.
+	 */
+	public ChunkedUpload beginChunkedPut(String f, long size, int chunkSize) throws IOException, RemoteException;
+
+	public int[] commitChunkedPut(String id) throws IOException, RemoteException;
+
+	public void abortChunkedPut(String id) throws RemoteException;
+
 }
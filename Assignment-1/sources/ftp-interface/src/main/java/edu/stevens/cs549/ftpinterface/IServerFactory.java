@@ -5,6 +5,9 @@ import java.rmi.RemoteException;
 
 public interface IServerFactory extends Remote {
 
-	public IServer createServer() throws RemoteException;
+	/*
+	 * Raises ServerBusyException when the server is at its session limit.
+	 */
+	public IServer createServer() throws ServerBusyException, RemoteException;
 
 }
@@ -0,0 +1,26 @@
+package edu.stevens.cs549.ftpinterface;
+
+import java.io.IOException;
+
+/**
+ * Raised when the server is at its limit of sessions or transfers. The client
+ * should back off and try again after the suggested delay.
+ * 
+ * @author dduggan
+ */
+public class ServerBusyException extends IOException {
+
+	static final long serialVersionUID = 0L;
+
+	private final long retryAfterMillis;
+
+	public ServerBusyException(String what, long retryAfterMillis) {
+		super("Server busy (" + what + "), retry after " + retryAfterMillis + " ms");
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+}
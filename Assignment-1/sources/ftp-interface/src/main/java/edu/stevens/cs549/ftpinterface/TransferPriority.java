@@ -0,0 +1,12 @@
+package edu.stevens.cs549.ftpinterface;
+
+/**
+ * Scheduling class for a session's transfers. Interactive transfers get the
+ * largest share of the server's disk and network time, bulk transfers the
+ * smallest.
+ * 
+ * @author dduggan
+ */
+public enum TransferPriority {
+	INTERACTIVE, NORMAL, BULK
+}
@@ -0,0 +1,32 @@
+package edu.stevens.cs549.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event covering the wait for the peer to connect to a listening data
+ * socket.
+ * 
+ * @author dduggan
+ */
+@Name("edu.stevens.cs549.ftp.Accept")
+@Label("FTP Data Channel Accept")
+@Category({ "FTP", "Transfer" })
+@Description("Time spent waiting for the peer to open a data connection")
+public class AcceptEvent extends Event {
+
+	@Label("Side")
+	public String side;
+
+	@Label("Port")
+	public int port;
+
+	public AcceptEvent(String side, int port) {
+		this.side = side;
+		this.port = port;
+	}
+
+}
@@ -0,0 +1,244 @@
+package edu.stevens.cs549.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Encryption of data connections with TLS. The server holds a key in a
+ * keystore, and the client a truststore with the server's certificate (which
+ * may be self-signed). The server is always the TLS server and the client the
+ * TLS client, whichever of them opened the connection, so active mode works
+ * as well as passive.
+ *
+ * Each side keeps one SSLContext, so the many data connections of a session
+ * resume the TLS session of the first rather than repeat the full handshake:
+ * the client keys its session cache on the server's host alone, whatever the
+ * data port. The default protocol is TLS 1.2, whose resumption completes
+ * within the handshake, so it works for connections that only ever send; a
+ * TLS 1.3 ticket arrives after the handshake and is lost on such connections.
+ * Only AES-GCM suites are enabled by default.
+ *
+ * Connections are TlsSockets, driving an SSLEngine over the plain socket, with
+ * their network buffers taken from a pool kept here.
+ *
+ * @author dduggan
+ */
+public class DataChannelSecurity {
+
+	public static final String DEFAULT_PROTOCOLS = "TLSv1.2";
+
+	public static final String DEFAULT_CIPHER_SUITES = "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,"
+			+ "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,"
+			+ "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384,TLS_AES_128_GCM_SHA256,TLS_AES_256_GCM_SHA384";
+
+	/*
+	 * Buffers kept for reuse, of each kind.
+	 */
+	static final int POOL_SIZE = 64;
+
+	/*
+	 * Data connections in the clear.
+	 */
+	public static final DataChannelSecurity PLAIN = new DataChannelSecurity(null, false, null, null);
+
+	private final SSLContext context;
+
+	private final boolean clientMode;
+
+	private final String[] protocols;
+
+	private final String[] cipherSuites;
+
+	private final Queue<ByteBuffer> packetBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final Queue<ByteBuffer> applicationBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private DataChannelSecurity(SSLContext context, boolean clientMode, String protocols, String cipherSuites) {
+		this.context = context;
+		this.clientMode = clientMode;
+		this.protocols = protocols == null ? null : split(protocols);
+		this.cipherSuites = cipherSuites == null ? null : split(cipherSuites);
+	}
+
+	private static String[] split(String list) {
+		return list.trim().split("\\s*,\\s*");
+	}
+
+	private static KeyStore load(String path, char[] password) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+		try (InputStream in = Files.newInputStream(Paths.get(path))) {
+			store.load(in, password);
+		}
+		return store;
+	}
+
+	/*
+	 * The server side, with the key in a keystore (PKCS12 by default).
+	 */
+	public static DataChannelSecurity server(String keystore, char[] password, String protocols, String cipherSuites)
+			throws IOException {
+		try {
+			KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(load(keystore, password), password);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keys.getKeyManagers(), null, null);
+			return new DataChannelSecurity(context, false, protocols, cipherSuites);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot use keystore " + keystore, e);
+		}
+	}
+
+	/*
+	 * The client side, trusting the certificates in a truststore.
+	 */
+	public static DataChannelSecurity client(String truststore, char[] password, String protocols, String cipherSuites)
+			throws IOException {
+		try {
+			KeyStore store = load(truststore, password);
+			if (store.size() == 0) {
+				throw new IOException("No certificates in truststore " + truststore);
+			}
+			TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trust.init(store);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, trust.getTrustManagers(), null);
+			return new DataChannelSecurity(context, true, protocols, cipherSuites);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot use truststore " + truststore, e);
+		}
+	}
+
+	/*
+	 * The client's side for a server, which decides: tls is the client's TLS
+	 * context, or null if it has no truststore.
+	 */
+	public static DataChannelSecurity forServer(boolean serverSecure, DataChannelSecurity tls) throws IOException {
+		if (!serverSecure) {
+			return PLAIN;
+		} else if (tls == null) {
+			throw new IOException("Server requires TLS data connections: set client.truststore.");
+		}
+		return tls;
+	}
+
+	public boolean isSecure() {
+		return context != null;
+	}
+
+	/*
+	 * An unbound listener whose connections are secured. peerHost is the host
+	 * expected to connect, for the client's checks on the server's certificate.
+	 */
+	public ServerSocket newServerSocket(String peerHost) throws IOException {
+		if (!isSecure()) {
+			return new ServerSocket();
+		}
+		return new ServerSocket() {
+			@Override
+			public Socket accept() throws IOException {
+				return secure(super.accept(), peerHost);
+			}
+		};
+	}
+
+	/*
+	 * Secure a connected socket. The handshake happens on first use.
+	 */
+	public Socket secure(Socket socket, String peerHost) throws IOException {
+		if (!isSecure()) {
+			return socket;
+		}
+		SSLEngine engine;
+		if (clientMode) {
+			/*
+			 * The port only keys the session cache: every data connection to a host
+			 * can resume the same session.
+			 */
+			engine = context.createSSLEngine(peerHost, 0);
+			engine.setUseClientMode(true);
+			SSLParameters params = engine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(params);
+		} else {
+			engine = context.createSSLEngine();
+			engine.setUseClientMode(false);
+		}
+		if (protocols != null) {
+			engine.setEnabledProtocols(protocols);
+		}
+		if (cipherSuites != null) {
+			engine.setEnabledCipherSuites(supported(engine.getSupportedCipherSuites()));
+		}
+		try {
+			return new TlsSocket(socket, engine, this);
+		} catch (IOException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * The configured suites that this JDK supports.
+	 */
+	private String[] supported(String[] available) {
+		Set<String> names = new HashSet<String>(Arrays.asList(available));
+		return Arrays.stream(cipherSuites).filter(names::contains).toArray(String[]::new);
+	}
+
+	ByteBuffer acquirePacketBuffer(int size) {
+		return acquire(packetBuffers, size);
+	}
+
+	ByteBuffer acquireApplicationBuffer(int size) {
+		return acquire(applicationBuffers, size);
+	}
+
+	void releasePacketBuffer(ByteBuffer buffer) {
+		release(packetBuffers, buffer);
+	}
+
+	void releaseApplicationBuffer(ByteBuffer buffer) {
+		release(applicationBuffers, buffer);
+	}
+
+	private static ByteBuffer acquire(Queue<ByteBuffer> pool, int size) {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null || buffer.capacity() < size) {
+			buffer = ByteBuffer.allocate(size);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private static void release(Queue<ByteBuffer> pool, ByteBuffer buffer) {
+		if (pool.size() < POOL_SIZE) {
+			pool.offer(buffer);
+		}
+	}
+
+	public String toString() {
+		if (!isSecure()) {
+			return "plain";
+		}
+		return "TLS " + (protocols == null ? "default protocols" : String.join(",", protocols));
+	}
+
+}
@@ -0,0 +1,19 @@
+package edu.stevens.cs549.util;
+
+import java.io.IOException;
+
+/**
+ * Raised when the digest computed on one side of a transfer does not match
+ * the digest reported by the other side.
+ * 
+ * @author dduggan
+ */
+public class DigestMismatchException extends IOException {
+
+	static final long serialVersionUID = 0L;
+
+	public DigestMismatchException(String file, String expected, String actual) {
+		super("Checksum mismatch for " + file + " (expected " + expected + ", got " + actual + ")");
+	}
+
+}
@@ -0,0 +1,157 @@
+package edu.stevens.cs549.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream that reads ahead of its consumer on a thread of its own,
+ * rotating through a fixed set of buffers, so that a transfer can read from
+ * disk while it writes what it has already read to the network. An error
+ * reading the underlying stream is reported to the consumer once it has read
+ * everything before it.
+ *
+ * @author dduggan
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	private static class Chunk {
+		final byte[] data;
+		final int length;
+
+		Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private static final Chunk END = new Chunk(new byte[0], -1);
+
+	private final InputStream in;
+
+	private final BlockingQueue<byte[]> empty;
+
+	private final BlockingQueue<Chunk> full;
+
+	private final Thread reader;
+
+	private volatile IOException error = null;
+
+	private volatile boolean closed = false;
+
+	private Chunk current = null;
+
+	private int position = 0;
+
+	public ReadAheadInputStream(InputStream in, int buffers, int bufferSize) {
+		this.in = in;
+		this.empty = new ArrayBlockingQueue<byte[]>(buffers);
+		this.full = new ArrayBlockingQueue<Chunk>(buffers + 1);
+		for (int i = 0; i < buffers; i++) {
+			empty.add(new byte[bufferSize]);
+		}
+		this.reader = new Thread(this::fill, "read-ahead");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	private void fill() {
+		try {
+			while (!closed) {
+				byte[] data = empty.take();
+				int n = in.read(data);
+				if (n < 0) {
+					break;
+				}
+				full.put(new Chunk(data, n));
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			return;
+		}
+		/*
+		 * There is always room for the end marker, since every buffer is either
+		 * free or in the queue.
+		 */
+		full.add(END);
+	}
+
+	/*
+	 * The chunk with data to be read next, or END.
+	 */
+	private Chunk next() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (current != null && current != END && position == current.length) {
+			empty.add(current.data);
+			current = null;
+		}
+		if (current == null) {
+			try {
+				current = full.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for read-ahead");
+			}
+			position = 0;
+		}
+		if (current == END && error != null) {
+			throw error;
+		}
+		return current;
+	}
+
+	@Override
+	public int read() throws IOException {
+		Chunk chunk = next();
+		if (chunk == END) {
+			return -1;
+		}
+		return chunk.data[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		Chunk chunk = next();
+		if (chunk == END) {
+			return -1;
+		}
+		int n = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk.data, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null || current == END ? 0 : current.length - position;
+	}
+
+	/*
+	 * Stop the reader before closing the underlying stream, so that the two are
+	 * never used at once.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			in.close();
+		}
+	}
+
+}
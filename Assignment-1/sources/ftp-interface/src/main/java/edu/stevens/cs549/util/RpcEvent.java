@@ -0,0 +1,90 @@
+package edu.stevens.cs549.util;
+
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event covering one IServer remote call. On the server the duration is
+ * the time spent in the method; on the client it includes the RMI round trip.
+ * Unless a recording has enabled the event, a call runs with no event created,
+ * and the argument is only formatted for calls that are recorded.
+ * 
+ * @author dduggan
+ */
+@Name("edu.stevens.cs549.ftp.Rpc")
+@Label("FTP Control RPC")
+@Category({ "FTP", "Control" })
+@Description("An IServer remote method invocation")
+public class RpcEvent extends Event {
+
+	private static final EventType TYPE = EventType.getEventType(RpcEvent.class);
+
+	@Label("Side")
+	public String side;
+
+	@Label("Method")
+	public String method;
+
+	@Label("Argument")
+	public String argument;
+
+	@Label("Failed")
+	public boolean failed;
+
+	public RpcEvent(String side, String method, String argument) {
+		this.side = side;
+		this.method = method;
+		this.argument = argument;
+	}
+
+	/*
+	 * The body of a remote call, on either side.
+	 */
+	public interface Call<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	public interface Action<E extends Exception> {
+		void run() throws E;
+	}
+
+	/*
+	 * Run a call as an event, marked failed if the call throws. argument may be
+	 * null for a call without one.
+	 */
+	public static <T, E extends Exception> T record(String side, String method, Supplier<String> argument,
+			Call<T, E> call) throws E {
+		if (!TYPE.isEnabled()) {
+			return call.call();
+		}
+		RpcEvent event = new RpcEvent(side, method, null);
+		event.begin();
+		try {
+			return call.call();
+		} catch (Exception e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.argument = argument == null ? null : argument.get();
+				event.commit();
+			}
+		}
+	}
+
+	public static <E extends Exception> void record(String side, String method, Supplier<String> argument,
+			Action<E> action) throws E {
+		record(side, method, argument, () -> {
+			action.run();
+			return null;
+		});
+	}
+
+}
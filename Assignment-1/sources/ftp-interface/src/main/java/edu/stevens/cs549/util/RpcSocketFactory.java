@@ -0,0 +1,171 @@
+package edu.stevens.cs549.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Sockets for the RMI control connections, on both sides. The server exports
+ * its objects (and the registry) with one of these as both the server and the
+ * client socket factory, so the stubs that clients receive carry the server's
+ * settings with them. A client can install its own settings at start-up,
+ * which then take precedence over the ones in the stubs and are also used to
+ * reach the registry.
+ *
+ * The settings are the accept backlog, TCP_NODELAY, keep-alive, connect and
+ * read timeouts, and socket buffer sizes. A read timeout or buffer size of 0
+ * leaves the default.
+ *
+ * Objects exported on the same port must have equal factories, so this class
+ * is a value.
+ *
+ * @author dduggan
+ */
+public class RpcSocketFactory extends RMISocketFactory implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_BACKLOG = 128;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+	private final int backlog;
+
+	private final boolean noDelay;
+
+	private final boolean keepAlive;
+
+	private final int connectTimeoutMillis;
+
+	private final int readTimeoutMillis;
+
+	private final int bufferSize;
+
+	/*
+	 * Settings installed by a client, in place of those carried by stubs.
+	 */
+	private static volatile RpcSocketFactory local = null;
+
+	public RpcSocketFactory(int backlog, boolean noDelay, boolean keepAlive, int connectTimeoutMillis,
+			int readTimeoutMillis, int bufferSize) {
+		this.backlog = backlog;
+		this.noDelay = noDelay;
+		this.keepAlive = keepAlive;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.bufferSize = bufferSize;
+	}
+
+	/*
+	 * The settings in a properties file, under keys such as server.rpcBacklog.
+	 */
+	public static RpcSocketFactory fromProperties(Properties props, String prefix) {
+		return new RpcSocketFactory(getInt(props, prefix + "rpcBacklog", DEFAULT_BACKLOG),
+				Boolean.parseBoolean(get(props, prefix + "rpcNoDelay", "true")),
+				Boolean.parseBoolean(get(props, prefix + "rpcKeepAlive", "true")),
+				getInt(props, prefix + "rpcConnectTimeoutMillis", DEFAULT_CONNECT_TIMEOUT_MILLIS),
+				getInt(props, prefix + "rpcReadTimeoutMillis", 0), getInt(props, prefix + "rpcBufferBytes", 0));
+	}
+
+	private static String get(Properties props, String key, String defaultValue) {
+		String value = props.getProperty(key);
+		return (value == null || value.isEmpty() || value.startsWith("${")) ? defaultValue : value.trim();
+	}
+
+	private static int getInt(Properties props, String key, int defaultValue) {
+		return Integer.parseInt(get(props, key, Integer.toString(defaultValue)));
+	}
+
+	/*
+	 * Client start-up: use these settings for all control connections, including
+	 * those to registries.
+	 */
+	public static void install(RpcSocketFactory factory) throws IOException {
+		local = factory;
+		RMISocketFactory.setSocketFactory(factory);
+	}
+
+	private void configure(Socket socket) throws IOException {
+		socket.setTcpNoDelay(noDelay);
+		socket.setKeepAlive(keepAlive);
+		if (readTimeoutMillis > 0) {
+			socket.setSoTimeout(readTimeoutMillis);
+		}
+		if (bufferSize > 0) {
+			socket.setSendBufferSize(bufferSize);
+			socket.setReceiveBufferSize(bufferSize);
+		}
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		RpcSocketFactory settings = local != null ? local : this;
+		Socket socket = new Socket();
+		try {
+			if (settings.bufferSize > 0) {
+				socket.setReceiveBufferSize(settings.bufferSize);
+			}
+			socket.connect(new InetSocketAddress(host, port), settings.connectTimeoutMillis);
+			settings.configure(socket);
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public ServerSocket createServerSocket(int port) throws IOException {
+		ServerSocket listener = new ServerSocket() {
+			@Override
+			public Socket accept() throws IOException {
+				Socket socket = super.accept();
+				try {
+					configure(socket);
+				} catch (IOException e) {
+					socket.close();
+					throw e;
+				}
+				return socket;
+			}
+		};
+		try {
+			if (bufferSize > 0) {
+				listener.setReceiveBufferSize(bufferSize);
+			}
+			listener.bind(new InetSocketAddress(port), backlog);
+			return listener;
+		} catch (IOException e) {
+			listener.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof RpcSocketFactory)) {
+			return false;
+		}
+		RpcSocketFactory other = (RpcSocketFactory) o;
+		return backlog == other.backlog && noDelay == other.noDelay && keepAlive == other.keepAlive
+				&& connectTimeoutMillis == other.connectTimeoutMillis && readTimeoutMillis == other.readTimeoutMillis
+				&& bufferSize == other.bufferSize;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(backlog, noDelay, keepAlive, connectTimeoutMillis, readTimeoutMillis, bufferSize);
+	}
+
+	public String toString() {
+		return "backlog=" + backlog + " nodelay=" + noDelay + " keepalive=" + keepAlive + " connect="
+				+ connectTimeoutMillis + "ms read=" + (readTimeoutMillis == 0 ? "none" : readTimeoutMillis + "ms")
+				+ " buffer=" + (bufferSize == 0 ? "default" : bufferSize);
+	}
+
+}
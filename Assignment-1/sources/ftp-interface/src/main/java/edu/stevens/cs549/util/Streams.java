@@ -0,0 +1,84 @@
+package edu.stevens.cs549.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The copy loop shared by every transfer on the client and the server.
+ * 
+ * @author dduggan
+ */
+public class Streams {
+
+	/*
+	 * For copies that are not tuned; see TransferTuner for data connections.
+	 */
+	public static final int BUFFER_SIZE = TransferTuner.DEFAULT_CHUNK;
+
+	/*
+	 * Copy until end of stream, returning the number of bytes copied. The caller
+	 * is responsible for flushing and closing both streams.
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] data = new byte[BUFFER_SIZE];
+		long total = 0;
+		int n;
+		while ((n = in.read(data)) != -1) {
+			out.write(data, 0, n);
+			total += n;
+		}
+		return total;
+	}
+
+	/*
+	 * A stream that ends after at most limit bytes of the underlying stream.
+	 */
+	public static InputStream limit(InputStream in, long limit) {
+		return new FilterInputStream(in) {
+			private long remaining = limit;
+
+			@Override
+			public int read() throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				int b = super.read();
+				if (b != -1) {
+					remaining--;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				int n = super.read(b, off, (int) Math.min(len, remaining));
+				if (n > 0) {
+					remaining -= n;
+				}
+				return n;
+			}
+		};
+	}
+
+	/*
+	 * Pipelines for transfers that pass through user space: a file read on a
+	 * thread of its own while the transfer writes to the network, or written on
+	 * one while the transfer reads from the network, each with PIPELINE_BUFFERS
+	 * rotating buffers.
+	 */
+	public static final int PIPELINE_BUFFERS = 4;
+
+	public static InputStream readAhead(InputStream in) {
+		return new ReadAheadInputStream(in, PIPELINE_BUFFERS, BUFFER_SIZE);
+	}
+
+	public static OutputStream writeBehind(OutputStream out) {
+		return new WriteBehindOutputStream(out, PIPELINE_BUFFERS, BUFFER_SIZE);
+	}
+
+}
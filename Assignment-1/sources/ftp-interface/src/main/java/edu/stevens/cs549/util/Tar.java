@@ -0,0 +1,416 @@
+package edu.stevens.cs549.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal streaming tar (POSIX ustar) support: regular files and directories,
+ * with pax extended headers for long names and large files. Archives are
+ * written and read in one pass, without seeking, so that they can go straight
+ * onto or off a data connection.
+ *
+ * @author dduggan
+ */
+public class Tar {
+
+	public static final int BLOCK = 512;
+
+	private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+	/*
+	 * The largest pax or long-name header a reader accepts: they are read into
+	 * memory, and their size comes from the archive.
+	 */
+	public static final int MAX_EXTENDED_HEADER = 64 * 1024;
+
+	public static class Entry {
+		private final String name;
+		private final long size;
+		private final long modified;
+		private final boolean directory;
+
+		public Entry(String name, long size, long modified, boolean directory) {
+			this.name = name;
+			this.size = size;
+			this.modified = modified;
+			this.directory = directory;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/*
+		 * Modification time, in milliseconds since the epoch.
+		 */
+		public long getModified() {
+			return modified;
+		}
+
+		public boolean isDirectory() {
+			return directory;
+		}
+	}
+
+	/*
+	 * *****************************************************************************
+	 */
+
+	public static class Writer {
+
+		private final OutputStream out;
+
+		public Writer(OutputStream out) {
+			this.out = out;
+		}
+
+		public void putDirectory(String name, long modified) throws IOException {
+			header(name.endsWith("/") ? name : name + "/", 0, modified, '5');
+		}
+
+		/*
+		 * Write a file entry of the given size, with contents from in. If in ends
+		 * early the entry is padded with zeros, so the archive stays well formed.
+		 */
+		public long putFile(String name, long size, long modified, InputStream in) throws IOException {
+			header(name, size, modified, '0');
+			long n = Streams.copy(Streams.limit(in, size), out);
+			for (long i = n; i < size; i++) {
+				out.write(0);
+			}
+			pad(size);
+			return n;
+		}
+
+		public void putFile(String name, long modified, byte[] contents) throws IOException {
+			header(name, contents.length, modified, '0');
+			out.write(contents);
+			pad(contents.length);
+		}
+
+		/*
+		 * The end-of-archive marker.
+		 */
+		public void finish() throws IOException {
+			out.write(new byte[2 * BLOCK]);
+			out.flush();
+		}
+
+		private void pad(long size) throws IOException {
+			int rem = (int) (size % BLOCK);
+			if (rem != 0) {
+				out.write(new byte[BLOCK - rem]);
+			}
+		}
+
+		private void header(String name, long size, long modified, char type) throws IOException {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			if (nameBytes.length > 100 || size > MAX_OCTAL_SIZE) {
+				StringBuilder records = new StringBuilder();
+				if (nameBytes.length > 100) {
+					records.append(paxRecord("path", name));
+				}
+				if (size > MAX_OCTAL_SIZE) {
+					records.append(paxRecord("size", Long.toString(size)));
+				}
+				byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+				out.write(block("PaxHeader", pax.length, modified, 'x'));
+				out.write(pax);
+				pad(pax.length);
+			}
+			out.write(block(name, Math.min(size, MAX_OCTAL_SIZE), modified, type));
+		}
+
+		private static String paxRecord(String key, String value) {
+			int body = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+			int length = body + Integer.toString(body).length();
+			if (Integer.toString(length).length() != Integer.toString(body).length()) {
+				length++;
+			}
+			return length + " " + key + "=" + value + "\n";
+		}
+
+		private static byte[] block(String name, long size, long modified, char type) {
+			byte[] header = new byte[BLOCK];
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+			octal(header, 100, 8, type == '5' ? 0755 : 0644);
+			octal(header, 108, 8, 0);
+			octal(header, 116, 8, 0);
+			octal(header, 124, 12, size);
+			octal(header, 136, 12, modified / 1000);
+			header[156] = (byte) type;
+			System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+			header[263] = '0';
+			header[264] = '0';
+			for (int i = 148; i < 156; i++) {
+				header[i] = ' ';
+			}
+			octal(header, 148, 7, checksum(header));
+			return header;
+		}
+
+		private static void octal(byte[] header, int offset, int length, long value) {
+			String digits = Long.toOctalString(value);
+			int pad = length - 1 - digits.length();
+			for (int i = 0; i < pad; i++) {
+				header[offset + i] = '0';
+			}
+			System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset + pad, digits.length());
+			header[offset + length - 1] = 0;
+		}
+	}
+
+	private static long checksum(byte[] header) {
+		long sum = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+		}
+		return sum;
+	}
+
+	/*
+	 * *****************************************************************************
+	 */
+
+	public static class Reader {
+
+		private final InputStream in;
+
+		/*
+		 * Bytes of the current entry not yet read, and its padding.
+		 */
+		private long remaining = 0;
+
+		private long padding = 0;
+
+		public Reader(InputStream in) {
+			this.in = in;
+		}
+
+		/*
+		 * The next file or directory entry, or null at the end of the archive.
+		 * Entries of other types are skipped.
+		 */
+		public Entry next() throws IOException {
+			String longName = null;
+			long longSize = -1;
+			while (true) {
+				skip(remaining + padding);
+				remaining = padding = 0;
+				byte[] header = new byte[BLOCK];
+				if (!readBlock(header)) {
+					return null;
+				}
+				boolean empty = true;
+				for (byte b : header) {
+					if (b != 0) {
+						empty = false;
+						break;
+					}
+				}
+				if (empty) {
+					return null;
+				}
+				if (checksum(header) != parseOctal(header, 148, 8)) {
+					throw new IOException("Bad tar header checksum");
+				}
+				char type = (char) header[156];
+				long size = parseOctal(header, 124, 12);
+				remaining = size;
+				padding = (BLOCK - size % BLOCK) % BLOCK;
+				if (type == 'x' || type == 'L') {
+					if (size > MAX_EXTENDED_HEADER) {
+						throw new IOException("Tar extended header too large: " + size + " bytes");
+					}
+					byte[] data = new byte[(int) size];
+					readFully(data);
+					remaining = 0;
+					if (type == 'L') {
+						longName = string(data, 0, data.length);
+					} else {
+						String[] pax = parsePax(data);
+						longName = pax[0] != null ? pax[0] : longName;
+						longSize = pax[1] != null ? parseSize(pax[1]) : longSize;
+					}
+					continue;
+				}
+				String name = longName;
+				if (name == null) {
+					name = string(header, 0, 100);
+					if (string(header, 257, 5).equals("ustar") && header[345] != 0) {
+						name = string(header, 345, 155) + "/" + name;
+					}
+				}
+				if (longSize >= 0) {
+					size = longSize;
+					remaining = size;
+					padding = (BLOCK - size % BLOCK) % BLOCK;
+				}
+				long modified = parseOctal(header, 136, 12) * 1000;
+				if (type == '5') {
+					return new Entry(name, 0, modified, true);
+				} else if (type == '0' || type == 0 || type == '7') {
+					return new Entry(name, size, modified, false);
+				}
+				longName = null;
+				longSize = -1;
+			}
+		}
+
+		/*
+		 * The contents of the current entry.
+		 */
+		public InputStream contents() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					if (remaining <= 0) {
+						return -1;
+					}
+					int b = in.read();
+					if (b < 0) {
+						throw new EOFException("Truncated tar entry");
+					}
+					remaining--;
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (remaining <= 0) {
+						return -1;
+					}
+					int n = in.read(b, off, (int) Math.min(len, remaining));
+					if (n < 0) {
+						throw new EOFException("Truncated tar entry");
+					}
+					remaining -= n;
+					return n;
+				}
+			};
+		}
+
+		private boolean readBlock(byte[] block) throws IOException {
+			int n = in.readNBytes(block, 0, block.length);
+			if (n == 0) {
+				return false;
+			} else if (n < block.length) {
+				throw new EOFException("Truncated tar header");
+			}
+			return true;
+		}
+
+		private void readFully(byte[] data) throws IOException {
+			if (in.readNBytes(data, 0, data.length) < data.length) {
+				throw new EOFException("Truncated tar entry");
+			}
+		}
+
+		/*
+		 * Skipped bytes are read rather than skipped, so that a stream that
+		 * digests what it reads sees them too.
+		 */
+		private void skip(long n) throws IOException {
+			byte[] discard = new byte[(int) Math.min(n, 8 * BLOCK)];
+			while (n > 0) {
+				int read = in.read(discard, 0, (int) Math.min(n, discard.length));
+				if (read < 0) {
+					throw new EOFException("Truncated tar entry");
+				}
+				n -= read;
+			}
+		}
+
+		/*
+		 * The path and size from pax records, each "length key=value\n" with the
+		 * length in bytes including itself.
+		 */
+		private static String[] parsePax(byte[] records) throws IOException {
+			String[] result = new String[2];
+			int i = 0;
+			while (i < records.length) {
+				int space = i;
+				while (space < records.length && records[space] != ' ') {
+					space++;
+				}
+				int length;
+				try {
+					length = Integer.parseInt(new String(records, i, space - i, StandardCharsets.US_ASCII));
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad pax record length");
+				}
+				if (space == records.length || length <= space - i + 1 || length > records.length - i
+						|| records[i + length - 1] != '\n') {
+					throw new IOException("Bad pax record length");
+				}
+				String record = new String(records, space + 1, i + length - space - 2, StandardCharsets.UTF_8);
+				int eq = record.indexOf('=');
+				if (record.startsWith("path=")) {
+					result[0] = record.substring(eq + 1);
+				} else if (record.startsWith("size=")) {
+					result[1] = record.substring(eq + 1);
+				}
+				i += length;
+			}
+			return result;
+		}
+
+		private static long parseSize(String value) throws IOException {
+			try {
+				long size = Long.parseLong(value);
+				if (size >= 0) {
+					return size;
+				}
+			} catch (NumberFormatException e) {
+				;
+			}
+			throw new IOException("Bad pax size: " + value);
+		}
+
+		private static String string(byte[] b, int offset, int length) {
+			int end = offset;
+			while (end < offset + length && b[end] != 0) {
+				end++;
+			}
+			return new String(b, offset, end - offset, StandardCharsets.UTF_8);
+		}
+
+		private static long parseOctal(byte[] b, int offset, int length) {
+			int i = offset;
+			int end = offset + length;
+			while (i < end && (b[i] == ' ' || b[i] == 0)) {
+				i++;
+			}
+			long value = 0;
+			for (; i < end && b[i] >= '0' && b[i] <= '7'; i++) {
+				value = value * 8 + (b[i] - '0');
+			}
+			return value;
+		}
+	}
+
+	/*
+	 * Whether a name from an archive is safe to unpack below a directory: relative,
+	 * and without any ".." components.
+	 */
+	public static boolean safeName(String name) {
+		if (name.isEmpty() || name.startsWith("/") || name.contains("\\")) {
+			return false;
+		}
+		for (String part : name.split("/")) {
+			if ("..".equals(part)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
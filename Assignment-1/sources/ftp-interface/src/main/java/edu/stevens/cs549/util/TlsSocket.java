@@ -0,0 +1,573 @@
+package edu.stevens.cs549.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A data connection encrypted with TLS: an SSLEngine driven over a plain
+ * socket, presented as a socket so that transfers use it as they would any
+ * other. The handshake happens on first use, so that a listener can accept
+ * connections without waiting on them.
+ *
+ * One thread may read while another writes. Reads hold the read lock and
+ * writes the write lock; the handshake, and a read that has to answer the
+ * peer, take the write lock as well, always after the read lock.
+ *
+ * Closing finishes the handshake if the connection was never used, e.g. for
+ * an empty file, so that the peer sees close_notify rather than a broken
+ * handshake. Shutting down output sends close_notify; under TLS 1.3 reads go
+ * on, but a TLS 1.2 peer answers with its own close_notify, which ends input
+ * too. Shutting down input discards whatever else arrives.
+ *
+ * @author dduggan
+ */
+class TlsSocket extends Socket {
+
+	private static Logger log = Logger.getLogger(TlsSocket.class.getCanonicalName());
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/*
+	 * How long close waits for a read or write in progress, or for the peer to
+	 * finish the handshake, before closing the connection under them.
+	 */
+	static final int CLOSE_WAIT_MILLIS = 5000;
+
+	private final Socket socket;
+
+	private final SSLEngine engine;
+
+	private final DataChannelSecurity security;
+
+	private final InputStream rawIn;
+
+	private final OutputStream rawOut;
+
+	private final ReentrantLock readLock = new ReentrantLock();
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/*
+	 * Records from the network, filled from position (guarded by the read lock).
+	 */
+	private ByteBuffer netIn;
+
+	/*
+	 * Decrypted data not yet read, read from position (guarded by the read lock).
+	 */
+	private ByteBuffer appIn;
+
+	/*
+	 * Records for the network (guarded by the write lock).
+	 */
+	private ByteBuffer netOut;
+
+	private volatile boolean handshaken = false;
+
+	private boolean inboundDone = false;
+
+	private volatile boolean closed = false;
+
+	private final InputStream in = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = TlsSocket.this.read(b, 0, 1);
+			return n < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return TlsSocket.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			ByteBuffer buffer = appIn;
+			return buffer == null ? 0 : buffer.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsSocket.this.close();
+		}
+	};
+
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			TlsSocket.this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			TlsSocket.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsSocket.this.close();
+		}
+	};
+
+	TlsSocket(Socket socket, SSLEngine engine, DataChannelSecurity security) throws IOException {
+		this.socket = socket;
+		this.engine = engine;
+		this.security = security;
+		this.rawIn = socket.getInputStream();
+		this.rawOut = socket.getOutputStream();
+		SSLSession session = engine.getSession();
+		this.netIn = security.acquirePacketBuffer(session.getPacketBufferSize());
+		this.netOut = security.acquirePacketBuffer(session.getPacketBufferSize());
+		this.appIn = security.acquireApplicationBuffer(session.getApplicationBufferSize());
+		this.appIn.flip();
+	}
+
+	/*
+	 * *****************************************************************************
+	 * The engine.
+	 */
+
+	private void handshake() throws IOException {
+		if (handshaken) {
+			return;
+		}
+		readLock.lock();
+		writeLock.lock();
+		try {
+			if (handshaken) {
+				return;
+			}
+			ensureOpen();
+			long start = System.currentTimeMillis();
+			engine.beginHandshake();
+			HandshakeStatus status = engine.getHandshakeStatus();
+			while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+				switch (status) {
+				case NEED_WRAP:
+					status = wrap(EMPTY).getHandshakeStatus();
+					break;
+				case NEED_UNWRAP:
+				case NEED_UNWRAP_AGAIN:
+					SSLEngineResult result = unwrap();
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !fill()) {
+						throw new EOFException("Connection closed during TLS handshake");
+					} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new SSLException("TLS closed during handshake");
+					}
+					status = result.getHandshakeStatus();
+					break;
+				case NEED_TASK:
+					runTasks();
+					status = engine.getHandshakeStatus();
+					break;
+				default:
+					throw new IllegalStateException("Handshake status " + status);
+				}
+			}
+			handshaken = true;
+			SSLSession session = engine.getSession();
+			log.fine((session.getCreationTime() < start ? "Resumed " : "New ") + session.getProtocol() + " session, "
+					+ session.getCipherSuite());
+		} finally {
+			writeLock.unlock();
+			readLock.unlock();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/*
+	 * Encrypt one record from src and send it. Needs the write lock.
+	 */
+	private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+		netOut.clear();
+		SSLEngineResult result = engine.wrap(src, netOut);
+		if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+			throw new SSLException("TLS record larger than packet buffer");
+		}
+		netOut.flip();
+		rawOut.write(netOut.array(), netOut.arrayOffset(), netOut.limit());
+		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+			runTasks();
+		}
+		return result;
+	}
+
+	/*
+	 * Decrypt what has arrived into appIn, leaving both buffers as they were
+	 * found. Needs the read lock.
+	 */
+	private SSLEngineResult unwrap() throws IOException {
+		netIn.flip();
+		appIn.compact();
+		SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			netIn.compact();
+			appIn.flip();
+		}
+		if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+			throw new SSLException("TLS record larger than application buffer");
+		}
+		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+			runTasks();
+		}
+		return result;
+	}
+
+	/*
+	 * Read more from the network, returning false at end of stream. Needs the
+	 * read lock.
+	 */
+	private boolean fill() throws IOException {
+		if (!netIn.hasRemaining()) {
+			throw new SSLException("TLS record larger than packet buffer");
+		}
+		int n = rawIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+		if (n < 0) {
+			return false;
+		}
+		netIn.position(netIn.position() + n);
+		return true;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Data.
+	 */
+
+	private int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		handshake();
+		readLock.lock();
+		try {
+			ensureOpen();
+			while (!appIn.hasRemaining()) {
+				if (inboundDone) {
+					return -1;
+				}
+				SSLEngineResult result = unwrap();
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					inboundDone = true;
+				} else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !fill()) {
+					/*
+					 * The connection ended without close_notify: the data may have been
+					 * truncated.
+					 */
+					engine.closeInbound();
+				}
+				if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+					/*
+					 * The peer expects an answer, e.g. to close_notify or a key update.
+					 */
+					writeLock.lock();
+					try {
+						if (!closed) {
+							wrap(EMPTY);
+						}
+					} finally {
+						writeLock.unlock();
+					}
+				}
+			}
+			int n = Math.min(len, appIn.remaining());
+			appIn.get(b, off, n);
+			return n;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		handshake();
+		writeLock.lock();
+		try {
+			ensureOpen();
+			ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while (src.hasRemaining()) {
+				if (wrap(src).getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SocketException("TLS connection closed");
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/*
+	 * Send close_notify, then close the connection. Once no read or write can
+	 * be using the buffers, they go back to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			closeNotify();
+		} finally {
+			closed = true;
+			socket.close();
+			readLock.lock();
+			writeLock.lock();
+			try {
+				if (netIn != null) {
+					security.releasePacketBuffer(netIn);
+					security.releasePacketBuffer(netOut);
+					security.releaseApplicationBuffer(appIn);
+					netIn = netOut = appIn = null;
+				}
+			} finally {
+				writeLock.unlock();
+				readLock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * Finish the handshake if it has not happened, then send close_notify. A read
+	 * or write that holds the connection for longer than CLOSE_WAIT_MILLIS is
+	 * taken to be stuck, and close goes ahead without it.
+	 */
+	private void closeNotify() {
+		try {
+			if (!handshaken) {
+				if (!readLock.tryLock(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+					log.fine("Closing TLS connection during a read");
+					return;
+				}
+				try {
+					if (!writeLock.tryLock(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+						log.fine("Closing TLS connection during a write");
+						return;
+					}
+					int timeout = socket.getSoTimeout();
+					try {
+						if (timeout == 0 || timeout > CLOSE_WAIT_MILLIS) {
+							socket.setSoTimeout(CLOSE_WAIT_MILLIS);
+						}
+						handshake();
+					} finally {
+						socket.setSoTimeout(timeout);
+						writeLock.unlock();
+					}
+				} finally {
+					readLock.unlock();
+				}
+			}
+			if (!writeLock.tryLock(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+				log.fine("Closing TLS connection during a write");
+				return;
+			}
+			try {
+				sendCloseNotify();
+			} finally {
+				writeLock.unlock();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.fine("Could not send close_notify: " + e);
+		}
+	}
+
+	/*
+	 * Needs the write lock.
+	 */
+	private void sendCloseNotify() throws IOException {
+		engine.closeOutbound();
+		while (!engine.isOutboundDone()) {
+			wrap(EMPTY);
+		}
+		rawOut.flush();
+	}
+
+	/*
+	 * *****************************************************************************
+	 * The rest is the plain socket's.
+	 */
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		ensureOpen();
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		ensureOpen();
+		return out;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return socket.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return socket.isBound();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return socket.getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return socket.getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return socket.getLocalSocketAddress();
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		socket.setSoTimeout(timeout);
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return socket.getSoTimeout();
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		socket.setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return socket.getTcpNoDelay();
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) throws SocketException {
+		socket.setKeepAlive(on);
+	}
+
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return socket.getKeepAlive();
+	}
+
+	@Override
+	public void setSendBufferSize(int size) throws SocketException {
+		socket.setSendBufferSize(size);
+	}
+
+	@Override
+	public int getSendBufferSize() throws SocketException {
+		return socket.getSendBufferSize();
+	}
+
+	@Override
+	public void setReceiveBufferSize(int size) throws SocketException {
+		socket.setReceiveBufferSize(size);
+	}
+
+	@Override
+	public int getReceiveBufferSize() throws SocketException {
+		return socket.getReceiveBufferSize();
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+		socket.setSoLinger(on, linger);
+	}
+
+	/*
+	 * Further reads see end of stream. The peer's close_notify is not waited
+	 * for, so the engine's inbound side is left open.
+	 */
+	@Override
+	public void shutdownInput() throws IOException {
+		ensureOpen();
+		socket.shutdownInput();
+		readLock.lock();
+		try {
+			inboundDone = true;
+			if (appIn != null) {
+				appIn.position(appIn.limit());
+			}
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/*
+	 * Send close_notify, so the peer reads end of stream. Reads go on until the
+	 * peer closes its side, which a TLS 1.2 peer does straight away.
+	 */
+	@Override
+	public void shutdownOutput() throws IOException {
+		handshake();
+		writeLock.lock();
+		try {
+			ensureOpen();
+			sendCloseNotify();
+		} finally {
+			writeLock.unlock();
+		}
+		socket.shutdownOutput();
+	}
+
+	public String toString() {
+		return "TLS " + socket;
+	}
+
+}
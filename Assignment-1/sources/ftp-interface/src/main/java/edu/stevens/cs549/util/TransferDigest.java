@@ -0,0 +1,128 @@
+package edu.stevens.cs549.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * A checksum or message digest computed inline as data passes through a
+ * transfer, so that integrity checking does not need a second pass over the
+ * file. The algorithm is either one of the java.util.zip checksums (CRC32C,
+ * CRC32, Adler32) or any MessageDigest algorithm (e.g. SHA-256).
+ * 
+ * @author dduggan
+ */
+public class TransferDigest {
+
+	public static final String DEFAULT_ALGORITHM = "CRC32C";
+
+	private final String algorithm;
+
+	private final Checksum checksum;
+
+	private final MessageDigest messageDigest;
+
+	private TransferDigest(String algorithm, Checksum checksum, MessageDigest messageDigest) {
+		this.algorithm = algorithm;
+		this.checksum = checksum;
+		this.messageDigest = messageDigest;
+	}
+
+	public static TransferDigest create(String algorithm) {
+		if ("CRC32C".equalsIgnoreCase(algorithm)) {
+			return new TransferDigest(algorithm, new CRC32C(), null);
+		} else if ("CRC32".equalsIgnoreCase(algorithm)) {
+			return new TransferDigest(algorithm, new CRC32(), null);
+		} else if ("Adler32".equalsIgnoreCase(algorithm)) {
+			return new TransferDigest(algorithm, new Adler32(), null);
+		}
+		try {
+			return new TransferDigest(algorithm, null, MessageDigest.getInstance(algorithm));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm, e);
+		}
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public void update(byte[] b, int off, int len) {
+		if (checksum != null) {
+			checksum.update(b, off, len);
+		} else {
+			messageDigest.update(b, off, len);
+		}
+	}
+
+	/*
+	 * The digest of everything seen so far, as a hex string. For a message
+	 * digest this finishes the computation, so call it once at the end.
+	 */
+	public String value() {
+		if (checksum != null) {
+			return Long.toHexString(checksum.getValue());
+		} else {
+			return HexFormat.of().formatHex(messageDigest.digest());
+		}
+	}
+
+	/*
+	 * Digest every byte read from the stream.
+	 */
+	public InputStream wrap(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					update(new byte[] { (byte) b }, 0, 1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					update(b, off, n);
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				throw new IOException("Cannot skip a digested stream.");
+			}
+		};
+	}
+
+	/*
+	 * Digest every byte written to the stream.
+	 */
+	public OutputStream wrap(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				update(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				update(b, off, len);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,48 @@
+package edu.stevens.cs549.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event covering one file transfer over a data connection, from the
+ * first byte read to the last byte flushed. The event duration is the
+ * transfer time.
+ * 
+ * @author dduggan
+ */
+@Name("edu.stevens.cs549.ftp.Transfer")
+@Label("FTP Transfer")
+@Category({ "FTP", "Transfer" })
+@Description("A file transfer over an FTP data connection")
+public class TransferEvent extends Event {
+
+	@Label("Side")
+	@Description("Whether the event was emitted by the client or the server")
+	public String side;
+
+	@Label("Operation")
+	public String operation;
+
+	@Label("File")
+	public String file;
+
+	@Label("Mode")
+	@Description("Mode of the server for this transfer (ACTIVE or PASSIVE)")
+	public String mode;
+
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+
+	public TransferEvent(String side, String operation, String file, String mode) {
+		this.side = side;
+		this.operation = operation;
+		this.file = file;
+		this.mode = mode;
+	}
+
+}
@@ -0,0 +1,333 @@
+package edu.stevens.cs549.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Adaptive tuning of data transfers, kept per peer. A transfer measures the
+ * round-trip time of its connection when it connects, and its throughput as it
+ * copies. It adjusts its copy chunk size as it goes, and when it finishes it
+ * leaves settings for the next transfer with the same peer: the chunk size it
+ * settled on, socket buffers sized to the bandwidth-delay product, and for
+ * parallel uploads the stream count.
+ *
+ * Socket buffers are left to the operating system, which tunes them itself,
+ * until a path turns out to need more than MIN_SOCKET_BUFFER.
+ *
+ * Only the side that connects can time the handshake. A connection accepted
+ * from a peer (the server in passive mode, the client in active mode) uses
+ * the round-trip time last measured by a connect to that peer, and until
+ * there is one it tunes the chunk size but leaves socket buffers alone.
+ *
+ * @author dduggan
+ */
+public class TransferTuner {
+
+	private static Logger log = Logger.getLogger(TransferTuner.class.getCanonicalName());
+
+	public static final int MIN_CHUNK = 4 * 1024;
+
+	public static final int MAX_CHUNK = 1024 * 1024;
+
+	public static final int DEFAULT_CHUNK = 64 * 1024;
+
+	public static final int MIN_SOCKET_BUFFER = 64 * 1024;
+
+	public static final int MAX_SOCKET_BUFFER = 16 * 1024 * 1024;
+
+	public static final int MAX_STREAMS = 16;
+
+	/*
+	 * How long the copy loop runs with a chunk size before comparing its
+	 * throughput with the last, and by how much it must improve to count.
+	 */
+	static final long SAMPLE_NANOS = 200_000_000L;
+
+	static final double IMPROVEMENT = 1.05;
+
+	/*
+	 * What a transfer with a peer should start with, and what the last one saw.
+	 * A socket buffer of 0 leaves the operating system's default.
+	 */
+	public static class Settings {
+		private final int chunkSize;
+		private final int socketBuffer;
+		private final int streams;
+		private final int bestStreams;
+		private final double streamsBytesPerSecond;
+		private final long rttNanos;
+		private final double bytesPerSecond;
+
+		Settings(int chunkSize, int socketBuffer, int streams, int bestStreams, double streamsBytesPerSecond,
+				long rttNanos, double bytesPerSecond) {
+			this.chunkSize = chunkSize;
+			this.socketBuffer = socketBuffer;
+			this.streams = streams;
+			this.bestStreams = bestStreams;
+			this.streamsBytesPerSecond = streamsBytesPerSecond;
+			this.rttNanos = rttNanos;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		public int getSocketBuffer() {
+			return socketBuffer;
+		}
+
+		public int getStreams() {
+			return streams;
+		}
+
+		/*
+		 * Round-trip time, -1 if not yet measured.
+		 */
+		public long getRttNanos() {
+			return rttNanos;
+		}
+
+		public double getBytesPerSecond() {
+			return bytesPerSecond;
+		}
+
+		public String toString() {
+			return "chunk=" + chunkSize + " buffer=" + (socketBuffer == 0 ? "default" : socketBuffer) + " streams="
+					+ streams + " rtt=" + (rttNanos < 0 ? "?" : (rttNanos / 1000) + "us") + " rate="
+					+ (long) bytesPerSecond + "B/s";
+		}
+	}
+
+	private final Map<String, Settings> peers = new ConcurrentHashMap<String, Settings>();
+
+	private final Settings initial;
+
+	public TransferTuner(int defaultStreams) {
+		this.initial = new Settings(DEFAULT_CHUNK, 0, defaultStreams, defaultStreams, 0, -1, 0);
+	}
+
+	public Settings settings(String peer) {
+		return peers.getOrDefault(peer, initial);
+	}
+
+	public Transfer begin(String peer) {
+		return new Transfer(peer, settings(peer));
+	}
+
+	/*
+	 * A listening socket's receive buffer must be set before it is bound, so
+	 * that accepted connections can use a large window.
+	 */
+	public static void configure(ServerSocket listener, Settings settings) throws SocketException {
+		if (settings.socketBuffer > 0) {
+			listener.setReceiveBufferSize(settings.socketBuffer);
+		}
+	}
+
+	public static void configure(Socket socket, Settings settings) throws SocketException {
+		if (settings.socketBuffer > 0) {
+			socket.setSendBufferSize(settings.socketBuffer);
+			socket.setReceiveBufferSize(settings.socketBuffer);
+		}
+	}
+
+	/*
+	 * *****************************************************************************
+	 */
+
+	public class Transfer {
+
+		private final String peer;
+
+		private final Settings start;
+
+		private volatile long rttNanos;
+
+		private int chunk;
+
+		private long bytes = 0;
+
+		private long nanos = 0;
+
+		Transfer(String peer, Settings start) {
+			this.peer = peer;
+			this.start = start;
+			this.rttNanos = start.rttNanos;
+			this.chunk = start.chunkSize;
+		}
+
+		public Settings getSettings() {
+			return start;
+		}
+
+		/*
+		 * Connect with the peer's socket buffers, timing the handshake as an
+		 * estimate of the round-trip time. Several threads may connect for one
+		 * transfer; the fastest handshake is kept.
+		 */
+		public Socket connect(SocketAddress address, int timeoutMillis) throws IOException {
+			Socket socket = new Socket();
+			try {
+				configure(socket, start);
+				long begin = System.nanoTime();
+				socket.connect(address, timeoutMillis);
+				long rtt = System.nanoTime() - begin;
+				synchronized (this) {
+					if (rttNanos < 0 || rtt < rttNanos) {
+						rttNanos = rtt;
+					}
+				}
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		public Socket connect(SocketAddress address) throws IOException {
+			return connect(address, 0);
+		}
+
+		/*
+		 * A connection accepted from the peer. Its receive window was fixed by the
+		 * listener; the send buffer can still be set. The handshake is over by now,
+		 * so there is no round-trip time to measure.
+		 */
+		public void accepted(Socket socket) throws SocketException {
+			if (start.socketBuffer > 0) {
+				socket.setSendBufferSize(start.socketBuffer);
+			}
+		}
+
+		/*
+		 * The copy loop, adjusting its chunk size as it goes: it doubles the
+		 * chunk size while that improves throughput, or if the first doubling
+		 * does not, tries halving it, then settles on the best it found.
+		 */
+		public long copy(InputStream in, OutputStream out) throws IOException {
+			byte[] data = new byte[chunk];
+			int best = chunk;
+			double bestRate = 0;
+			int direction = 1;
+			boolean probing = true;
+			long total = 0;
+			long begin = System.nanoTime();
+			long sampleStart = begin;
+			long sampleBytes = 0;
+			int n;
+			while ((n = in.read(data, 0, chunk)) != -1) {
+				out.write(data, 0, n);
+				total += n;
+				sampleBytes += n;
+				long now = System.nanoTime();
+				if (probing && now - sampleStart >= SAMPLE_NANOS) {
+					double rate = sampleBytes * 1e9 / (now - sampleStart);
+					if (rate > bestRate * IMPROVEMENT) {
+						best = chunk;
+						bestRate = rate;
+					} else if (direction > 0 && best == start.chunkSize && chunk > best) {
+						direction = -1;
+						chunk = best;
+					} else {
+						chunk = best;
+						probing = false;
+					}
+					if (probing) {
+						int next = direction > 0 ? chunk * 2 : chunk / 2;
+						if (next < MIN_CHUNK || next > MAX_CHUNK) {
+							chunk = best;
+							probing = false;
+						} else {
+							chunk = next;
+							if (chunk > data.length) {
+								data = new byte[chunk];
+							}
+						}
+					}
+					sampleStart = now;
+					sampleBytes = 0;
+				}
+			}
+			synchronized (this) {
+				this.chunk = best;
+				this.bytes += total;
+				this.nanos += System.nanoTime() - begin;
+			}
+			return total;
+		}
+
+		/*
+		 * Record what this transfer learned, for the next one with the peer.
+		 */
+		public void finish() {
+			if (bytes > 0 && nanos > 0) {
+				record(0, bytes, nanos);
+			}
+		}
+
+		/*
+		 * For a transfer over several parallel connections, the total bytes and
+		 * elapsed time. The stream count climbs while it improves throughput,
+		 * and otherwise falls back to the best count seen.
+		 */
+		public void finish(int streams, long bytes, long nanos) {
+			if (streams > 0 && bytes > 0 && nanos > 0) {
+				record(streams, bytes, nanos);
+			}
+		}
+
+		/*
+		 * streams is 0 for a transfer on a single connection, which leaves the
+		 * stream count alone.
+		 */
+		private void record(int streams, long bytes, long nanos) {
+			double rate = bytes * 1e9 / nanos;
+			long rtt = rttNanos;
+			Settings updated = peers.compute(peer, (k, old) -> {
+				Settings s = old == null ? initial : old;
+				int buffer = s.socketBuffer;
+				if (rtt > 0) {
+					/*
+					 * Twice the bandwidth-delay product per connection, so that the
+					 * window is never what limits the transfer.
+					 */
+					long bdp = (long) (2 * (rate / Math.max(1, streams)) * rtt / 1e9);
+					buffer = bdp < MIN_SOCKET_BUFFER ? 0 : (int) Math.min(MAX_SOCKET_BUFFER, bdp);
+				}
+				int nextStreams = s.streams;
+				int bestStreams = s.bestStreams;
+				double bestStreamsRate = s.streamsBytesPerSecond;
+				if (streams > 0) {
+					if (rate > bestStreamsRate * IMPROVEMENT) {
+						/*
+						 * Better than the best so far: try more streams next time.
+						 */
+						bestStreams = streams;
+						bestStreamsRate = rate;
+						nextStreams = Math.min(MAX_STREAMS, streams * 2);
+					} else {
+						if (streams == bestStreams) {
+							/*
+							 * The path may have changed since the best was measured.
+							 */
+							bestStreamsRate = rate;
+						}
+						nextStreams = bestStreams;
+					}
+				}
+				return new Settings(chunk, buffer, nextStreams, bestStreams, bestStreamsRate, rtt, rate);
+			});
+			log.fine("Tuning for " + peer + ": " + updated);
+		}
+	}
+
+}
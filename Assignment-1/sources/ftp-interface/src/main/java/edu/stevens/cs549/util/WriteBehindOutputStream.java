@@ -0,0 +1,186 @@
+package edu.stevens.cs549.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The receiving side's counterpart of ReadAheadInputStream: writes are
+ * gathered into buffers that a thread of its own writes to the underlying
+ * stream, so that a transfer can read from the network while it writes what
+ * it has already received to disk. An error writing the underlying stream is
+ * reported by the next write, flush or close.
+ *
+ * @author dduggan
+ */
+public class WriteBehindOutputStream extends OutputStream {
+
+	private static class Chunk {
+		final byte[] data;
+		final int length;
+
+		Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private static final Chunk END = new Chunk(new byte[0], -1);
+
+	private final OutputStream out;
+
+	private final BlockingQueue<byte[]> empty;
+
+	private final BlockingQueue<Chunk> full;
+
+	private final Thread writer;
+
+	private volatile IOException error = null;
+
+	/*
+	 * Chunks handed to the writer and not yet written.
+	 */
+	private int pending = 0;
+
+	private boolean closed = false;
+
+	private byte[] current;
+
+	private int position = 0;
+
+	public WriteBehindOutputStream(OutputStream out, int buffers, int bufferSize) {
+		this.out = out;
+		this.empty = new ArrayBlockingQueue<byte[]>(buffers);
+		this.full = new ArrayBlockingQueue<Chunk>(buffers + 1);
+		for (int i = 1; i < buffers; i++) {
+			empty.add(new byte[bufferSize]);
+		}
+		this.current = new byte[bufferSize];
+		this.writer = new Thread(this::drain, "write-behind");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/*
+	 * After an error, chunks are discarded rather than written, so that the
+	 * producer is never left waiting for a buffer.
+	 */
+	private void drain() {
+		try {
+			Chunk chunk;
+			while ((chunk = full.take()) != END) {
+				if (error == null) {
+					try {
+						out.write(chunk.data, 0, chunk.length);
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+				empty.add(chunk.data);
+				synchronized (this) {
+					pending--;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			error = new InterruptedIOException("Write-behind interrupted");
+		}
+	}
+
+	private void check() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/*
+	 * Hand the current buffer to the writer and take a free one.
+	 */
+	private void handOff() throws IOException {
+		try {
+			synchronized (this) {
+				pending++;
+			}
+			full.put(new Chunk(current, position));
+			current = empty.take();
+			position = 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for write-behind");
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		check();
+		current[position++] = (byte) b;
+		if (position == current.length) {
+			handOff();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		check();
+		while (len > 0) {
+			int n = Math.min(len, current.length - position);
+			System.arraycopy(b, off, current, position, n);
+			position += n;
+			off += n;
+			len -= n;
+			if (position == current.length) {
+				handOff();
+				check();
+			}
+		}
+	}
+
+	/*
+	 * Wait until everything written so far has reached the underlying stream,
+	 * then flush it.
+	 */
+	@Override
+	public void flush() throws IOException {
+		check();
+		if (position > 0) {
+			handOff();
+		}
+		try {
+			synchronized (this) {
+				while (pending > 0) {
+					wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for write-behind");
+		}
+		check();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed = true;
+			full.add(END);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,230 @@
+package edu.stevens.cs549.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tar archives written by Tar.Writer and read back by Tar.Reader, and
+ * malformed archives the reader must reject.
+ */
+public class TarTest extends TestCase {
+
+	private static final long MODIFIED = 1700000000000L;
+
+	public void testRoundTrip() throws IOException {
+		byte[] small = "hello\n".getBytes(StandardCharsets.UTF_8);
+		byte[] large = new byte[3 * Tar.BLOCK + 17];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte) i;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Tar.Writer tar = new Tar.Writer(out);
+		tar.putDirectory("dir", MODIFIED);
+		tar.putFile("dir/small.txt", MODIFIED, small);
+		tar.putFile("dir/large.bin", large.length, MODIFIED, new ByteArrayInputStream(large));
+		tar.finish();
+
+		Tar.Reader reader = new Tar.Reader(new ByteArrayInputStream(out.toByteArray()));
+		Tar.Entry entry = reader.next();
+		assertEquals("dir/", entry.getName());
+		assertTrue(entry.isDirectory());
+		entry = reader.next();
+		assertEquals("dir/small.txt", entry.getName());
+		assertEquals(MODIFIED, entry.getModified());
+		assertTrue(Arrays.equals(small, reader.contents().readAllBytes()));
+		entry = reader.next();
+		assertEquals("dir/large.bin", entry.getName());
+		assertEquals(large.length, entry.getSize());
+		assertTrue(Arrays.equals(large, reader.contents().readAllBytes()));
+		assertNull(reader.next());
+	}
+
+	public void testSkipsUnreadContents() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Tar.Writer tar = new Tar.Writer(out);
+		tar.putFile("a", MODIFIED, new byte[1000]);
+		tar.putFile("b", MODIFIED, "b".getBytes(StandardCharsets.UTF_8));
+		tar.finish();
+
+		Tar.Reader reader = new Tar.Reader(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("a", reader.next().getName());
+		assertEquals("b", reader.next().getName());
+		assertEquals("b", new String(reader.contents().readAllBytes(), StandardCharsets.UTF_8));
+		assertNull(reader.next());
+	}
+
+	public void testLongName() throws IOException {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 5; i++) {
+			name.append("directory-with-a-fairly-long-name-").append(i).append('/');
+		}
+		name.append("file.txt");
+		assertTrue(name.length() > 100);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Tar.Writer tar = new Tar.Writer(out);
+		tar.putFile(name.toString(), MODIFIED, "long".getBytes(StandardCharsets.UTF_8));
+		tar.finish();
+
+		Tar.Reader reader = new Tar.Reader(new ByteArrayInputStream(out.toByteArray()));
+		Tar.Entry entry = reader.next();
+		assertEquals(name.toString(), entry.getName());
+		assertEquals("long", new String(reader.contents().readAllBytes(), StandardCharsets.UTF_8));
+		assertNull(reader.next());
+	}
+
+	public void testLargeSize() throws IOException {
+		long size = 9L * 1024 * 1024 * 1024;
+		/*
+		 * Only the headers are kept: the writer is stopped once it starts on the
+		 * contents.
+		 */
+		ByteArrayOutputStream headers = new ByteArrayOutputStream();
+		OutputStream limited = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				int room = 3 * Tar.BLOCK - headers.size();
+				headers.write(b, off, Math.min(len, room));
+				if (len > room) {
+					throw new IOException("Headers written");
+				}
+			}
+		};
+		try {
+			new Tar.Writer(limited).putFile("huge.bin", size, MODIFIED, new ByteArrayInputStream(new byte[Tar.BLOCK]));
+			fail("Expected the writer to be stopped");
+		} catch (IOException e) {
+			assertEquals("Headers written", e.getMessage());
+		}
+
+		Tar.Reader reader = new Tar.Reader(new ByteArrayInputStream(headers.toByteArray()));
+		Tar.Entry entry = reader.next();
+		assertEquals("huge.bin", entry.getName());
+		assertEquals(size, entry.getSize());
+	}
+
+	public void testTruncatedEntry() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Tar.Writer tar = new Tar.Writer(out);
+		tar.putFile("cut.bin", MODIFIED, new byte[1000]);
+		tar.finish();
+		byte[] archive = Arrays.copyOf(out.toByteArray(), Tar.BLOCK + 300);
+
+		Tar.Reader reader = new Tar.Reader(new ByteArrayInputStream(archive));
+		assertEquals("cut.bin", reader.next().getName());
+		try {
+			reader.contents().readAllBytes();
+			fail("Expected a truncated entry");
+		} catch (EOFException e) {
+			;
+		}
+	}
+
+	public void testTruncatedHeader() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Tar.Writer tar = new Tar.Writer(out);
+		tar.putFile("cut.bin", MODIFIED, new byte[10]);
+		byte[] archive = Arrays.copyOf(out.toByteArray(), 200);
+
+		try {
+			new Tar.Reader(new ByteArrayInputStream(archive)).next();
+			fail("Expected a truncated header");
+		} catch (EOFException e) {
+			;
+		}
+	}
+
+	public void testBadChecksum() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Tar.Writer tar = new Tar.Writer(out);
+		tar.putFile("file.txt", MODIFIED, new byte[10]);
+		tar.finish();
+		byte[] archive = out.toByteArray();
+		archive[0] = 'g';
+
+		try {
+			new Tar.Reader(new ByteArrayInputStream(archive)).next();
+			fail("Expected a bad checksum");
+		} catch (IOException e) {
+			assertEquals("Bad tar header checksum", e.getMessage());
+		}
+	}
+
+	public void testBadPaxLength() throws IOException {
+		assertPaxRejected("99 path=short\n", "Bad pax record length");
+		assertPaxRejected("5 path=short\n", "Bad pax record length");
+		assertPaxRejected("x path=short\n", "Bad pax record length");
+		assertPaxRejected("13 path=short\n", "Bad pax record length");
+	}
+
+	public void testBadPaxSize() throws IOException {
+		assertPaxRejected("13 size=-100\n", "Bad pax size: -100");
+		assertPaxRejected("13 size=huge\n", "Bad pax size: huge");
+	}
+
+	public void testExtendedHeaderTooLarge() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(header("PaxHeader", Tar.MAX_EXTENDED_HEADER + 1, 'x'));
+		try {
+			new Tar.Reader(new ByteArrayInputStream(out.toByteArray())).next();
+			fail("Expected the header to be rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Tar extended header too large"));
+		}
+	}
+
+	/*
+	 * An archive whose file entry follows a pax header with the given records.
+	 */
+	private static void assertPaxRejected(String records, String message) throws IOException {
+		byte[] pax = records.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(header("PaxHeader", pax.length, 'x'));
+		out.write(Arrays.copyOf(pax, Tar.BLOCK));
+		out.write(header("file.txt", 0, '0'));
+		out.write(new byte[2 * Tar.BLOCK]);
+		try {
+			new Tar.Reader(new ByteArrayInputStream(out.toByteArray())).next();
+			fail("Expected \"" + records.trim() + "\" to be rejected");
+		} catch (IOException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+
+	/*
+	 * A ustar header block, for archives the writer would not produce.
+	 */
+	private static byte[] header(String name, long size, char type) {
+		byte[] header = new byte[Tar.BLOCK];
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		octal(header, 100, 8, 0644);
+		octal(header, 124, 12, size);
+		octal(header, 136, 12, MODIFIED / 1000);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+		long sum = 0;
+		for (int i = 0; i < Tar.BLOCK; i++) {
+			sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+		}
+		octal(header, 148, 7, sum);
+		return header;
+	}
+
+	private static void octal(byte[] header, int offset, int length, long value) {
+		String digits = String.format("%0" + (length - 1) + "o", value);
+		System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+	}
+
+}
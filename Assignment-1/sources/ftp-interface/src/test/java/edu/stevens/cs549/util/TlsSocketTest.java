@@ -0,0 +1,208 @@
+package edu.stevens.cs549.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Data connections secured by DataChannelSecurity, between a server and a
+ * client on localhost, with a key made by keytool for the test.
+ */
+public class TlsSocketTest extends TestCase {
+
+	private static final char[] PASSWORD = "changeit".toCharArray();
+
+	/*
+	 * Made once for all the tests, since keytool is slow.
+	 */
+	private static String keystore;
+
+	private static String truststore;
+
+	private DataChannelSecurity server;
+
+	private DataChannelSecurity client;
+
+	@Override
+	protected void setUp() throws Exception {
+		makeKeys();
+		server = server(DataChannelSecurity.DEFAULT_PROTOCOLS);
+		client = client(DataChannelSecurity.DEFAULT_PROTOCOLS);
+	}
+
+	private static DataChannelSecurity server(String protocols) throws IOException {
+		return DataChannelSecurity.server(keystore, PASSWORD, protocols, DataChannelSecurity.DEFAULT_CIPHER_SUITES);
+	}
+
+	private static DataChannelSecurity client(String protocols) throws IOException {
+		return DataChannelSecurity.client(truststore, PASSWORD, protocols, DataChannelSecurity.DEFAULT_CIPHER_SUITES);
+	}
+
+	private static synchronized void makeKeys() throws Exception {
+		if (keystore != null) {
+			return;
+		}
+		Path dir = Files.createTempDirectory("tls-test");
+		String keystore = dir.resolve("server.p12").toString();
+		String truststore = dir.resolve("client.p12").toString();
+		String cert = dir.resolve("server.cer").toString();
+		keytool("-genkeypair", "-alias", "ftp", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+				"-ext", "SAN=dns:localhost", "-validity", "2", "-storetype", "PKCS12", "-keystore", keystore,
+				"-storepass", new String(PASSWORD));
+		keytool("-exportcert", "-alias", "ftp", "-keystore", keystore, "-storepass", new String(PASSWORD), "-file",
+				cert);
+		keytool("-importcert", "-noprompt", "-alias", "ftp", "-file", cert, "-storetype", "PKCS12", "-keystore",
+				truststore, "-storepass", new String(PASSWORD));
+		for (File f : dir.toFile().listFiles()) {
+			f.deleteOnExit();
+		}
+		dir.toFile().deleteOnExit();
+		TlsSocketTest.keystore = keystore;
+		TlsSocketTest.truststore = truststore;
+	}
+
+	private static void keytool(String... args) throws IOException, InterruptedException {
+		String[] command = new String[args.length + 1];
+		command[0] = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+		System.arraycopy(args, 0, command, 1, args.length);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool failed: " + output);
+		}
+	}
+
+	/*
+	 * The server sends contents on a connection the client makes, and closes it;
+	 * returns what the client read.
+	 */
+	private byte[] send(byte[] contents) throws Exception {
+		try (ServerSocket listener = server.newServerSocket("localhost")) {
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+				try (Socket socket = listener.accept()) {
+					OutputStream out = socket.getOutputStream();
+					Streams.copy(new ByteArrayInputStream(contents), out);
+					out.flush();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			byte[] received;
+			try (Socket socket = client.secure(new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort()),
+					"localhost")) {
+				received = socket.getInputStream().readAllBytes();
+			}
+			sent.get(10, TimeUnit.SECONDS);
+			return received;
+		}
+	}
+
+	public void testEmptyTransfer() throws Exception {
+		assertEquals(0, send(new byte[0]).length);
+	}
+
+	public void testTransfer() throws Exception {
+		byte[] contents = new byte[100000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i * 31);
+		}
+		assertTrue(Arrays.equals(contents, send(contents)));
+	}
+
+	public void testEmptyTransfersResumeSession() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, send(new byte[0]).length);
+		}
+	}
+
+	/*
+	 * Under TLS 1.3 the peer can still answer after close_notify.
+	 */
+	public void testShutdownOutput() throws Exception {
+		server = server("TLSv1.3");
+		client = client("TLSv1.3");
+		try (ServerSocket listener = server.newServerSocket("localhost")) {
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			CompletableFuture<Void> echoed = CompletableFuture.runAsync(() -> {
+				try (Socket socket = listener.accept()) {
+					byte[] request = socket.getInputStream().readAllBytes();
+					OutputStream out = socket.getOutputStream();
+					out.write(request);
+					out.write(request);
+					out.flush();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			try (Socket socket = client.secure(new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort()),
+					"localhost")) {
+				socket.getOutputStream().write("ping".getBytes(StandardCharsets.UTF_8));
+				socket.shutdownOutput();
+				String reply = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+				assertEquals("pingping", reply);
+			}
+			echoed.get(10, TimeUnit.SECONDS);
+		}
+	}
+
+	/*
+	 * Under TLS 1.2 the peer answers close_notify with its own.
+	 */
+	public void testShutdownOutputDuplex() throws Exception {
+		try (ServerSocket listener = server.newServerSocket("localhost")) {
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> {
+				try (Socket socket = listener.accept()) {
+					return socket.getInputStream().readAllBytes();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			try (Socket socket = client.secure(new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort()),
+					"localhost")) {
+				socket.getOutputStream().write("ping".getBytes(StandardCharsets.UTF_8));
+				socket.shutdownOutput();
+				assertEquals(-1, socket.getInputStream().read());
+			}
+			assertEquals("ping", new String(read.get(10, TimeUnit.SECONDS), StandardCharsets.UTF_8));
+		}
+	}
+
+	public void testShutdownInput() throws Exception {
+		try (ServerSocket listener = server.newServerSocket("localhost")) {
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			CompletableFuture<Void> accepted = CompletableFuture.runAsync(() -> {
+				try (Socket socket = listener.accept()) {
+					socket.getOutputStream().write(1);
+					socket.getInputStream().read();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			try (Socket socket = client.secure(new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort()),
+					"localhost")) {
+				InputStream in = socket.getInputStream();
+				assertEquals(1, in.read());
+				socket.shutdownInput();
+				assertEquals(-1, in.read());
+			}
+			accepted.get(10, TimeUnit.SECONDS);
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.ftpinterface.ServerBusyException;
+
+/**
+ * Limits on the sessions and transfers the server runs at once. A transfer
+ * beyond the limit waits in a first-come first-served queue for a bounded
+ * time; when the queue is full or the wait runs out, the client is told to
+ * retry later. A limit of zero means no limit.
+ * 
+ * @author dduggan
+ */
+class AdmissionController {
+
+	private static Logger log = Logger.getLogger(AdmissionController.class.getCanonicalName());
+
+	/*
+	 * Bounds on the delay suggested to a client that is turned away.
+	 */
+	static final long MIN_RETRY_MILLIS = 100;
+
+	static final long MAX_RETRY_MILLIS = 30000;
+
+	private final int maxSessions;
+
+	private final int maxTransfers;
+
+	private final int maxQueued;
+
+	private final long maxWaitMillis;
+
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	private final Semaphore transfers;
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/*
+	 * Moving average of how long a transfer holds its permit, used to estimate
+	 * when one will next be free.
+	 */
+	private volatile double averageMillis = 1000;
+
+	AdmissionController(int maxSessions, int maxTransfers, int maxQueued, long maxWaitMillis) {
+		this.maxSessions = maxSessions;
+		this.maxTransfers = maxTransfers;
+		this.maxQueued = maxQueued;
+		this.maxWaitMillis = maxWaitMillis;
+		this.transfers = maxTransfers > 0 ? new Semaphore(maxTransfers, true) : null;
+	}
+
+	/*
+	 * A transfer slot, released when the transfer finishes either way.
+	 */
+	class Permit {
+		private final long start = System.currentTimeMillis();
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		void release() {
+			if (released.compareAndSet(false, true)) {
+				averageMillis = 0.8 * averageMillis + 0.2 * (System.currentTimeMillis() - start);
+				if (transfers != null) {
+					transfers.release();
+				}
+			}
+		}
+	}
+
+	void openSession() throws ServerBusyException {
+		if (maxSessions > 0 && sessions.incrementAndGet() > maxSessions) {
+			sessions.decrementAndGet();
+			throw new ServerBusyException("sessions", retryAfter());
+		}
+	}
+
+	void closeSession() {
+		if (maxSessions > 0) {
+			sessions.decrementAndGet();
+		}
+	}
+
+	Permit admit() throws ServerBusyException, InterruptedIOException {
+		if (transfers == null) {
+			return new Permit();
+		}
+		/*
+		 * Timed acquires respect the order of the queue, so even a free slot goes
+		 * to a transfer that was already waiting.
+		 */
+		int waiting = queued.incrementAndGet();
+		if (maxQueued > 0 && waiting > maxQueued && transfers.availablePermits() == 0) {
+			queued.decrementAndGet();
+			throw busy();
+		}
+		try {
+			if (!transfers.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				throw busy();
+			}
+			return new Permit();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a transfer slot");
+		} finally {
+			queued.decrementAndGet();
+		}
+	}
+
+	private ServerBusyException busy() {
+		long retry = retryAfter();
+		log.info("Turning away a transfer, retry after " + retry + " ms");
+		return new ServerBusyException("transfers", retry);
+	}
+
+	/*
+	 * Roughly how long until the transfers ahead of a new one have drained.
+	 */
+	private long retryAfter() {
+		double waves = 1 + (double) queued.get() / Math.max(1, maxTransfers);
+		return Math.max(MIN_RETRY_MILLIS, Math.min(MAX_RETRY_MILLIS, (long) (averageMillis * waves)));
+	}
+
+}
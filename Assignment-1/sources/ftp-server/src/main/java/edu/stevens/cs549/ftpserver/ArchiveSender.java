@@ -0,0 +1,247 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import edu.stevens.cs549.util.AcceptEvent;
+import edu.stevens.cs549.util.Tar;
+import edu.stevens.cs549.util.TransferDigest;
+import edu.stevens.cs549.util.TransferEvent;
+
+/**
+ * Sends a directory tree as a tar archive, optionally gzipped, on a dedicated
+ * data connection. The archive is generated as it is sent. Small files are
+ * read ahead in parallel on a pool of reader threads, a bounded number of
+ * entries ahead of the one being written. Larger files are streamed when
+ * their turn comes. The tree is listed through the storage backend, so files
+ * it has moved elsewhere (e.g. to a cold tier) are included. Symbolic links
+ * and the server's internal files are left out.
+ *
+ * @author dduggan
+ */
+class ArchiveSender implements Runnable {
+
+	private static Logger log = Logger.getLogger(ArchiveSender.class.getCanonicalName());
+
+	/*
+	 * Files up to this size are read ahead into memory.
+	 */
+	static final int READ_AHEAD_MAX_BYTES = 1024 * 1024;
+
+	/*
+	 * How many entries may be read ahead of the one being written.
+	 */
+	static final int READ_AHEAD_ENTRIES = 32;
+
+	/*
+	 * An entry ready to be written: a directory, a file read into memory, or a
+	 * file to stream.
+	 */
+	private static class Item {
+		final Path path;
+		final BasicFileAttributes attrs;
+		final byte[] contents;
+
+		Item(Path path, BasicFileAttributes attrs, byte[] contents) {
+			this.path = path;
+			this.attrs = attrs;
+			this.contents = contents;
+		}
+	}
+
+	interface Opener {
+		InputStream open(Path path) throws IOException;
+	}
+
+	private final ServerSocket listener;
+
+	private final Storage storage;
+
+	private final Path root;
+
+	private final String base;
+
+	private final boolean compress;
+
+	private final ExecutorService readers;
+
+	private final Opener open;
+
+	private final UnaryOperator<OutputStream> shape;
+
+	private final TransferDigest digest;
+
+	private final CompletableFuture<String> done;
+
+	/*
+	 * open opens a file for reading, and shape wraps the data connection, for
+	 * the session's scheduling and bandwidth limits.
+	 */
+	ArchiveSender(ServerSocket listener, Storage storage, Path root, String base, boolean compress,
+			ExecutorService readers, Opener open, UnaryOperator<OutputStream> shape, TransferDigest digest,
+			CompletableFuture<String> done) {
+		this.listener = listener;
+		this.storage = storage;
+		this.root = root;
+		this.base = base;
+		this.compress = compress;
+		this.readers = readers;
+		this.open = open;
+		this.shape = shape;
+		this.digest = digest;
+		this.done = done;
+	}
+
+	public void run() {
+		try {
+			AcceptEvent accept = new AcceptEvent(Server.SIDE, listener.getLocalPort());
+			accept.begin();
+			Socket socket;
+			try {
+				socket = listener.accept();
+			} finally {
+				listener.close();
+			}
+			accept.commit();
+			TransferEvent event = new TransferEvent(Server.SIDE, "getArchive", base, compress ? "GZIP" : "TAR");
+			event.begin();
+			try (socket) {
+				OutputStream out = new BufferedOutputStream(digest.wrap(shape.apply(socket.getOutputStream())));
+				GZIPOutputStream gzip = compress ? new GZIPOutputStream(out, Tar.BLOCK * 16) : null;
+				Tar.Writer tar = new Tar.Writer(compress ? gzip : out);
+				event.bytes = write(tar);
+				tar.finish();
+				if (gzip != null) {
+					gzip.finish();
+				}
+				out.flush();
+			} finally {
+				event.commit();
+			}
+			done.complete(digest.value());
+		} catch (IOException | RuntimeException e) {
+			log.warning("Archive of " + base + " failed: " + e);
+			done.completeExceptionally(e);
+		}
+	}
+
+	/*
+	 * Write every entry, directories before their contents, returning the number
+	 * of bytes of file data.
+	 */
+	private long write(Tar.Writer tar) throws IOException {
+		long bytes = 0;
+		Deque<CompletableFuture<Item>> window = new ArrayDeque<CompletableFuture<Item>>();
+		Deque<Path> unvisited = new ArrayDeque<Path>();
+		unvisited.push(root);
+		try {
+			while (!unvisited.isEmpty()) {
+				Path path = unvisited.pop();
+				BasicFileAttributes attrs;
+				try {
+					attrs = storage.attributes(path, LinkOption.NOFOLLOW_LINKS);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+				if (attrs.isDirectory()) {
+					String[] names = storage.list(path);
+					for (int i = names.length - 1; i >= 0; i--) {
+						unvisited.push(path.resolve(names[i]));
+					}
+				}
+				window.add(readAhead(path, attrs));
+				if (window.size() >= READ_AHEAD_ENTRIES) {
+					bytes += write(tar, window.poll());
+				}
+			}
+			while (!window.isEmpty()) {
+				bytes += write(tar, window.poll());
+			}
+		} finally {
+			for (CompletableFuture<Item> pending : window) {
+				pending.cancel(false);
+			}
+		}
+		return bytes;
+	}
+
+	private CompletableFuture<Item> readAhead(Path path, BasicFileAttributes attrs) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				byte[] contents = null;
+				if (attrs.isRegularFile() && attrs.size() <= READ_AHEAD_MAX_BYTES) {
+					try (InputStream in = open.open(path)) {
+						contents = in.readNBytes(READ_AHEAD_MAX_BYTES);
+					}
+				}
+				return new Item(path, attrs, contents);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, readers);
+	}
+
+	private long write(Tar.Writer tar, CompletableFuture<Item> next) throws IOException {
+		Item item;
+		try {
+			item = next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading ahead", e);
+		} catch (ExecutionException e) {
+			/*
+			 * A file that disappeared or cannot be read is left out.
+			 */
+			log.info("Archive of " + base + " skipping an entry: " + e.getCause());
+			return 0;
+		}
+		String name = name(item.path);
+		long modified = item.attrs.lastModifiedTime().toMillis();
+		if (item.attrs.isDirectory()) {
+			if (!name.isEmpty()) {
+				tar.putDirectory(name, modified);
+			}
+			return 0;
+		} else if (!item.attrs.isRegularFile()) {
+			return 0;
+		} else if (item.contents != null) {
+			tar.putFile(name, modified, item.contents);
+			return item.contents.length;
+		} else {
+			try (InputStream in = open.open(item.path)) {
+				return tar.putFile(name, item.attrs.size(), modified, in);
+			}
+		}
+	}
+
+	private String name(Path path) {
+		StringBuilder name = new StringBuilder(base);
+		for (Path part : root.relativize(path)) {
+			if (!part.toString().isEmpty()) {
+				if (name.length() > 0) {
+					name.append('/');
+				}
+				name.append(part);
+			}
+		}
+		return name.toString();
+	}
+
+}
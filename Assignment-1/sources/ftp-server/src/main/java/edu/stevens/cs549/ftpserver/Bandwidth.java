@@ -0,0 +1,78 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Bandwidth limits for the server: a global bucket shared by every transfer,
+ * and a rate for the bucket each session gets for its own transfers.
+ * 
+ * @author dduggan
+ */
+class Bandwidth implements BandwidthMXBean {
+
+	private static Logger log = Logger.getLogger(Bandwidth.class.getCanonicalName());
+
+	static final String OBJECT_NAME = "edu.stevens.cs549.ftpserver:type=Bandwidth";
+
+	private volatile long globalRate;
+
+	private volatile long sessionRate;
+
+	private final TokenBucket global = new TokenBucket(() -> globalRate);
+
+	Bandwidth(long globalRate, long sessionRate) {
+		this.globalRate = globalRate;
+		this.sessionRate = sessionRate;
+	}
+
+	/*
+	 * Make the limits adjustable through the platform MBean server.
+	 */
+	void register() {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			log.warning("Could not register " + OBJECT_NAME + ": " + e);
+		}
+	}
+
+	TokenBucket newSessionBucket() {
+		return new TokenBucket(() -> sessionRate);
+	}
+
+	InputStream shape(InputStream in, TokenBucket session) {
+		return TokenBucket.shape(in, session, global);
+	}
+
+	OutputStream shape(OutputStream out, TokenBucket session) {
+		return TokenBucket.shape(out, session, global);
+	}
+
+	public long getGlobalBytesPerSecond() {
+		return globalRate;
+	}
+
+	public void setGlobalBytesPerSecond(long rate) {
+		log.info("Global bandwidth limit set to " + rate + " bytes/s");
+		globalRate = rate;
+	}
+
+	public long getSessionBytesPerSecond() {
+		return sessionRate;
+	}
+
+	public void setSessionBytesPerSecond(long rate) {
+		log.info("Session bandwidth limit set to " + rate + " bytes/s");
+		sessionRate = rate;
+	}
+
+}
@@ -0,0 +1,20 @@
+package edu.stevens.cs549.ftpserver;
+
+/**
+ * Management interface for bandwidth shaping, so that the limits can be changed
+ * at runtime (e.g. from jconsole). Rates are in bytes per second, zero for no
+ * limit.
+ * 
+ * @author dduggan
+ */
+public interface BandwidthMXBean {
+
+	public long getGlobalBytesPerSecond();
+
+	public void setGlobalBytesPerSecond(long rate);
+
+	public long getSessionBytesPerSecond();
+
+	public void setSessionBytesPerSecond(long rate);
+
+}
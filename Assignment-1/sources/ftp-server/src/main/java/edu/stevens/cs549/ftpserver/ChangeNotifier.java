@@ -0,0 +1,400 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.ftpinterface.ChangeEvent;
+import edu.stevens.cs549.ftpinterface.IChangeListener;
+
+/**
+ * Change notifications for directories that clients have subscribed to. One
+ * WatchService, with a thread of its own, watches every such directory however
+ * many sessions subscribe to it, so the cost does not grow with the number of
+ * clients watching.
+ *
+ * Changes are collected for each subscription and delivered as one batch once
+ * the directory has been quiet for server.watchDebounceMillis, or at the latest
+ * server.watchMaxDelayMillis after the first of them, so a file being written
+ * gives one notification rather than one per write. Changes to the same name
+ * within a batch are combined: a file created and then deleted is not reported
+ * at all. If a client falls so far behind that more than MAX_PENDING names are
+ * waiting, they are replaced by a single OVERFLOW.
+ *
+ * Internal files are not reported, nor are files moved between tiers by the
+ * storage backend. Memory storage cannot be watched.
+ *
+ * The same watches serve files being followed (see FileFollower), whose
+ * followers are woken at once on any change to the file, without batching.
+ *
+ * @author dduggan
+ */
+class ChangeNotifier {
+
+	private static Logger log = Logger.getLogger(ChangeNotifier.class.getCanonicalName());
+
+	static final int MAX_PENDING = 10000;
+
+	private final Storage storage;
+
+	private final long debounceMillis;
+
+	private final long maxDelayMillis;
+
+	private final ScheduledExecutorService deliverers;
+
+	/*
+	 * Created with the first subscription. Guarded by this, as are the watched
+	 * directories.
+	 */
+	private WatchService watcher = null;
+
+	private static class Directory {
+		final WatchKey key;
+		final Set<Subscription> subscribers = new HashSet<Subscription>();
+		final Map<String, Set<Runnable>> followers = new HashMap<String, Set<Runnable>>();
+
+		Directory(WatchKey key) {
+			this.key = key;
+		}
+
+		boolean idle() {
+			return subscribers.isEmpty() && followers.isEmpty();
+		}
+	}
+
+	private final Map<Path, Directory> directories = new HashMap<Path, Directory>();
+
+	private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+
+	private class Subscription {
+		final String id;
+		final Path dir;
+		final String path;
+		final IChangeListener listener;
+
+		/*
+		 * Changes not yet delivered, by name, and when the first and last of them
+		 * happened. Guarded by the subscription.
+		 */
+		LinkedHashMap<String, ChangeEvent.Kind> pending = new LinkedHashMap<String, ChangeEvent.Kind>();
+		boolean overflow = false;
+		long first;
+		long last;
+
+		/*
+		 * Whether a delivery is scheduled or in progress: there is never more than
+		 * one, so batches arrive in order.
+		 */
+		boolean scheduled = false;
+
+		volatile boolean cancelled = false;
+
+		Subscription(Path dir, String path, IChangeListener listener) {
+			this.id = UUID.randomUUID().toString();
+			this.dir = dir;
+			this.path = path;
+			this.listener = listener;
+		}
+
+		synchronized void add(String name, ChangeEvent.Kind kind) {
+			if (overflow) {
+				touch();
+				return;
+			}
+			ChangeEvent.Kind earlier = pending.remove(name);
+			ChangeEvent.Kind combined = combine(earlier, kind);
+			if (combined != null) {
+				pending.put(name, combined);
+			}
+			if (pending.size() > MAX_PENDING) {
+				overflow();
+			} else {
+				touch();
+			}
+		}
+
+		synchronized void overflow() {
+			pending.clear();
+			overflow = true;
+			touch();
+		}
+
+		private void touch() {
+			long now = System.currentTimeMillis();
+			if (!scheduled) {
+				first = now;
+				scheduled = true;
+				schedule(this, debounceMillis);
+			}
+			last = now;
+		}
+
+		/*
+		 * The changes to deliver now, or null if the batch is not yet due or its
+		 * changes have cancelled out.
+		 */
+		synchronized ChangeEvent[] take() {
+			long wait = Math.min(last + debounceMillis, first + maxDelayMillis) - System.currentTimeMillis();
+			if (wait > 0) {
+				schedule(this, wait);
+				return null;
+			}
+			if (pending.isEmpty() && !overflow) {
+				scheduled = false;
+				return null;
+			}
+			ChangeEvent[] batch;
+			if (overflow) {
+				batch = new ChangeEvent[] { new ChangeEvent(ChangeEvent.Kind.OVERFLOW, null) };
+			} else {
+				batch = new ChangeEvent[pending.size()];
+				int i = 0;
+				for (Map.Entry<String, ChangeEvent.Kind> e : pending.entrySet()) {
+					batch[i++] = new ChangeEvent(e.getValue(), e.getKey());
+				}
+			}
+			pending = new LinkedHashMap<String, ChangeEvent.Kind>();
+			overflow = false;
+			return batch;
+		}
+
+		/*
+		 * After a delivery: schedule the next batch if changes arrived meanwhile.
+		 */
+		synchronized void delivered() {
+			if (pending.isEmpty() && !overflow) {
+				scheduled = false;
+			} else {
+				first = System.currentTimeMillis();
+				schedule(this, debounceMillis);
+			}
+		}
+	}
+
+	/*
+	 * A change following an earlier one to the same name in a batch; null if
+	 * together they come to nothing.
+	 */
+	private static ChangeEvent.Kind combine(ChangeEvent.Kind earlier, ChangeEvent.Kind kind) {
+		if (earlier == null) {
+			return kind;
+		} else if (earlier == ChangeEvent.Kind.CREATED) {
+			return kind == ChangeEvent.Kind.DELETED ? null : ChangeEvent.Kind.CREATED;
+		} else if (earlier == ChangeEvent.Kind.DELETED && kind == ChangeEvent.Kind.CREATED) {
+			return ChangeEvent.Kind.MODIFIED;
+		}
+		return kind;
+	}
+
+	ChangeNotifier(Storage storage, long debounceMillis, long maxDelayMillis, int threads) {
+		this.storage = storage;
+		this.debounceMillis = debounceMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.deliverers = Executors.newScheduledThreadPool(threads, r -> {
+			Thread t = new Thread(r, "change-delivery");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/*
+	 * Start notifying a listener of changes in a directory. path is the
+	 * directory as the client knows it, passed back with each batch.
+	 */
+	String subscribe(Path dir, String path, IChangeListener listener) throws IOException {
+		Subscription s = new Subscription(dir, path, listener);
+		synchronized (this) {
+			watched(dir).subscribers.add(s);
+		}
+		subscriptions.put(s.id, s);
+		log.info("Subscription " + s.id + " to " + path + ".");
+		return s.id;
+	}
+
+	/*
+	 * Call wake on every change to a file, until the handle returned is closed.
+	 */
+	Closeable follow(Path file, Runnable wake) throws IOException {
+		Path dir = file.getParent();
+		String name = file.getFileName().toString();
+		synchronized (this) {
+			watched(dir).followers.computeIfAbsent(name, n -> new HashSet<Runnable>()).add(wake);
+		}
+		return () -> {
+			synchronized (this) {
+				Directory d = directories.get(dir);
+				Set<Runnable> woken = d == null ? null : d.followers.get(name);
+				if (woken != null && woken.remove(wake)) {
+					if (woken.isEmpty()) {
+						d.followers.remove(name);
+					}
+					release(dir, d);
+				}
+			}
+		};
+	}
+
+	/*
+	 * The watch on a directory, registered if it is not already. Called with
+	 * this locked.
+	 */
+	private Directory watched(Path dir) throws IOException {
+		if (watcher == null) {
+			try {
+				watcher = dir.getFileSystem().newWatchService();
+			} catch (UnsupportedOperationException e) {
+				throw new IOException("Change notifications are not supported by storage " + storage);
+			}
+			Thread t = new Thread(this::watch, "change-watcher");
+			t.setDaemon(true);
+			t.start();
+		}
+		Directory d = directories.get(dir);
+		if (d == null) {
+			try {
+				d = new Directory(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+			} catch (UnsupportedOperationException e) {
+				throw new IOException("Change notifications are not supported by storage " + storage);
+			}
+			directories.put(dir, d);
+		}
+		return d;
+	}
+
+	/*
+	 * Stop watching a directory once nothing needs it. Called with this locked.
+	 */
+	private void release(Path dir, Directory d) {
+		if (d.idle()) {
+			d.key.cancel();
+			directories.remove(dir);
+		}
+	}
+
+	void unsubscribe(String id) {
+		Subscription s = subscriptions.remove(id);
+		if (s == null) {
+			return;
+		}
+		s.cancelled = true;
+		synchronized (this) {
+			Directory d = directories.get(s.dir);
+			if (d != null && d.subscribers.remove(s)) {
+				release(s.dir, d);
+			}
+		}
+		log.info("Subscription " + id + " to " + s.path + " cancelled.");
+	}
+
+	private void schedule(Subscription s, long delayMillis) {
+		deliverers.schedule(() -> deliver(s), delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * A listener that cannot be reached has gone away, and is dropped.
+	 */
+	private void deliver(Subscription s) {
+		ChangeEvent[] batch = s.cancelled ? null : s.take();
+		if (batch == null) {
+			return;
+		}
+		try {
+			s.listener.changed(s.id, s.path, batch);
+		} catch (RemoteException e) {
+			log.info("Dropping subscription " + s.id + ": " + e);
+			unsubscribe(s.id);
+			return;
+		}
+		s.delivered();
+	}
+
+	private void watch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Path dir = (Path) key.watchable();
+			List<Subscription> subscribers = new ArrayList<Subscription>();
+			Map<String, List<Runnable>> followers = new HashMap<String, List<Runnable>>();
+			synchronized (this) {
+				Directory d = directories.get(dir);
+				if (d != null) {
+					subscribers.addAll(d.subscribers);
+					for (Map.Entry<String, Set<Runnable>> e : d.followers.entrySet()) {
+						followers.put(e.getKey(), new ArrayList<Runnable>(e.getValue()));
+					}
+				}
+			}
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					for (Subscription s : subscribers) {
+						s.overflow();
+					}
+					for (List<Runnable> woken : followers.values()) {
+						woken.forEach(Runnable::run);
+					}
+					continue;
+				}
+				String name = event.context().toString();
+				List<Runnable> woken = followers.get(name);
+				if (woken != null) {
+					woken.forEach(Runnable::run);
+				}
+				boolean created = event.kind() == StandardWatchEventKinds.ENTRY_CREATE;
+				boolean deleted = event.kind() == StandardWatchEventKinds.ENTRY_DELETE;
+				if (subscribers.isEmpty() || name.startsWith(Server.INTERNAL_PREFIX)
+						|| ((created || deleted) && storage.relocated(dir.resolve(name), created))) {
+					continue;
+				}
+				ChangeEvent.Kind kind = created ? ChangeEvent.Kind.CREATED
+						: deleted ? ChangeEvent.Kind.DELETED : ChangeEvent.Kind.MODIFIED;
+				for (Subscription s : subscribers) {
+					s.add(name, kind);
+				}
+			}
+			if (!key.reset()) {
+				/*
+				 * The directory itself has gone: its subscribers are told of nothing
+				 * more, and its followers will find their files gone.
+				 */
+				synchronized (this) {
+					Directory d = directories.get(dir);
+					if (d != null && d.key == key) {
+						directories.remove(dir);
+					}
+				}
+				for (Subscription s : subscribers) {
+					unsubscribe(s.id);
+				}
+				for (List<Runnable> woken : followers.values()) {
+					woken.forEach(Runnable::run);
+				}
+			}
+		}
+	}
+
+}
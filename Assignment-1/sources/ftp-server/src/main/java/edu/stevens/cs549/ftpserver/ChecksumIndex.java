@@ -0,0 +1,261 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.util.Streams;
+import edu.stevens.cs549.util.TransferDigest;
+
+/**
+ * Persistent index of file digests under the server root, kept in a sidecar
+ * file so that a checksum request can be answered without reading the file.
+ * An entry is only valid while the size and modification time of the file
+ * are unchanged. Missing entries are computed on a background pool, and
+ * uploads record the digest they computed inline. Files are examined through
+ * the storage backend, so a file it has moved elsewhere (e.g. to a cold tier)
+ * is answered from the index where it stands, and otherwise read from there.
+ * 
+ * @author dduggan
+ */
+class ChecksumIndex {
+
+	private static Logger log = Logger.getLogger(ChecksumIndex.class.getCanonicalName());
+
+	static final String INDEX_FILE = Server.INTERNAL_PREFIX + "checksums";
+
+	/*
+	 * Delay before changes to the index are written back, so that a burst of
+	 * uploads results in one write.
+	 */
+	static final long SAVE_DELAY_MILLIS = 1000;
+
+	private static class Entry {
+		final long size;
+		final long modified;
+		final String digest;
+
+		Entry(long size, long modified, String digest) {
+			this.size = size;
+			this.modified = modified;
+			this.digest = digest;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && modified == attrs.lastModifiedTime().toMillis();
+		}
+	}
+
+	private final Storage storage;
+
+	private final Path root;
+
+	private final Path indexFile;
+
+	private final String algorithm;
+
+	private final int threads;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/*
+	 * Digests being computed, so that concurrent requests for the same file share
+	 * one pass over it.
+	 */
+	private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+	private ExecutorService pool = null;
+
+	private ScheduledExecutorService saver = null;
+
+	private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+
+	ChecksumIndex(Storage storage, String algorithm, int threads) {
+		this.storage = storage;
+		this.root = storage.getRoot().toAbsolutePath().normalize();
+		this.indexFile = this.root.resolve(INDEX_FILE);
+		this.algorithm = algorithm;
+		this.threads = threads;
+		load();
+	}
+
+	private String key(Path file) {
+		return root.relativize(file.toAbsolutePath().normalize()).toString();
+	}
+
+	/*
+	 * The digest of a file, from the index if it is still current, otherwise
+	 * computed in the background pool.
+	 */
+	String lookup(Path file) throws IOException {
+		BasicFileAttributes attrs = storage.attributes(file);
+		if (!attrs.isRegularFile()) {
+			throw new IOException("Not a file: " + file.getFileName());
+		}
+		String key = key(file);
+		Entry entry = entries.get(key);
+		if (entry != null && entry.matches(attrs)) {
+			return entry.digest;
+		}
+		CompletableFuture<String> result = pending.computeIfAbsent(key,
+				k -> CompletableFuture.supplyAsync(() -> compute(file), pool()));
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compute checksum of " + file.getFileName(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted computing checksum of " + file.getFileName());
+		}
+	}
+
+	private String compute(Path file) {
+		String key = key(file);
+		try {
+			BasicFileAttributes before = storage.attributes(file);
+			TransferDigest digest = TransferDigest.create(algorithm);
+			try (InputStream in = digest.wrap(storage.openScan(file))) {
+				Streams.copy(in, OutputStream.nullOutputStream());
+			}
+			String value = digest.value();
+			record(file, before, value);
+			return value;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			pending.remove(key);
+		}
+	}
+
+	/*
+	 * Record a digest computed while the file had the given attributes. It is
+	 * discarded if the file has changed since, e.g. it was modified during a
+	 * download.
+	 */
+	void record(Path file, BasicFileAttributes attrs, String digest) {
+		try {
+			BasicFileAttributes now = storage.attributes(file);
+			Entry entry = new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), digest);
+			if (entry.matches(now)) {
+				entries.put(key(file), entry);
+				scheduleSave();
+			}
+		} catch (IOException e) {
+			log.info("Not indexing " + file + ": " + e);
+		}
+	}
+
+	/*
+	 * Record a digest of the current contents of a file, e.g. at the end of an
+	 * upload.
+	 */
+	void record(Path file, String digest) {
+		try {
+			record(file, storage.attributes(file), digest);
+		} catch (IOException e) {
+			log.info("Not indexing " + file + ": " + e);
+		}
+	}
+
+	void invalidate(Path file) {
+		if (entries.remove(key(file)) != null) {
+			scheduleSave();
+		}
+	}
+
+	String getAlgorithm() {
+		return algorithm;
+	}
+
+	private synchronized ExecutorService pool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "checksum-index");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return pool;
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Persistence: one line per file, "digest size modified path", tagged with
+	 * the algorithm on the first line. An index for a different algorithm is
+	 * ignored.
+	 */
+
+	private void load() {
+		try (BufferedReader in = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+			String header = in.readLine();
+			if (!algorithm.equals(header)) {
+				return;
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ", 4);
+				if (fields.length == 4) {
+					entries.put(fields[3], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+				}
+			}
+			log.info("Loaded " + entries.size() + " checksums from " + indexFile);
+		} catch (NoSuchFileException e) {
+			;
+		} catch (IOException | RuntimeException e) {
+			log.warning("Ignoring unreadable checksum index " + indexFile + ": " + e);
+			entries.clear();
+		}
+	}
+
+	private synchronized void scheduleSave() {
+		if (saveScheduled.compareAndSet(false, true)) {
+			if (saver == null) {
+				saver = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "checksum-index-save");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			saver.schedule(this::save, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	void save() {
+		saveScheduled.set(false);
+		Path tmp = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+		try {
+			try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				out.write(algorithm);
+				out.newLine();
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					Entry entry = e.getValue();
+					out.write(entry.digest + " " + entry.size + " " + entry.modified + " " + e.getKey());
+					out.newLine();
+				}
+			}
+			Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warning("Could not save checksum index " + indexFile + ": " + e);
+		}
+	}
+
+}
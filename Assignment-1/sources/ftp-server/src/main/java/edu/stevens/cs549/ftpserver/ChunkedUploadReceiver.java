@@ -0,0 +1,252 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import edu.stevens.cs549.ftpinterface.ChunkedUpload;
+import edu.stevens.cs549.util.AcceptEvent;
+import edu.stevens.cs549.util.TransferEvent;
+import edu.stevens.cs549.util.TransferTuner;
+
+/**
+ * Server side of a chunked upload. Chunks arrive over any number of data
+ * connections, in any order, and are written at their offsets in a staging
+ * file, which grows (sparse until the gaps are filled) as chunks beyond its
+ * end arrive. Each connection buffers a chunk, so
+ * only as many are served at once as keep that memory bounded; the rest wait
+ * to be accepted. Once every chunk has been received the staging file is
+ * committed over the target.
+ * 
+ * @author dduggan
+ */
+class ChunkedUploadReceiver {
+
+	private static Logger log = Logger.getLogger(ChunkedUploadReceiver.class.getCanonicalName());
+
+	static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+	/*
+	 * Chunk buffers held at once by the connections of one upload.
+	 */
+	static final int MAX_BUFFERED_BYTES = 256 * 1024 * 1024;
+
+	/*
+	 * How often a wait for a free connection checks that the upload is still
+	 * open.
+	 */
+	private static final long SLOT_POLL_MILLIS = 1000;
+
+	private final ChunkedUpload upload;
+
+	private final StagedFile staged;
+
+	private final FileChannel channel;
+
+	private final ServerSocket listener;
+
+	/*
+	 * Bandwidth shaping for the data connections.
+	 */
+	private final UnaryOperator<InputStream> shape;
+
+	/*
+	 * Scheduling of the writes to the staging file.
+	 */
+	private final TransferScheduler.Flow flow;
+
+	private final BitSet received = new BitSet();
+
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+	private final Semaphore slots;
+
+	private final ExecutorService handlers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "chunk-receiver");
+		t.setDaemon(true);
+		return t;
+	});
+
+	ChunkedUploadReceiver(ChunkedUpload upload, StagedFile staged, ServerSocket listener,
+			UnaryOperator<InputStream> shape, TransferScheduler.Flow flow) throws IOException {
+		checkChunks(upload.getSize(), upload.getChunkSize());
+		this.upload = upload;
+		this.staged = staged;
+		this.listener = listener;
+		this.shape = shape;
+		this.flow = flow;
+		this.channel = staged.getChannel();
+		this.slots = new Semaphore(maxConnections(upload.getChunkSize()));
+		handlers.execute(this::acceptLoop);
+	}
+
+	/*
+	 * Reject a chunk size out of range, or one that splits the file into more
+	 * chunks than can be numbered.
+	 */
+	static void checkChunks(long size, int chunkSize) throws IOException {
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IOException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE);
+		} else if ((size + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+			throw new IOException("Too many chunks: " + size + " bytes in chunks of " + chunkSize);
+		}
+	}
+
+	static int maxConnections(int chunkSize) {
+		return Math.max(1, Math.min(TransferTuner.MAX_STREAMS, MAX_BUFFERED_BYTES / chunkSize));
+	}
+
+	private void acceptLoop() {
+		while (!listener.isClosed()) {
+			try {
+				if (!slots.tryAcquire(SLOT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					continue;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				AcceptEvent accept = new AcceptEvent(Server.SIDE, listener.getLocalPort());
+				accept.begin();
+				Socket socket = listener.accept();
+				accept.commit();
+				handlers.execute(() -> receive(socket));
+			} catch (IOException | RuntimeException e) {
+				slots.release();
+				if (!listener.isClosed()) {
+					log.warning("Chunked upload " + upload.getId() + ": " + e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Receive chunks on one connection until the client closes it.
+	 */
+	private void receive(Socket socket) {
+		TransferEvent event = new TransferEvent(Server.SIDE, "chunk", getTarget().getFileName().toString(), "CHUNKED");
+		event.begin();
+		connections.add(socket);
+		try (socket) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(shape.apply(socket.getInputStream())));
+			OutputStream out = socket.getOutputStream();
+			byte[] data = new byte[upload.getChunkSize()];
+			CRC32C crc = new CRC32C();
+			while (true) {
+				int chunk;
+				try {
+					chunk = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (chunk < 0 || chunk >= upload.getChunks()) {
+					throw new IOException("Bad chunk index " + chunk);
+				}
+				int length = upload.length(chunk);
+				in.readFully(data, 0, length);
+				long expected = in.readLong();
+				crc.reset();
+				crc.update(data, 0, length);
+				boolean ok = crc.getValue() == expected;
+				if (ok) {
+					ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+					long position = upload.offset(chunk);
+					flow.acquire(length);
+					try {
+						while (buf.hasRemaining()) {
+							position += channel.write(buf, position);
+						}
+					} finally {
+						flow.release();
+					}
+					synchronized (received) {
+						received.set(chunk);
+					}
+					event.bytes += length;
+				} else {
+					log.warning("Chunked upload " + upload.getId() + ": bad checksum for chunk " + chunk);
+				}
+				out.write(ok ? ChunkedUpload.CHUNK_OK : ChunkedUpload.CHUNK_BAD);
+				out.flush();
+			}
+		} catch (IOException e) {
+			if (!listener.isClosed()) {
+				log.warning("Chunked upload " + upload.getId() + ": " + e);
+			}
+		} finally {
+			connections.remove(socket);
+			slots.release();
+			event.commit();
+		}
+	}
+
+	/*
+	 * The chunks not yet received.
+	 */
+	int[] missing() {
+		synchronized (received) {
+			BitSet missing = new BitSet(upload.getChunks());
+			missing.set(0, upload.getChunks());
+			missing.andNot(received);
+			return missing.stream().toArray();
+		}
+	}
+
+	/*
+	 * Move the staging file into place, if every chunk has arrived. Returns the
+	 * chunks still missing otherwise.
+	 */
+	int[] commit() throws IOException {
+		int[] missing = missing();
+		if (missing.length == 0) {
+			stopReceiving();
+			staged.commit();
+			log.info("Chunked upload " + upload.getId() + " committed to " + getTarget());
+		}
+		return missing;
+	}
+
+	void abort() {
+		stopReceiving();
+		staged.abort();
+	}
+
+	private void stopReceiving() {
+		try {
+			listener.close();
+		} catch (IOException e) {
+			log.warning("Chunked upload " + upload.getId() + ": " + e);
+		}
+		for (Socket socket : connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				;
+			}
+		}
+		handlers.shutdown();
+	}
+
+	Path getTarget() {
+		return staged.getTarget();
+	}
+
+}
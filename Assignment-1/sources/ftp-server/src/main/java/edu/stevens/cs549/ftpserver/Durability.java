@@ -0,0 +1,189 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * When uploaded data is forced to disk, set by server.durability:
+ * <ul>
+ * <li>none: leave it to the operating system;</li>
+ * <li>fsync: force every file, and its directory after the rename, before the
+ * upload completes;</li>
+ * <li>group: as for fsync, but a background flusher collects the requests
+ * made within server.groupCommitMillis and services them as one batch, so
+ * concurrent uploads share the wait and a directory is forced once per batch
+ * however many files were renamed into it. The forces of a batch are issued
+ * at once rather than one after another, so that a journaling file system
+ * can commit them together.</li>
+ * </ul>
+ * 
+ * @author dduggan
+ */
+class Durability {
+
+	private static Logger log = Logger.getLogger(Durability.class.getCanonicalName());
+
+	enum Policy {
+		NONE, FSYNC, GROUP
+	};
+
+	private final Policy policy;
+
+	private final long groupCommitMillis;
+
+	/*
+	 * Requests waiting for the next group commit: either a file channel or a
+	 * directory path.
+	 */
+	private static class Request {
+		final FileChannel channel;
+		final Path directory;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Request(FileChannel channel, Path directory) {
+			this.channel = channel;
+			this.directory = directory;
+		}
+	}
+
+	private List<Request> pending = new ArrayList<Request>();
+
+	/*
+	 * Forces in progress at once for a group commit.
+	 */
+	static final int FORCE_THREADS = 8;
+
+	private final ExecutorService forcers;
+
+	Durability(Policy policy, long groupCommitMillis) {
+		this.policy = policy;
+		this.groupCommitMillis = groupCommitMillis;
+		if (policy == Policy.GROUP) {
+			this.forcers = Executors.newFixedThreadPool(FORCE_THREADS, r -> {
+				Thread t = new Thread(r, "group-commit-force");
+				t.setDaemon(true);
+				return t;
+			});
+			Thread flusher = new Thread(this::flushLoop, "group-commit");
+			flusher.setDaemon(true);
+			flusher.start();
+		} else {
+			this.forcers = null;
+		}
+	}
+
+	Policy getPolicy() {
+		return policy;
+	}
+
+	/*
+	 * Make the contents of a file durable.
+	 */
+	void syncFile(FileChannel channel) throws IOException {
+		if (policy == Policy.FSYNC) {
+			channel.force(true);
+		} else if (policy == Policy.GROUP) {
+			await(submit(new Request(channel, null)));
+		}
+	}
+
+	/*
+	 * Make a rename into a directory durable.
+	 */
+	void syncDirectory(Path dir) throws IOException {
+		if (policy == Policy.FSYNC) {
+			forceDirectory(dir);
+		} else if (policy == Policy.GROUP) {
+			await(submit(new Request(null, dir)));
+		}
+	}
+
+	private static void forceDirectory(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			/*
+			 * Not every platform allows a directory to be opened for syncing.
+			 */
+			log.fine("Could not sync directory " + dir + ": " + e);
+		}
+	}
+
+	private synchronized CompletableFuture<Void> submit(Request request) {
+		pending.add(request);
+		notifyAll();
+		return request.done;
+	}
+
+	private void await(CompletableFuture<Void> done) throws IOException {
+		try {
+			done.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Sync failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for sync");
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			List<Request> batch;
+			try {
+				synchronized (this) {
+					while (pending.isEmpty()) {
+						wait();
+					}
+				}
+				/*
+				 * Let other uploads join the batch.
+				 */
+				Thread.sleep(groupCommitMillis);
+				synchronized (this) {
+					batch = pending;
+					pending = new ArrayList<Request>();
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			List<CompletableFuture<Void>> forces = new ArrayList<CompletableFuture<Void>>();
+			Set<Path> directories = new LinkedHashSet<Path>();
+			for (Request request : batch) {
+				if (request.channel != null) {
+					forces.add(CompletableFuture.runAsync(() -> {
+						try {
+							request.channel.force(true);
+							request.done.complete(null);
+						} catch (IOException e) {
+							request.done.completeExceptionally(e);
+						}
+					}, forcers));
+				} else {
+					directories.add(request.directory);
+				}
+			}
+			for (Path dir : directories) {
+				forces.add(CompletableFuture.runAsync(() -> forceDirectory(dir), forcers));
+			}
+			CompletableFuture.allOf(forces.toArray(new CompletableFuture<?>[0])).join();
+			for (Request request : batch) {
+				if (request.channel == null) {
+					request.done.complete(null);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,231 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.util.AcceptEvent;
+import edu.stevens.cs549.util.Streams;
+import edu.stevens.cs549.util.TransferEvent;
+
+/**
+ * Follows a file on a dedicated data connection, as tail -f does: sends it
+ * from an offset to its current end, then keeps the connection open and sends
+ * whatever is appended, until the client closes the connection or the session
+ * ends. The follower is woken by change notifications where the storage
+ * supports them, and otherwise polls the size of the file, more often while
+ * it is growing and less often while it is idle.
+ *
+ * The server closes the connection if the file is truncated, replaced or
+ * deleted, since what has been sent no longer matches it. A follow holds no
+ * transfer slot, since it is idle most of the time, and has no transfer
+ * digest.
+ *
+ * @author dduggan
+ */
+class FileFollower implements Runnable {
+
+	private static Logger log = Logger.getLogger(FileFollower.class.getCanonicalName());
+
+	static final long MIN_POLL_MILLIS = 10;
+
+	static final long MAX_POLL_MILLIS = 1000;
+
+	/*
+	 * With change notifications, polling only guards against a missed one.
+	 */
+	static final long WATCHED_POLL_MILLIS = 5000;
+
+	private final ServerSocket listener;
+
+	private final Storage storage;
+
+	private final Path file;
+
+	private final FileChannel channel;
+
+	private final String name;
+
+	private final long offset;
+
+	private final ChangeNotifier notifier;
+
+	private final UnaryOperator<OutputStream> shape;
+
+	private final Consumer<FileFollower> finished;
+
+	/*
+	 * Set by a change notification, and cleared when the follower wakes.
+	 * Guarded by this.
+	 */
+	private boolean changed = false;
+
+	private volatile boolean cancelled = false;
+
+	private volatile Socket socket = null;
+
+	/*
+	 * channel is open on the file, and closed when the follow ends. shape wraps
+	 * the data connection for the session's bandwidth limits, and finished is
+	 * called when the follow ends.
+	 */
+	FileFollower(ServerSocket listener, Storage storage, Path file, FileChannel channel, String name, long offset,
+			ChangeNotifier notifier, UnaryOperator<OutputStream> shape, Consumer<FileFollower> finished) {
+		this.listener = listener;
+		this.storage = storage;
+		this.file = file;
+		this.channel = channel;
+		this.name = name;
+		this.offset = offset;
+		this.notifier = notifier;
+		this.shape = shape;
+		this.finished = finished;
+	}
+
+	public void run() {
+		TransferEvent event = new TransferEvent(Server.SIDE, "follow", name, "FOLLOW");
+		try (channel) {
+			AcceptEvent accept = new AcceptEvent(Server.SIDE, listener.getLocalPort());
+			accept.begin();
+			try {
+				socket = listener.accept();
+			} finally {
+				listener.close();
+			}
+			accept.commit();
+			event.begin();
+			try (Socket s = socket; Closeable watch = watch()) {
+				Object key = storage.attributes(file).fileKey();
+				new Thread(() -> awaitClose(s), "follow-close").start();
+				event.bytes = follow(key, shape.apply(s.getOutputStream()), watch != null);
+			}
+			log.info("Stopped following " + name + ".");
+		} catch (IOException | RuntimeException e) {
+			if (!cancelled) {
+				log.warning("Following " + name + " failed: " + e);
+			}
+		} finally {
+			event.commit();
+			finished.accept(this);
+		}
+	}
+
+	/*
+	 * Send the file as it grows, returning the number of bytes sent.
+	 */
+	private long follow(Object key, OutputStream out, boolean watched) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Streams.BUFFER_SIZE);
+		long position = offset;
+		long poll = MIN_POLL_MILLIS;
+		while (!cancelled) {
+			long size = channel.size();
+			if (size < position) {
+				log.info("Following " + name + ": file truncated.");
+				break;
+			} else if (size > position) {
+				while (position < size && !cancelled) {
+					buffer.clear();
+					int n = channel.read(buffer, position);
+					if (n <= 0) {
+						break;
+					}
+					out.write(buffer.array(), 0, n);
+					position += n;
+				}
+				out.flush();
+				poll = MIN_POLL_MILLIS;
+			} else if (replaced(key)) {
+				log.info("Following " + name + ": file replaced or deleted.");
+				break;
+			} else {
+				await(poll);
+				poll = Math.min(poll * 2, watched ? WATCHED_POLL_MILLIS : MAX_POLL_MILLIS);
+			}
+		}
+		return position - offset;
+	}
+
+	private boolean replaced(Object key) throws IOException {
+		try {
+			Object now = storage.attributes(file).fileKey();
+			return key != null && now != null && !Objects.equals(key, now);
+		} catch (NoSuchFileException e) {
+			return true;
+		}
+	}
+
+	/*
+	 * Change notifications for the file, or null if the storage cannot be
+	 * watched.
+	 */
+	private Closeable watch() {
+		try {
+			return notifier.follow(file, this::wake);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private synchronized void wake() {
+		changed = true;
+		notifyAll();
+	}
+
+	private synchronized void await(long millis) throws IOException {
+		try {
+			if (!changed && !cancelled) {
+				wait(millis);
+			}
+			changed = false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while following " + name, e);
+		}
+	}
+
+	/*
+	 * The client sends nothing, and closes the connection to stop the follow.
+	 */
+	private void awaitClose(Socket s) {
+		try {
+			InputStream in = s.getInputStream();
+			while (in.read() >= 0) {
+				;
+			}
+		} catch (IOException e) {
+			;
+		}
+		cancel();
+	}
+
+	/*
+	 * Stop the follow, even if it is waiting for the client to connect or to
+	 * read.
+	 */
+	void cancel() {
+		cancelled = true;
+		wake();
+		Socket s = socket;
+		try {
+			if (s == null) {
+				listener.close();
+			} else {
+				s.close();
+			}
+		} catch (IOException e) {
+			;
+		}
+	}
+
+}
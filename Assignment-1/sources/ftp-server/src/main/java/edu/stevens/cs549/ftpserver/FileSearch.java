@@ -0,0 +1,197 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.ftpinterface.FileInfo;
+import edu.stevens.cs549.ftpinterface.FindQuery;
+
+/**
+ * A search of a directory tree, run in the background on a fork/join pool with
+ * one task per directory. Matches are queued as they are found and handed out
+ * a page at a time; once the queue is full the walk waits for the client to
+ * read, and gives up if the client stops reading for too long. A glob with a
+ * '/' is matched against the path below the root of the search, and any
+ * other against the file name. The tree is listed through the storage backend, so files
+ * it has moved elsewhere (e.g. to a cold tier) are found too. Symbolic links
+ * are not followed, so the search cannot leave the tree, and the server's
+ * internal files are skipped.
+ *
+ * @author dduggan
+ */
+class FileSearch {
+
+	private static Logger log = Logger.getLogger(FileSearch.class.getCanonicalName());
+
+	/*
+	 * How long a page waits for more matches before it is returned short.
+	 */
+	static final long PAGE_WAIT_MILLIS = 500;
+
+	/*
+	 * Matches found ahead of the client.
+	 */
+	static final int MAX_QUEUED = 10000;
+
+	/*
+	 * How long a search is kept without a page being read.
+	 */
+	static final long IDLE_MILLIS = 5 * 60 * 1000;
+
+	/*
+	 * How often a walk waiting on a full queue checks the search is still wanted.
+	 */
+	private static final long QUEUE_POLL_MILLIS = 1000;
+
+	private final Storage storage;
+
+	private final Path root;
+
+	private final FindQuery query;
+
+	private final PathMatcher matcher;
+
+	private final boolean matchPath;
+
+	private final BlockingQueue<FileInfo> matches = new LinkedBlockingQueue<FileInfo>(MAX_QUEUED);
+
+	private ForkJoinTask<Void> walk;
+
+	private volatile boolean cancelled = false;
+
+	private volatile long lastRead = System.nanoTime();
+
+	FileSearch(Storage storage, Path root, FindQuery query) {
+		this.storage = storage;
+		this.root = root;
+		this.query = query;
+		this.matcher = query.getGlob() == null ? null
+				: root.getFileSystem().getPathMatcher("glob:" + query.getGlob());
+		this.matchPath = query.getGlob() != null && query.getGlob().contains("/");
+	}
+
+	void start(ForkJoinPool pool) {
+		walk = pool.submit(new Walk(root));
+	}
+
+	void cancel() {
+		cancelled = true;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	boolean isIdle() {
+		return System.nanoTime() - lastRead > TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+	}
+
+	private boolean nameMatches(Path entry) {
+		return matcher == null || matcher.matches(matchPath ? root.relativize(entry) : entry.getFileName());
+	}
+
+	/*
+	 * Queue a match, blocking while the queue is full so that the pool can make
+	 * up for the waiting thread.
+	 */
+	private void add(FileInfo match) {
+		try {
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				private boolean queued = false;
+
+				public boolean isReleasable() {
+					if (!queued && !cancelled) {
+						queued = matches.offer(match);
+					}
+					return queued || cancelled;
+				}
+
+				public boolean block() throws InterruptedException {
+					queued = matches.offer(match, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (!queued && isIdle()) {
+						log.info("Search of " + root + " abandoned: no page read for " + IDLE_MILLIS + " ms");
+						cancelled = true;
+					}
+					return queued || cancelled;
+				}
+			});
+		} catch (InterruptedException e) {
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class Walk extends RecursiveAction {
+
+		static final long serialVersionUID = 0L;
+
+		private final Path dir;
+
+		Walk(Path dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled) {
+				return;
+			}
+			List<Walk> subdirs = new ArrayList<Walk>();
+			try {
+				for (String name : storage.list(dir)) {
+					Path entry = dir.resolve(name);
+					BasicFileAttributes attrs = storage.attributes(entry, LinkOption.NOFOLLOW_LINKS);
+					if (attrs.isDirectory()) {
+						subdirs.add(new Walk(entry));
+					} else if (attrs.isRegularFile() && nameMatches(entry)
+							&& query.matches(attrs.size(), attrs.lastModifiedTime().toMillis())) {
+						add(new FileInfo(root.relativize(entry).toString(), attrs.size(),
+								attrs.lastModifiedTime().toMillis()));
+					}
+				}
+			} catch (IOException e) {
+				log.info("Search skipping " + dir + ": " + e);
+			}
+			invokeAll(subdirs);
+		}
+	}
+
+	/*
+	 * The next page of at most size matches, or fewer if the search has finished
+	 * or none turn up for a while. An empty page means the search is over.
+	 */
+	FileInfo[] nextPage(int size) throws InterruptedException {
+		lastRead = System.nanoTime();
+		List<FileInfo> page = new ArrayList<FileInfo>();
+		matches.drainTo(page, size);
+		while (page.size() < size && !(walk.isDone() && matches.isEmpty())) {
+			FileInfo next = matches.poll(PAGE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			if (next == null) {
+				if (!page.isEmpty()) {
+					break;
+				}
+			} else {
+				page.add(next);
+				matches.drainTo(page, size - page.size());
+			}
+		}
+		return page.toArray(new FileInfo[0]);
+	}
+
+	boolean isFinished() {
+		return walk.isDone() && matches.isEmpty();
+	}
+
+}
@@ -0,0 +1,320 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import edu.stevens.cs549.ftpserver.MemoryFileSystem.FileNode;
+
+/**
+ * A channel onto a file in a memory file system. Positional reads and writes
+ * go straight to the file, so several threads can share a channel as they do
+ * for a file on disk. Forcing is a no-op, and memory files cannot be mapped.
+ *
+ * Locks are kept in the file, so they only exclude other channels in this
+ * process: lock() waits until no lock held through another channel conflicts,
+ * and tryLock() returns null instead. As for a file on disk, a lock that
+ * overlaps one held through the same channel is an OverlappingFileLockException,
+ * and closing the channel releases its locks.
+ *
+ * @author dduggan
+ */
+class MemoryFileChannel extends FileChannel {
+
+	private final FileNode file;
+
+	private final boolean readable;
+
+	private final boolean writable;
+
+	private final boolean append;
+
+	private long position = 0;
+
+	MemoryFileChannel(FileNode file, boolean readable, boolean writable, boolean append) {
+		this.file = file;
+		this.readable = readable;
+		this.writable = writable;
+		this.append = append;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	private void ensureReadable() throws IOException {
+		ensureOpen();
+		if (!readable) {
+			throw new NonReadableChannelException();
+		}
+	}
+
+	private void ensureWritable() throws IOException {
+		ensureOpen();
+		if (!writable) {
+			throw new NonWritableChannelException();
+		}
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureReadable();
+		int n = file.read(position, dst);
+		if (n > 0) {
+			position += n;
+		}
+		return n;
+	}
+
+	@Override
+	public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		ensureReadable();
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int n = file.read(position, dsts[i]);
+			if (n < 0) {
+				return total == 0 ? -1 : total;
+			}
+			position += n;
+			total += n;
+			if (dsts[i].hasRemaining()) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException {
+		ensureWritable();
+		if (append) {
+			position = file.size();
+		}
+		int n = file.write(position, src);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			total += write(srcs[i]);
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return append ? file.size() : position;
+	}
+
+	@Override
+	public synchronized FileChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position " + newPosition);
+		}
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return file.size();
+	}
+
+	@Override
+	public synchronized FileChannel truncate(long size) throws IOException {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative size " + size);
+		}
+		ensureWritable();
+		file.truncate(size);
+		position = Math.min(position, size);
+		return this;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		ensureOpen();
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ensureReadable();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, MemoryFileSystem.BLOCK_SIZE));
+		long total = 0;
+		while (total < count) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), count - total));
+			int n = file.read(position + total, buffer);
+			if (n <= 0) {
+				break;
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		ensureWritable();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, MemoryFileSystem.BLOCK_SIZE));
+		long total = 0;
+		while (total < count) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), count - total));
+			int n = src.read(buffer);
+			if (n <= 0) {
+				break;
+			}
+			file.write(position + total, buffer.flip());
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative position " + position);
+		}
+		ensureReadable();
+		return file.read(position, dst);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative position " + position);
+		}
+		ensureWritable();
+		return file.write(position, src);
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		throw new IOException("Memory files cannot be mapped");
+	}
+
+	private class Lock extends FileLock {
+		private boolean valid = true;
+
+		Lock(long position, long size, boolean shared) {
+			super(MemoryFileChannel.this, position, size, shared);
+		}
+
+		@Override
+		public boolean isValid() {
+			synchronized (file.locks) {
+				return valid;
+			}
+		}
+
+		@Override
+		public void release() throws IOException {
+			synchronized (file.locks) {
+				if (valid) {
+					ensureOpen();
+					invalidate();
+				}
+			}
+		}
+
+		/*
+		 * Called holding the file's lock list.
+		 */
+		void invalidate() {
+			valid = false;
+			file.locks.remove(this);
+			file.locks.notifyAll();
+		}
+	}
+
+	/*
+	 * Whether a lock held through another channel conflicts with the one
+	 * requested. Called holding the file's lock list.
+	 */
+	private boolean conflicts(FileLock wanted) {
+		for (FileLock held : file.locks) {
+			if (held.overlaps(wanted.position(), wanted.size())) {
+				if (held.channel() == this) {
+					throw new OverlappingFileLockException();
+				} else if (!(held.isShared() && wanted.isShared())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private Lock newLock(long position, long size, boolean shared) throws IOException {
+		Lock lock = new Lock(position, size, shared);
+		if (shared) {
+			ensureReadable();
+		} else {
+			ensureWritable();
+		}
+		return lock;
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		Lock lock = newLock(position, size, shared);
+		synchronized (file.locks) {
+			try {
+				while (conflicts(lock)) {
+					file.locks.wait();
+					ensureOpen();
+				}
+			} catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new FileLockInterruptionException();
+			}
+			file.locks.add(lock);
+			return lock;
+		}
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		Lock lock = newLock(position, size, shared);
+		synchronized (file.locks) {
+			if (conflicts(lock)) {
+				return null;
+			}
+			file.locks.add(lock);
+			return lock;
+		}
+	}
+
+	@Override
+	protected void implCloseChannel() {
+		synchronized (file.locks) {
+			for (FileLock held : file.locks.toArray(new FileLock[0])) {
+				if (held.channel() == this) {
+					((Lock) held).invalidate();
+				}
+			}
+			file.locks.notifyAll();
+		}
+	}
+
+}
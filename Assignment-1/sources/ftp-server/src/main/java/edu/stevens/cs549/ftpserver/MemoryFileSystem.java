@@ -0,0 +1,433 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A file system held entirely in memory, for benchmarking the network path
+ * without disk noise and for scratch areas served at memory speed. Contents
+ * are lost when the server exits. File data is kept in fixed-size blocks that
+ * are allocated as they are written, against an optional capacity.
+ *
+ * The directory tree is guarded by a single read/write lock; the data of each
+ * file has its own, so transfers of different files do not contend.
+ *
+ * @author dduggan
+ */
+class MemoryFileSystem extends FileSystem {
+
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private final MemoryFileSystemProvider provider;
+
+	private final String name;
+
+	/*
+	 * Bytes of file data allowed, 0 for no limit.
+	 */
+	private final long capacity;
+
+	private final AtomicLong used = new AtomicLong();
+
+	private final AtomicLong nextId = new AtomicLong();
+
+	final ReadWriteLock tree = new ReentrantReadWriteLock();
+
+	final Dir root = new Dir();
+
+	private final FileStore store = new Store();
+
+	private volatile boolean open = true;
+
+	MemoryFileSystem(String name, long capacity) {
+		this.provider = new MemoryFileSystemProvider(this);
+		this.name = name;
+		this.capacity = capacity;
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Nodes of the tree.
+	 */
+
+	abstract class Node {
+		final long id = nextId.incrementAndGet();
+		volatile long created = System.currentTimeMillis();
+		volatile long modified = created;
+		volatile long accessed = created;
+
+		abstract long size();
+
+		BasicFileAttributes attributes() {
+			boolean directory = this instanceof Dir;
+			long size = size();
+			return new BasicFileAttributes() {
+				public FileTime lastModifiedTime() {
+					return FileTime.fromMillis(modified);
+				}
+
+				public FileTime lastAccessTime() {
+					return FileTime.fromMillis(accessed);
+				}
+
+				public FileTime creationTime() {
+					return FileTime.fromMillis(created);
+				}
+
+				public boolean isRegularFile() {
+					return !directory;
+				}
+
+				public boolean isDirectory() {
+					return directory;
+				}
+
+				public boolean isSymbolicLink() {
+					return false;
+				}
+
+				public boolean isOther() {
+					return false;
+				}
+
+				public long size() {
+					return size;
+				}
+
+				public Object fileKey() {
+					return id;
+				}
+			};
+		}
+	}
+
+	/*
+	 * Entries are kept sorted, so listings come out in name order. Guarded by
+	 * the tree lock.
+	 */
+	class Dir extends Node {
+		final TreeMap<String, Node> entries = new TreeMap<String, Node>();
+
+		long size() {
+			return 0;
+		}
+	}
+
+	class FileNode extends Node {
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/*
+		 * Locks held through channels on the file, guarded by the list itself.
+		 */
+		final List<FileLock> locks = new ArrayList<FileLock>();
+
+		private byte[][] blocks = new byte[0][];
+		private long size = 0;
+
+		long size() {
+			lock.readLock().lock();
+			try {
+				return size;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/*
+		 * Read into dst from position, returning the number of bytes read, or -1
+		 * at the end of the file. Holes read as zeros.
+		 */
+		int read(long position, ByteBuffer dst) {
+			lock.readLock().lock();
+			try {
+				if (position >= size) {
+					return dst.hasRemaining() ? -1 : 0;
+				}
+				int total = 0;
+				while (dst.hasRemaining() && position < size) {
+					int index = (int) (position / BLOCK_SIZE);
+					int offset = (int) (position % BLOCK_SIZE);
+					int n = (int) Math.min(Math.min(dst.remaining(), BLOCK_SIZE - offset), size - position);
+					byte[] block = index < blocks.length ? blocks[index] : null;
+					if (block == null) {
+						for (int i = 0; i < n; i++) {
+							dst.put((byte) 0);
+						}
+					} else {
+						dst.put(block, offset, n);
+					}
+					position += n;
+					total += n;
+				}
+				accessed = System.currentTimeMillis();
+				return total;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/*
+		 * Write all of src at position, growing the file if need be.
+		 */
+		int write(long position, ByteBuffer src) throws IOException {
+			lock.writeLock().lock();
+			try {
+				int total = src.remaining();
+				long end = position + total;
+				int last = (int) ((end + BLOCK_SIZE - 1) / BLOCK_SIZE);
+				if (last > blocks.length) {
+					blocks = Arrays.copyOf(blocks, Math.max(last, blocks.length * 2));
+				}
+				while (src.hasRemaining()) {
+					int index = (int) (position / BLOCK_SIZE);
+					int offset = (int) (position % BLOCK_SIZE);
+					int n = Math.min(src.remaining(), BLOCK_SIZE - offset);
+					if (blocks[index] == null) {
+						reserve(BLOCK_SIZE);
+						blocks[index] = new byte[BLOCK_SIZE];
+					}
+					src.get(blocks[index], offset, n);
+					position += n;
+				}
+				size = Math.max(size, end);
+				modified = System.currentTimeMillis();
+				return total;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void truncate(long newSize) {
+			lock.writeLock().lock();
+			try {
+				if (newSize >= size) {
+					return;
+				}
+				int keep = (int) ((newSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+				for (int i = keep; i < blocks.length; i++) {
+					if (blocks[i] != null) {
+						blocks[i] = null;
+						release(BLOCK_SIZE);
+					}
+				}
+				/*
+				 * Zero the tail of the last block, so the file reads as zeros if it
+				 * grows again.
+				 */
+				int tail = (int) (newSize % BLOCK_SIZE);
+				if (tail != 0 && blocks[keep - 1] != null) {
+					Arrays.fill(blocks[keep - 1], tail, BLOCK_SIZE, (byte) 0);
+				}
+				size = newSize;
+				modified = System.currentTimeMillis();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/*
+		 * Give back the space of a file that has been removed.
+		 */
+		void free() {
+			truncate(0);
+		}
+	}
+
+	private void reserve(long bytes) throws IOException {
+		long now = used.addAndGet(bytes);
+		if (capacity > 0 && now > capacity) {
+			used.addAndGet(-bytes);
+			throw new FileSystemException(name, null, "No space left in memory storage");
+		}
+	}
+
+	private void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Lookup, with the tree lock held.
+	 */
+
+	Node lookup(Path path) throws IOException {
+		Node node = root;
+		for (String name : check(path).names()) {
+			if (!(node instanceof Dir)) {
+				throw new NotDirectoryException(path.toString());
+			}
+			node = ((Dir) node).entries.get(name);
+			if (node == null) {
+				throw new NoSuchFileException(path.toString());
+			}
+		}
+		return node;
+	}
+
+	Dir lookupDir(Path path) throws IOException {
+		Node node = lookup(path);
+		if (!(node instanceof Dir)) {
+			throw new NotDirectoryException(path.toString());
+		}
+		return (Dir) node;
+	}
+
+	/*
+	 * Paths are looked up from the root, after removing "." and "..".
+	 */
+	MemoryPath check(Path path) {
+		if (!(path instanceof MemoryPath) || path.getFileSystem() != this) {
+			throw new ProviderMismatchException();
+		}
+		return (MemoryPath) path.toAbsolutePath().normalize();
+	}
+
+	/*
+	 * *****************************************************************************
+	 */
+
+	@Override
+	public MemoryFileSystemProvider provider() {
+		return provider;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return false;
+	}
+
+	@Override
+	public String getSeparator() {
+		return "/";
+	}
+
+	@Override
+	public Iterable<Path> getRootDirectories() {
+		return Collections.singletonList(getPath("/"));
+	}
+
+	@Override
+	public Iterable<FileStore> getFileStores() {
+		return Collections.singletonList(store);
+	}
+
+	FileStore getFileStore() {
+		return store;
+	}
+
+	@Override
+	public Set<String> supportedFileAttributeViews() {
+		return Collections.singleton("basic");
+	}
+
+	@Override
+	public Path getPath(String first, String... more) {
+		StringBuilder path = new StringBuilder(first);
+		for (String name : more) {
+			if (!name.isEmpty()) {
+				path.append('/').append(name);
+			}
+		}
+		return MemoryPath.parse(this, path.toString());
+	}
+
+	/*
+	 * Patterns are matched against the path's string form, using the platform's
+	 * syntax for globs and regular expressions.
+	 */
+	@Override
+	public PathMatcher getPathMatcher(String syntaxAndPattern) {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+		return path -> matcher.matches(Paths.get(path.toString()));
+	}
+
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		throw new UnsupportedOperationException("Memory storage has no users");
+	}
+
+	@Override
+	public WatchService newWatchService() {
+		throw new UnsupportedOperationException("Memory storage cannot be watched");
+	}
+
+	private class Store extends FileStore {
+		public String name() {
+			return name;
+		}
+
+		public String type() {
+			return "memory";
+		}
+
+		public boolean isReadOnly() {
+			return false;
+		}
+
+		public long getTotalSpace() {
+			return capacity > 0 ? capacity : Runtime.getRuntime().maxMemory();
+		}
+
+		public long getUsableSpace() {
+			return Math.max(0, getTotalSpace() - used.get());
+		}
+
+		public long getUnallocatedSpace() {
+			return getUsableSpace();
+		}
+
+		public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+			return type == BasicFileAttributeView.class;
+		}
+
+		public boolean supportsFileAttributeView(String name) {
+			return "basic".equals(name);
+		}
+
+		public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+			return null;
+		}
+
+		public Object getAttribute(String attribute) {
+			throw new UnsupportedOperationException("No attribute " + attribute);
+		}
+	}
+
+}
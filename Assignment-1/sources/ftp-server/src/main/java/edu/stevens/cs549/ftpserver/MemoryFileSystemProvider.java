@@ -0,0 +1,462 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.stevens.cs549.ftpserver.MemoryFileSystem.Dir;
+import edu.stevens.cs549.ftpserver.MemoryFileSystem.FileNode;
+import edu.stevens.cs549.ftpserver.MemoryFileSystem.Node;
+
+/**
+ * The operations of a memory file system, as called through
+ * java.nio.file.Files. Each provider serves the single file system it was
+ * created with; they are not registered or looked up by URI.
+ *
+ * @author dduggan
+ */
+class MemoryFileSystemProvider extends FileSystemProvider {
+
+	private final MemoryFileSystem fs;
+
+	MemoryFileSystemProvider(MemoryFileSystem fs) {
+		this.fs = fs;
+	}
+
+	@Override
+	public String getScheme() {
+		return "memory";
+	}
+
+	@Override
+	public FileSystem newFileSystem(URI uri, Map<String, ?> env) {
+		throw new UnsupportedOperationException("Memory file systems are created by the server");
+	}
+
+	@Override
+	public FileSystem getFileSystem(URI uri) {
+		throw new UnsupportedOperationException("Memory file systems are not looked up by URI");
+	}
+
+	@Override
+	public Path getPath(URI uri) {
+		throw new UnsupportedOperationException("Memory file systems are not looked up by URI");
+	}
+
+	@Override
+	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+			throws IOException {
+		return newFileChannel(path, options, attrs);
+	}
+
+	@Override
+	public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+			throws IOException {
+		if (options.contains(StandardOpenOption.DELETE_ON_CLOSE)) {
+			throw new UnsupportedOperationException("DELETE_ON_CLOSE");
+		}
+		boolean append = options.contains(StandardOpenOption.APPEND);
+		boolean write = append || options.contains(StandardOpenOption.WRITE);
+		boolean read = options.contains(StandardOpenOption.READ) || !write;
+		boolean createNew = write && options.contains(StandardOpenOption.CREATE_NEW);
+		boolean create = write && (createNew || options.contains(StandardOpenOption.CREATE));
+		if (append && options.contains(StandardOpenOption.READ)) {
+			throw new IllegalArgumentException("READ and APPEND");
+		}
+		MemoryPath p = fs.check(path);
+		Node node;
+		if (create) {
+			fs.tree.writeLock().lock();
+		} else {
+			fs.tree.readLock().lock();
+		}
+		try {
+			if (p.getNameCount() == 0) {
+				node = fs.root;
+			} else {
+				Dir parent = fs.lookupDir(p.getParent());
+				String name = p.getFileName().toString();
+				node = parent.entries.get(name);
+				if (node == null) {
+					if (!create) {
+						throw new NoSuchFileException(path.toString());
+					}
+					node = fs.new FileNode();
+					parent.entries.put(name, node);
+					parent.modified = System.currentTimeMillis();
+				} else if (createNew) {
+					throw new FileAlreadyExistsException(path.toString());
+				}
+			}
+		} finally {
+			if (create) {
+				fs.tree.writeLock().unlock();
+			} else {
+				fs.tree.readLock().unlock();
+			}
+		}
+		if (!(node instanceof FileNode)) {
+			throw new FileSystemException(path.toString(), null, "Is a directory");
+		}
+		FileNode file = (FileNode) node;
+		if (write && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+			file.truncate(0);
+		}
+		return new MemoryFileChannel(file, read, write, append);
+	}
+
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+			throws IOException {
+		List<String> names;
+		fs.tree.readLock().lock();
+		try {
+			names = new ArrayList<String>(fs.lookupDir(dir).entries.keySet());
+		} finally {
+			fs.tree.readLock().unlock();
+		}
+		Iterator<String> it = names.iterator();
+		return new DirectoryStream<Path>() {
+			private boolean iterated = false;
+
+			@Override
+			public Iterator<Path> iterator() {
+				if (iterated) {
+					throw new IllegalStateException("Directory stream already iterated");
+				}
+				iterated = true;
+				return new Iterator<Path>() {
+					private Path next = advance();
+
+					private Path advance() {
+						while (it.hasNext()) {
+							Path entry = dir.resolve(it.next());
+							try {
+								if (filter == null || filter.accept(entry)) {
+									return entry;
+								}
+							} catch (IOException e) {
+								throw new DirectoryIteratorException(e);
+							}
+						}
+						return null;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next != null;
+					}
+
+					@Override
+					public Path next() {
+						if (next == null) {
+							throw new NoSuchElementException();
+						}
+						Path result = next;
+						next = advance();
+						return result;
+					}
+				};
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+		MemoryPath p = fs.check(dir);
+		if (p.getNameCount() == 0) {
+			throw new FileAlreadyExistsException(dir.toString());
+		}
+		fs.tree.writeLock().lock();
+		try {
+			Dir parent = fs.lookupDir(p.getParent());
+			String name = p.getFileName().toString();
+			if (parent.entries.containsKey(name)) {
+				throw new FileAlreadyExistsException(dir.toString());
+			}
+			parent.entries.put(name, fs.new Dir());
+			parent.modified = System.currentTimeMillis();
+		} finally {
+			fs.tree.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void delete(Path path) throws IOException {
+		MemoryPath p = fs.check(path);
+		if (p.getNameCount() == 0) {
+			throw new FileSystemException(path.toString(), null, "Cannot delete the root");
+		}
+		Node removed;
+		fs.tree.writeLock().lock();
+		try {
+			Dir parent = fs.lookupDir(p.getParent());
+			String name = p.getFileName().toString();
+			removed = parent.entries.get(name);
+			if (removed == null) {
+				throw new NoSuchFileException(path.toString());
+			} else if (removed instanceof Dir && !((Dir) removed).entries.isEmpty()) {
+				throw new DirectoryNotEmptyException(path.toString());
+			}
+			parent.entries.remove(name);
+			parent.modified = System.currentTimeMillis();
+		} finally {
+			fs.tree.writeLock().unlock();
+		}
+		if (removed instanceof FileNode) {
+			((FileNode) removed).free();
+		}
+	}
+
+	@Override
+	public void copy(Path source, Path target, CopyOption... options) throws IOException {
+		boolean replace = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING);
+		Node node;
+		fs.tree.readLock().lock();
+		try {
+			node = fs.lookup(source);
+		} finally {
+			fs.tree.readLock().unlock();
+		}
+		if (replace) {
+			deleteIfExists(target);
+		}
+		if (node instanceof Dir) {
+			createDirectory(target);
+			return;
+		}
+		FileNode from = (FileNode) node;
+		try (FileChannel out = newFileChannel(target, Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW))) {
+			ByteBuffer buffer = ByteBuffer.allocate(MemoryFileSystem.BLOCK_SIZE);
+			long position = 0;
+			int n;
+			while ((n = from.read(position, buffer.clear())) > 0) {
+				out.write(buffer.flip());
+				position += n;
+			}
+		}
+		if (Arrays.asList(options).contains(StandardCopyOption.COPY_ATTRIBUTES)) {
+			getFileAttributeView(target, BasicFileAttributeView.class).setTimes(FileTime.fromMillis(from.modified),
+					null, null);
+		}
+	}
+
+	/*
+	 * A move is always atomic: it relinks the node with the tree locked.
+	 */
+	@Override
+	public void move(Path source, Path target, CopyOption... options) throws IOException {
+		boolean replace = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING);
+		MemoryPath from = fs.check(source);
+		MemoryPath to = fs.check(target);
+		if (from.getNameCount() == 0 || to.getNameCount() == 0) {
+			throw new FileSystemException(source.toString(), target.toString(), "Cannot move the root");
+		} else if (to.startsWith(from) && !to.equals(from)) {
+			throw new FileSystemException(source.toString(), target.toString(), "Cannot move a directory into itself");
+		}
+		Node replaced;
+		fs.tree.writeLock().lock();
+		try {
+			Dir fromDir = fs.lookupDir(from.getParent());
+			Dir toDir = fs.lookupDir(to.getParent());
+			String fromName = from.getFileName().toString();
+			String toName = to.getFileName().toString();
+			Node node = fromDir.entries.get(fromName);
+			if (node == null) {
+				throw new NoSuchFileException(source.toString());
+			}
+			replaced = toDir.entries.get(toName);
+			if (replaced == node) {
+				return;
+			} else if (replaced != null) {
+				if (!replace) {
+					throw new FileAlreadyExistsException(target.toString());
+				} else if (replaced instanceof Dir && !((Dir) replaced).entries.isEmpty()) {
+					throw new DirectoryNotEmptyException(target.toString());
+				}
+			}
+			fromDir.entries.remove(fromName);
+			toDir.entries.put(toName, node);
+			long now = System.currentTimeMillis();
+			fromDir.modified = now;
+			toDir.modified = now;
+		} finally {
+			fs.tree.writeLock().unlock();
+		}
+		if (replaced instanceof FileNode) {
+			((FileNode) replaced).free();
+		}
+	}
+
+	@Override
+	public boolean isSameFile(Path path, Path path2) throws IOException {
+		if (path.equals(path2)) {
+			return true;
+		} else if (path2.getFileSystem() != fs) {
+			return false;
+		}
+		fs.tree.readLock().lock();
+		try {
+			return fs.lookup(path) == fs.lookup(path2);
+		} finally {
+			fs.tree.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isHidden(Path path) {
+		Path name = path.getFileName();
+		return name != null && name.toString().startsWith(".");
+	}
+
+	@Override
+	public FileStore getFileStore(Path path) throws IOException {
+		checkAccess(path);
+		return fs.getFileStore();
+	}
+
+	@Override
+	public void checkAccess(Path path, AccessMode... modes) throws IOException {
+		fs.tree.readLock().lock();
+		try {
+			fs.lookup(path);
+		} finally {
+			fs.tree.readLock().unlock();
+		}
+	}
+
+	private Node node(Path path) throws IOException {
+		fs.tree.readLock().lock();
+		try {
+			return fs.lookup(path);
+		} finally {
+			fs.tree.readLock().unlock();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+		if (type != BasicFileAttributeView.class) {
+			return null;
+		}
+		return (V) new BasicFileAttributeView() {
+			@Override
+			public String name() {
+				return "basic";
+			}
+
+			@Override
+			public BasicFileAttributes readAttributes() throws IOException {
+				return node(path).attributes();
+			}
+
+			@Override
+			public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime)
+					throws IOException {
+				Node node = node(path);
+				if (lastModifiedTime != null) {
+					node.modified = lastModifiedTime.toMillis();
+				}
+				if (lastAccessTime != null) {
+					node.accessed = lastAccessTime.toMillis();
+				}
+				if (createTime != null) {
+					node.created = createTime.toMillis();
+				}
+			}
+		};
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+			throws IOException {
+		if (!type.isAssignableFrom(BasicFileAttributes.class)) {
+			throw new UnsupportedOperationException("No attributes of type " + type.getName());
+		}
+		return (A) node(path).attributes();
+	}
+
+	@Override
+	public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+			throws IOException {
+		String names = attributes.startsWith("basic:") ? attributes.substring("basic:".length()) : attributes;
+		if (names.contains(":")) {
+			throw new UnsupportedOperationException("Only basic attributes are supported: " + attributes);
+		}
+		BasicFileAttributes attrs = node(path).attributes();
+		Map<String, Object> all = new HashMap<String, Object>();
+		all.put("lastModifiedTime", attrs.lastModifiedTime());
+		all.put("lastAccessTime", attrs.lastAccessTime());
+		all.put("creationTime", attrs.creationTime());
+		all.put("size", attrs.size());
+		all.put("isRegularFile", attrs.isRegularFile());
+		all.put("isDirectory", attrs.isDirectory());
+		all.put("isSymbolicLink", attrs.isSymbolicLink());
+		all.put("isOther", attrs.isOther());
+		all.put("fileKey", attrs.fileKey());
+		if ("*".equals(names)) {
+			return all;
+		}
+		Map<String, Object> result = new HashMap<String, Object>();
+		for (String name : names.split(",")) {
+			if (!all.containsKey(name)) {
+				throw new IllegalArgumentException("No attribute " + name);
+			}
+			result.put(name, all.get(name));
+		}
+		return result;
+	}
+
+	@Override
+	public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+		String name = attribute.startsWith("basic:") ? attribute.substring("basic:".length()) : attribute;
+		BasicFileAttributeView view = getFileAttributeView(path, BasicFileAttributeView.class);
+		if ("lastModifiedTime".equals(name)) {
+			view.setTimes((FileTime) value, null, null);
+		} else if ("lastAccessTime".equals(name)) {
+			view.setTimes(null, (FileTime) value, null);
+		} else if ("creationTime".equals(name)) {
+			view.setTimes(null, null, (FileTime) value);
+		} else {
+			throw new UnsupportedOperationException("Cannot set " + attribute);
+		}
+	}
+
+}
@@ -0,0 +1,246 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A path in a memory file system: a sequence of names, absolute if it starts
+ * at the root. Paths are only syntax; nothing is looked up until the path is
+ * used to open or query a file.
+ *
+ * @author dduggan
+ */
+final class MemoryPath implements Path {
+
+	private final MemoryFileSystem fs;
+
+	private final boolean absolute;
+
+	private final String[] names;
+
+	MemoryPath(MemoryFileSystem fs, boolean absolute, String[] names) {
+		this.fs = fs;
+		this.absolute = absolute;
+		this.names = names;
+	}
+
+	static MemoryPath parse(MemoryFileSystem fs, String path) {
+		List<String> names = new ArrayList<String>();
+		for (String name : path.split("/")) {
+			if (!name.isEmpty()) {
+				names.add(name);
+			}
+		}
+		return new MemoryPath(fs, path.startsWith("/"), names.toArray(new String[0]));
+	}
+
+	String[] names() {
+		return names;
+	}
+
+	private MemoryPath check(Path other) {
+		if (!(other instanceof MemoryPath) || ((MemoryPath) other).fs != fs) {
+			throw new ProviderMismatchException();
+		}
+		return (MemoryPath) other;
+	}
+
+	@Override
+	public MemoryFileSystem getFileSystem() {
+		return fs;
+	}
+
+	@Override
+	public boolean isAbsolute() {
+		return absolute;
+	}
+
+	@Override
+	public Path getRoot() {
+		return absolute ? new MemoryPath(fs, true, new String[0]) : null;
+	}
+
+	@Override
+	public Path getFileName() {
+		return names.length == 0 ? null : new MemoryPath(fs, false, new String[] { names[names.length - 1] });
+	}
+
+	@Override
+	public Path getParent() {
+		if (names.length == 0 || (names.length == 1 && !absolute)) {
+			return null;
+		}
+		return new MemoryPath(fs, absolute, Arrays.copyOf(names, names.length - 1));
+	}
+
+	@Override
+	public int getNameCount() {
+		return names.length;
+	}
+
+	@Override
+	public Path getName(int index) {
+		if (index < 0 || index >= names.length) {
+			throw new IllegalArgumentException("No name " + index + " in " + this);
+		}
+		return new MemoryPath(fs, false, new String[] { names[index] });
+	}
+
+	@Override
+	public Path subpath(int beginIndex, int endIndex) {
+		if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex) {
+			throw new IllegalArgumentException("Bad subpath " + beginIndex + ".." + endIndex + " of " + this);
+		}
+		return new MemoryPath(fs, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+	}
+
+	@Override
+	public boolean startsWith(Path other) {
+		if (!(other instanceof MemoryPath) || ((MemoryPath) other).fs != fs) {
+			return false;
+		}
+		MemoryPath o = (MemoryPath) other;
+		if (o.absolute != absolute || o.names.length > names.length) {
+			return false;
+		}
+		for (int i = 0; i < o.names.length; i++) {
+			if (!o.names[i].equals(names[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endsWith(Path other) {
+		if (!(other instanceof MemoryPath) || ((MemoryPath) other).fs != fs) {
+			return false;
+		}
+		MemoryPath o = (MemoryPath) other;
+		if (o.absolute) {
+			return equals(o);
+		} else if (o.names.length > names.length || o.names.length == 0) {
+			return false;
+		}
+		int skip = names.length - o.names.length;
+		for (int i = 0; i < o.names.length; i++) {
+			if (!o.names[i].equals(names[skip + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Path normalize() {
+		List<String> out = new ArrayList<String>();
+		for (String name : names) {
+			if (".".equals(name)) {
+				continue;
+			} else if ("..".equals(name)) {
+				if (!out.isEmpty() && !"..".equals(out.get(out.size() - 1))) {
+					out.remove(out.size() - 1);
+					continue;
+				} else if (absolute) {
+					/*
+					 * The parent of the root is the root.
+					 */
+					continue;
+				}
+			}
+			out.add(name);
+		}
+		return new MemoryPath(fs, absolute, out.toArray(new String[0]));
+	}
+
+	@Override
+	public Path resolve(Path other) {
+		MemoryPath o = check(other);
+		if (o.absolute) {
+			return o;
+		} else if (o.names.length == 0) {
+			return this;
+		}
+		String[] joined = Arrays.copyOf(names, names.length + o.names.length);
+		System.arraycopy(o.names, 0, joined, names.length, o.names.length);
+		return new MemoryPath(fs, absolute, joined);
+	}
+
+	@Override
+	public Path relativize(Path other) {
+		MemoryPath o = check(other);
+		if (o.absolute != absolute) {
+			throw new IllegalArgumentException("Cannot relativize " + other + " against " + this);
+		}
+		int common = 0;
+		while (common < names.length && common < o.names.length && names[common].equals(o.names[common])) {
+			common++;
+		}
+		List<String> out = new ArrayList<String>();
+		for (int i = common; i < names.length; i++) {
+			out.add("..");
+		}
+		for (int i = common; i < o.names.length; i++) {
+			out.add(o.names[i]);
+		}
+		return new MemoryPath(fs, false, out.toArray(new String[0]));
+	}
+
+	@Override
+	public URI toUri() {
+		try {
+			return new URI(fs.provider().getScheme(), null, toAbsolutePath().toString(), null);
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException("Bad path " + this, e);
+		}
+	}
+
+	@Override
+	public Path toAbsolutePath() {
+		return absolute ? this : new MemoryPath(fs, true, names);
+	}
+
+	@Override
+	public Path toRealPath(LinkOption... options) throws IOException {
+		Path real = toAbsolutePath().normalize();
+		fs.provider().checkAccess(real);
+		return real;
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+		throw new UnsupportedOperationException("Memory storage cannot be watched");
+	}
+
+	@Override
+	public int compareTo(Path other) {
+		return toString().compareTo(check(other).toString());
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof MemoryPath && ((MemoryPath) other).fs == fs && other.toString().equals(toString());
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		String path = String.join("/", names);
+		return absolute ? "/" + path : path;
+	}
+
+}
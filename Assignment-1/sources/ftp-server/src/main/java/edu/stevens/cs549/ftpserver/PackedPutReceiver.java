@@ -0,0 +1,202 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import edu.stevens.cs549.ftpinterface.FileStatus;
+import edu.stevens.cs549.util.AcceptEvent;
+import edu.stevens.cs549.util.Streams;
+import edu.stevens.cs549.util.Tar;
+import edu.stevens.cs549.util.TransferDigest;
+import edu.stevens.cs549.util.TransferEvent;
+
+/**
+ * Server side of a packed upload: many files sent as one tar archive over a
+ * single dedicated data connection. Entries are unpacked below a directory as
+ * they arrive. Small files are buffered and handed to a pool of writer
+ * threads, while large ones are written in turn by the receiving thread. Each
+ * file is staged and committed like a put, and gets a status in the result.
+ *
+ * @author dduggan
+ */
+class PackedPutReceiver implements Runnable {
+
+	private static Logger log = Logger.getLogger(PackedPutReceiver.class.getCanonicalName());
+
+	/*
+	 * Files up to this size are buffered for the writer pool, with at most
+	 * MAX_BUFFERED of them waiting at once.
+	 */
+	static final int BUFFER_MAX_BYTES = 1024 * 1024;
+
+	static final int MAX_BUFFERED = 32;
+
+	private final ServerSocket listener;
+
+	private final Path root;
+
+	private final Predicate<String> valid;
+
+	private final ExecutorService writers;
+
+	private final ServerContext context;
+
+	private final UnaryOperator<InputStream> shape;
+
+	private final CompletableFuture<FileStatus[]> result;
+
+	private final Semaphore buffered = new Semaphore(MAX_BUFFERED);
+
+	/*
+	 * valid checks each component of an entry's path, and shape wraps the data
+	 * connection for the session's bandwidth limits.
+	 */
+	PackedPutReceiver(ServerSocket listener, Path root, Predicate<String> valid, ServerContext context,
+			ExecutorService writers, UnaryOperator<InputStream> shape, CompletableFuture<FileStatus[]> result) {
+		this.listener = listener;
+		this.root = root;
+		this.valid = valid;
+		this.context = context;
+		this.writers = writers;
+		this.shape = shape;
+		this.result = result;
+	}
+
+	public void run() {
+		List<CompletableFuture<FileStatus>> statuses = new ArrayList<CompletableFuture<FileStatus>>();
+		try {
+			AcceptEvent accept = new AcceptEvent(Server.SIDE, listener.getLocalPort());
+			accept.begin();
+			Socket socket;
+			try {
+				socket = listener.accept();
+			} finally {
+				listener.close();
+			}
+			accept.commit();
+			TransferEvent event = new TransferEvent(Server.SIDE, "packedPut", root.toString(), "DEDICATED");
+			event.begin();
+			try (socket) {
+				Tar.Reader tar = new Tar.Reader(new BufferedInputStream(shape.apply(socket.getInputStream())));
+				for (Tar.Entry entry = tar.next(); entry != null; entry = tar.next()) {
+					if (entry.isDirectory()) {
+						continue;
+					}
+					String name = entry.getName();
+					if (!validPath(name)) {
+						statuses.add(CompletableFuture.completedFuture(FileStatus.failed(name, "Bad file name")));
+						continue;
+					}
+					Path target = root.resolve(name);
+					event.bytes += entry.getSize();
+					if (entry.getSize() <= BUFFER_MAX_BYTES) {
+						byte[] contents = tar.contents().readAllBytes();
+						long modified = entry.getModified();
+						buffered.acquire();
+						statuses.add(CompletableFuture.supplyAsync(() -> {
+							try {
+								return write(name, target, modified, new ByteArrayInputStream(contents));
+							} finally {
+								buffered.release();
+							}
+						}, writers));
+					} else {
+						FileStatus status = write(name, target, entry.getModified(), tar.contents());
+						statuses.add(CompletableFuture.completedFuture(status));
+					}
+				}
+			} finally {
+				event.commit();
+			}
+		} catch (IOException | RuntimeException e) {
+			/*
+			 * A malformed archive must still complete the result, which releases the
+			 * session's transfer slot.
+			 */
+			log.warning("Packed upload failed: " + e);
+			statuses.add(CompletableFuture.completedFuture(FileStatus.failed("", "Upload ended early: " + e)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			statuses.add(CompletableFuture.completedFuture(FileStatus.failed("", "Interrupted")));
+		}
+		CompletableFuture.allOf(statuses.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+			FileStatus[] out = new FileStatus[statuses.size()];
+			for (int i = 0; i < out.length; i++) {
+				out[i] = statuses.get(i).join();
+			}
+			result.complete(out);
+		});
+	}
+
+	/*
+	 * Every component must be a valid name, and directories on the way must not
+	 * be symbolic links.
+	 */
+	private boolean validPath(String name) {
+		if (!Tar.safeName(name)) {
+			return false;
+		}
+		Path dir = root;
+		String[] parts = name.split("/");
+		for (int i = 0; i < parts.length; i++) {
+			if (parts[i].isEmpty() || ".".equals(parts[i]) || !valid.test(parts[i])) {
+				return false;
+			}
+			if (i < parts.length - 1) {
+				dir = dir.resolve(parts[i]);
+				if (Files.isSymbolicLink(dir)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Stage and commit one file. Failures are reported in its status.
+	 */
+	private FileStatus write(String name, Path target, long modified, InputStream in) {
+		StagedFile staged = null;
+		try {
+			Path parent = target.getParent();
+			if (!Files.isDirectory(parent, LinkOption.NOFOLLOW_LINKS)) {
+				Files.createDirectories(parent);
+			}
+			TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+			staged = new StagedFile(target, context.getDurability());
+			long size;
+			try (OutputStream out = digest.wrap(staged.getOutputStream())) {
+				size = Streams.copy(in, out);
+			}
+			context.getChecksumIndex().invalidate(target);
+			staged.commit();
+			context.getStorage().written(target);
+			Files.setLastModifiedTime(target, FileTime.fromMillis(modified));
+			context.getChecksumIndex().record(target, digest.value());
+			return FileStatus.ok(name, size, digest.value());
+		} catch (IOException | RuntimeException e) {
+			if (staged != null) {
+				staged.abort();
+			}
+			return FileStatus.failed(name, e.toString());
+		}
+	}
+
+}
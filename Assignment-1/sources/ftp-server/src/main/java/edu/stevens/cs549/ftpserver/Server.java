@@ -1,24 +1,53 @@
 package edu.stevens.cs549.ftpserver;
 
+import edu.stevens.cs549.ftpinterface.ChunkedUpload;
+import edu.stevens.cs549.ftpinterface.FileInfo;
+import edu.stevens.cs549.ftpinterface.FileStatus;
+import edu.stevens.cs549.ftpinterface.FindPage;
+import edu.stevens.cs549.ftpinterface.FindQuery;
+import edu.stevens.cs549.ftpinterface.IChangeListener;
 import edu.stevens.cs549.ftpinterface.IServer;
+import edu.stevens.cs549.ftpinterface.TransferPriority;
+import edu.stevens.cs549.util.AcceptEvent;
+import edu.stevens.cs549.util.RpcEvent;
+import edu.stevens.cs549.util.Streams;
+import edu.stevens.cs549.util.TransferDigest;
+import edu.stevens.cs549.util.TransferEvent;
+import edu.stevens.cs549.util.TransferTuner;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.RemoteException;
 import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Enumeration;
-import java.util.Stack;
+import java.rmi.server.Unreferenced;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 /**
  *
  * @author dduggan
  */
-public class Server extends UnicastRemoteObject implements IServer {
+public class Server extends UnicastRemoteObject implements IServer, Unreferenced {
 
 	static final long serialVersionUID = 0L;
 
@@ -33,12 +62,31 @@ public class Server extends UnicastRemoteObject implements IServer {
 
 	final static int BACKLOG_LENGTH = 5;
 
+	/*
+	 * JFR instrumentation. Nothing is recorded, and arguments are not formatted,
+	 * unless a recording has enabled the event type.
+	 */
+	static final String SIDE = "server";
+
+	private static <T, E extends Exception> T rpc(String method, Supplier<String> argument, RpcEvent.Call<T, E> call) throws E {
+		return RpcEvent.record(SIDE, method, argument, call);
+	}
+
+	private static <E extends Exception> void rpc(String method, Supplier<String> argument, RpcEvent.Action<E> action) throws E {
+		RpcEvent.record(SIDE, method, argument, action);
+	}
+
 	/*
 	 *********************************************************************************************
 	 * Current working directory.
 	 */
 	static final int MAX_PATH_LEN = 1024;
-	private Stack<String> cwd = new Stack<String>();
+
+	/*
+	 * The session's directory, resolved once when it changes rather than on
+	 * every operation.
+	 */
+	private Path cwd;
 
 	/*
 	 *********************************************************************************************
@@ -52,59 +100,309 @@ public class Server extends UnicastRemoteObject implements IServer {
 	private Mode mode = Mode.NONE;
 
 	/*
-	 * If passive mode, remember the server socket.
+	 * If passive mode, remember the server socket. Each transfer waits at most
+	 * DEDICATED_ACCEPT_TIMEOUT_MILLIS for the client to connect, so that one the
+	 * client never starts gives up its transfer slot.
 	 */
 
-	private ServerSocket dataChan = null;
+	private volatile ServerSocket dataChan = null;
 
 	private int makePassive() throws IOException {
-		dataChan = new ServerSocket(0, BACKLOG_LENGTH, host);
+		ServerSocket listener = listen(BACKLOG_LENGTH);
+		listener.setSoTimeout(DEDICATED_ACCEPT_TIMEOUT_MILLIS);
+		closeDataChannel();
+		dataChan = listener;
 		mode = Mode.PASSIVE;
 //    	return (InetSocketAddress)(dataChan.getLocalSocketAddress());
 		return dataChan.getLocalPort();
 	}
 
 	/*
-	 * If active mode, remember the client socket address.
+	 * If active mode, remember the client socket address. For a transfer between
+	 * servers, this is the address of the other server.
 	 */
 	private InetSocketAddress clientSocket = null;
 
 	private void makeActive(int clientPort) {
 //    	clientSocket = s;
 		try {
-			clientSocket = InetSocketAddress.createUnresolved(getClientHost(), clientPort);
+			makeActive(getClientHost(), clientPort);
 		} catch (ServerNotActiveException e) {
 			throw new IllegalStateException("Make active", e);
 		}
+	}
+
+	private void makeActive(String host, int port) {
+		clientSocket = InetSocketAddress.createUnresolved(host, port);
 		mode = Mode.ACTIVE;
 	}
 
+	/*
+	 * Transfer tuning: the settings learned from earlier transfers with the
+	 * client's host, and the listeners for its data connections created with
+	 * them.
+	 */
+	private String peer() {
+		try {
+			return getClientHost();
+		} catch (ServerNotActiveException e) {
+			throw new IllegalStateException("Tuning outside of a remote call", e);
+		}
+	}
+
+	/*
+	 * In active mode, the settings are those for the host the server connects
+	 * to, which is another server in a transfer between servers.
+	 */
+	private TransferTuner.Transfer tuned() {
+		return context.getTuner().begin(mode == Mode.ACTIVE ? clientSocket.getHostString() : peer());
+	}
+
+	private ServerSocket listen(int backlog) throws IOException {
+		ServerSocket listener = context.getDataSecurity().newServerSocket(null);
+		try {
+			TransferTuner.configure(listener, context.getTuner().settings(peer()));
+			listener.bind(new InetSocketAddress(host, 0), backlog);
+			return listener;
+		} catch (IOException e) {
+			listener.close();
+			throw e;
+		}
+	}
+
 	/*
 	 **********************************************************************************************
 	 */
 
 	/*
 	 * The server can be initialized to only provide subdirectories of a directory
-	 * specified at start-up.
+	 * specified at start-up, on the storage backend it is configured with.
 	 */
-	private final String pathPrefix;
+	private final Storage storage;
 
-	public Server(InetAddress host, int port, String prefix) throws RemoteException {
-		super(port);
+	private final Path root;
+
+	private final ServerContext context;
+
+	/*
+	 * Bandwidth shaping: the transfers of a session share its bucket, and all
+	 * transfers share the server's.
+	 */
+	private final TokenBucket bandwidth;
+
+	private InputStream shaped(InputStream in) {
+		return context.getBandwidth().shape(in, bandwidth);
+	}
+
+	private OutputStream shaped(OutputStream out) {
+		return context.getBandwidth().shape(out, bandwidth);
+	}
+
+	/*
+	 * Scheduling: the class the session asked for, or else one inferred from
+	 * the size of the file (-1 if not known). Downloads are scheduled at the
+	 * writes to the data connection, and uploads at the writes to disk, since
+	 * those are where transfers wait on each other; reads from a data
+	 * connection only wait on the peer, and are not scheduled.
+	 */
+	private volatile TransferPriority priority = null;
+
+	private TransferScheduler.Flow flow(long size) {
+		TransferScheduler scheduler = context.getScheduler();
+		TransferPriority p = priority;
+		if (p == null) {
+			p = size < 0 ? TransferPriority.NORMAL : scheduler.classify(size);
+		}
+		return scheduler.open(p);
+	}
+
+	private TransferScheduler.Flow flow(Path file) throws IOException {
+		return flow(storage.attributes(file).size());
+	}
+
+	private OutputStream scheduled(OutputStream out, long size) {
+		return TransferScheduler.schedule(out, flow(size));
+	}
+
+	public void priority(TransferPriority p) throws RemoteException {
+		rpc("priority", () -> p == null ? null : p.name(), () -> {
+			priority = p;
+		});
+	}
+
+	Server(InetAddress host, int port, ServerContext context) throws RemoteException {
+		super(port, context.getRpcSockets(), context.getRpcSockets());
 		this.host = host;
-		this.pathPrefix = prefix + "/";
+		this.context = context;
+		this.storage = context.getStorage();
+		this.root = storage.getRoot();
+		this.cwd = root;
+		this.bandwidth = context.getBandwidth().newSessionBucket();
 		log.info("A client has bound to a server instance.");
 	}
 
+	public Server(InetAddress host, int port, String prefix) throws RemoteException {
+		this(host, port, new ServerContext(prefix, new Properties()));
+	}
+
 	public Server(InetAddress host, int port) throws RemoteException {
 		this(host, port, "/");
 	}
 
+	/*
+	 * Files the server keeps for itself under the root, e.g. the checksum index.
+	 * They are hidden from clients.
+	 */
+	static final String INTERNAL_PREFIX = ".ftp-";
+
 	private boolean valid(String s) {
-		// File names should not contain "/".
-		return (s.indexOf('/') < 0);
+		// File names should not contain "/", and server files are off limits.
+		return (s.indexOf('/') < 0) && !s.startsWith(INTERNAL_PREFIX);
+	}
+
+	/*
+	 *********************************************************************************************
+	 * Integrity checking.
+	 */
+
+	/*
+	 * How long transferDigest waits for a transfer still in progress.
+	 */
+	static final long DIGEST_WAIT_SECONDS = 60;
+
+	/*
+	 * Digests of the transfers on this session, by file name. Each is completed
+	 * once the data connection for its transfer has been closed.
+	 */
+	private final Map<String, CompletableFuture<String>> digests = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+	private CompletableFuture<String> startTransfer(String file, AdmissionController.Permit permit) {
+		CompletableFuture<String> done = new CompletableFuture<String>();
+		done.whenComplete((digest, e) -> permit.release());
+		digests.put(file, done);
+		return done;
+	}
+
+	/*
+	 * A download reads the whole file, so its digest can go in the checksum index
+	 * provided the file was not modified while it was being read.
+	 */
+	private CompletableFuture<String> startGet(String file, AdmissionController.Permit permit) throws IOException {
+		Path target = resolve(file);
+		BasicFileAttributes attrs = storage.attributes(target);
+		CompletableFuture<String> done = startTransfer(file, permit);
+		done.thenAccept(digest -> context.getChecksumIndex().record(target, attrs, digest));
+		return done;
+	}
+
+	/*
+	 * An upload invalidates the index entry for the file, and records the digest
+	 * of the new contents once it completes.
+	 */
+	private CompletableFuture<String> startPut(String file, AdmissionController.Permit permit) {
+		Path target = resolve(file);
+		context.getChecksumIndex().invalidate(target);
+		CompletableFuture<String> done = startTransfer(file, permit);
+		done.thenAccept(digest -> {
+			storage.written(target);
+			context.getChecksumIndex().record(target, digest);
+		});
+		return done;
 	}
 	
+	/*
+	 * An append changes the file without the server reading all of it, so its
+	 * index entry is dropped rather than replaced.
+	 */
+	private CompletableFuture<String> startAppend(String file, AdmissionController.Permit permit) {
+		Path target = resolve(file);
+		CompletableFuture<String> done = startTransfer(file, permit);
+		done.thenAccept(digest -> {
+			storage.written(target);
+			context.getChecksumIndex().invalidate(target);
+		});
+		return done;
+	}
+
+	/*
+	 *********************************************************************************************
+	 * Admission control: a transfer waits for a slot before it starts, and gives
+	 * it up when its data connection closes.
+	 */
+
+	private AdmissionController.Permit admit() throws IOException {
+		if (closed.get()) {
+			throw new IOException("Session closed");
+		}
+		return context.getAdmission().admit();
+	}
+
+	private static void release(AdmissionController.Permit permit) {
+		if (permit != null) {
+			permit.release();
+		}
+	}
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	public void close() throws RemoteException {
+		rpc("close", null, () -> {
+			closeSession();
+			UnicastRemoteObject.unexportObject(this, true);
+		});
+	}
+
+	/*
+	 * A client that goes away without closing its session.
+	 */
+	public void unreferenced() {
+		closeSession();
+	}
+
+	private void closeDataChannel() {
+		ServerSocket listener = dataChan;
+		if (listener != null) {
+			try {
+				listener.close();
+			} catch (IOException e) {
+				;
+			}
+		}
+	}
+
+	/*
+	 * Transfers still waiting for their data connection, or still in progress,
+	 * fail, giving up their transfer slots.
+	 */
+	private void closeSession() {
+		if (closed.compareAndSet(false, true)) {
+			closeDataChannel();
+			for (CompletableFuture<String> done : digests.values()) {
+				done.completeExceptionally(new IOException("Session closed"));
+			}
+			for (String id : uploads.keySet()) {
+				ChunkedUploadReceiver receiver = uploads.remove(id);
+				release(uploadPermits.remove(id));
+				if (receiver != null) {
+					receiver.abort();
+				}
+			}
+			for (FileSearch search : searches.values()) {
+				search.cancel();
+			}
+			searches.clear();
+			for (FileFollower follower : follows) {
+				follower.cancel();
+			}
+			for (String id : subscriptions) {
+				context.getNotifier().unsubscribe(id);
+			}
+			subscriptions.clear();
+			context.getAdmission().closeSession();
+			log.info("A client session has closed.");
+		}
+	}
+
 	/*
 	 * *****************************************************************************
 	 * The server needs to create threads if running in passive mode.
@@ -112,44 +410,62 @@ public class Server extends UnicastRemoteObject implements IServer {
 
 	private static class GetThread implements Runnable {
 		private ServerSocket dataChan = null;
+		private boolean dedicated;
 		private InputStream in = null;
+		private String file;
+		private TransferDigest digest;
+		private CompletableFuture<String> done;
+		private TransferTuner.Transfer transfer;
+		private TransferScheduler.Flow flow;
 
-		public GetThread(ServerSocket s, InputStream i) {
+		public GetThread(ServerSocket s, boolean ded, InputStream i, String f, TransferDigest d, CompletableFuture<String> c,
+				TransferTuner.Transfer t, TransferScheduler.Flow fl) {
 			dataChan = s;
+			dedicated = ded;
 			in = i;
+			file = f;
+			digest = d;
+			done = c;
+			transfer = t;
+			flow = fl;
 		}
 
 		public void run() {
 			try {
-				Socket socket = dataChan.accept();
-				OutputStream out = socket.getOutputStream();
+				AcceptEvent accept = new AcceptEvent(SIDE, dataChan.getLocalPort());
+				accept.begin();
+				Socket socket;
+				try {
+					socket = dataChan.accept();
+				} finally {
+					if (dedicated) {
+						dataChan.close();
+					}
+				}
+				accept.commit();
+				transfer.accepted(socket);
+				OutputStream out = TransferScheduler.schedule(socket.getOutputStream(), flow);
 
+				TransferEvent event = new TransferEvent(SIDE, "get", file, Mode.PASSIVE.name());
+				event.begin();
 				try {
 					log.info("Received connection request from client on server");
-					/*
-					 * TODO: Complete this thread (remember to flush output!).
-					 */
-					byte[] data;
-
-					while (true) {
-						data = in.readNBytes(4096);
-
-						if (data.length == 0) {
-							break;
-						}
-						out.write(data);
-					}
-					
-					/*
-					 * End TODO
-					 */
+					event.bytes = transfer.copy(in, out);
 				} finally {
 					out.flush();
 					out.close();
 					socket.close();
 					in.close();
+					event.commit();
 				}
+				transfer.finish();
+				done.complete(digest.value());
 			} catch (IOException e) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+				}
+				done.completeExceptionally(e);
 				throw new IllegalStateException("Exception while transferring data to client in passive mode.", e);
 			}
 		}
@@ -157,171 +473,809 @@ public class Server extends UnicastRemoteObject implements IServer {
 
 	private static class PutThread implements Runnable {
 		private ServerSocket dataChan = null;
+		private boolean dedicated;
+		private StagedFile staged = null;
 		private OutputStream out = null;
+		private String file;
+		private TransferDigest digest;
+		private CompletableFuture<String> done;
+		private TransferTuner.Transfer transfer;
 
-		public PutThread(ServerSocket s, OutputStream f) {
+		public PutThread(ServerSocket s, boolean ded, StagedFile t, OutputStream o, String f, TransferDigest d, CompletableFuture<String> c,
+				TransferTuner.Transfer tt) {
 			dataChan = s;
-			out = f;
+			dedicated = ded;
+			staged = t;
+			out = o;
+			file = f;
+			digest = d;
+			done = c;
+			transfer = tt;
 		}
 
 		public void run() {
 			try {
-				Socket socket = dataChan.accept();
+				AcceptEvent accept = new AcceptEvent(SIDE, dataChan.getLocalPort());
+				accept.begin();
+				Socket socket;
+				try {
+					socket = dataChan.accept();
+				} finally {
+					if (dedicated) {
+						dataChan.close();
+					}
+				}
+				accept.commit();
+				transfer.accepted(socket);
 				InputStream in = socket.getInputStream();
+
+				TransferEvent event = new TransferEvent(SIDE, "put", file, Mode.PASSIVE.name());
+				event.begin();
 				try {
 					log.info("Received connection request from client on server");
-					/*
-					 * TODO: Complete this thread.
-					 */
-					byte[] data;
-
-					while (true) {
-						data = in.readNBytes(4096);
-
-						if (data.length == 0) {
-							break;
-						}
-						out.write(data);
-					}
+					event.bytes = transfer.copy(in, out);
 				} finally {
 					out.flush();
 					out.close();
 					in.close();
 					socket.close();
+					event.commit();
 				}
+				staged.commit();
+				transfer.finish();
+				done.complete(digest.value());
 			} catch (IOException e) {
+				try {
+					out.close();
+				} catch (IOException ignored) {
+				}
+				staged.abort();
+				done.completeExceptionally(e);
 				throw new IllegalStateException("Exception while transferring data from client in passive mode.", e);
 			}
 		}
 	}
 	
 	public void get(String file) throws IOException, FileNotFoundException, RemoteException {
-		if (!valid(file)) {
-			throw new IOException("Bad file name: " + file);
-		} else if (mode == Mode.ACTIVE) {
-			/*
-			 * Open the local input file and connect to the client socket to start downloading.
-			 */
-			InputStream in = new BufferedInputStream(new FileInputStream(path() + file));
-			log.info("Server connecting to client at address " + clientSocket.getHostName() + " and port "+clientSocket.getPort());
-			Socket socket = new Socket(clientSocket.getHostName(), clientSocket.getPort());
-			OutputStream out = socket.getOutputStream();
+		rpc("get", () -> file, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			}
+			AdmissionController.Permit permit = admit();
+			try {
+				if (mode == Mode.ACTIVE) {
+					/*
+					 * Open the local input file and connect to the client socket to start downloading.
+					 */
+					TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+					TransferScheduler.Flow flow = flow(resolve(file));
+					InputStream in = shaped(digest.wrap(Streams.readAhead(storage.newInputStream(resolve(file)))));
+					sendActive(file, in, digest, startGet(file, permit), tuned(), flow);
+				} else if (mode == Mode.PASSIVE) {
+					TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+					TransferScheduler.Flow flow = flow(resolve(file));
+					InputStream in = shaped(digest.wrap(Streams.readAhead(storage.newInputStream(resolve(file)))));
+					new Thread(new GetThread(dataChan, false, in, file, digest, startGet(file, permit), tuned(), flow)).start();
+				}
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
+			}
+		});
+	}
+
+	/*
+	 *********************************************************************************************
+	 * Transfers on dedicated data connections: the server listens on a fresh port
+	 * for a single connection, so that a session can have several transfers in
+	 * progress at once, whatever its mode.
+	 */
+
+	/*
+	 * How long a dedicated or passive listener waits for the client to connect.
+	 */
+	static final int DEDICATED_ACCEPT_TIMEOUT_MILLIS = 60000;
 
+	private ServerSocket dedicatedChannel() throws IOException {
+		ServerSocket listener = listen(1);
+		listener.setSoTimeout(DEDICATED_ACCEPT_TIMEOUT_MILLIS);
+		return listener;
+	}
+
+	public int openGet(String file) throws IOException, RemoteException {
+		return rpc("openGet", () -> file, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			}
+			AdmissionController.Permit permit = admit();
 			try {
-				/*
-				 * TODO: connect to client socket to transfer file.
-				 */
-				byte[] data;
+				TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+				TransferScheduler.Flow flow = flow(resolve(file));
+				InputStream in = shaped(digest.wrap(Streams.readAhead(storage.newInputStream(resolve(file)))));
+				ServerSocket listener;
+				try {
+					listener = dedicatedChannel();
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+				new Thread(new GetThread(listener, true, in, file, digest, startGet(file, permit), tuned(), flow)).start();
+				return listener.getLocalPort();
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
+			}
+		});
+	}
+
+	public int openPut(String file) throws IOException, RemoteException {
+		return rpc("openPut", () -> file, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			}
+			AdmissionController.Permit permit = admit();
+			try {
+				TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+				StagedFile staged = new StagedFile(resolve(file), context.getDurability());
+				ServerSocket listener;
+				try {
+					listener = dedicatedChannel();
+				} catch (IOException e) {
+					staged.abort();
+					throw e;
+				}
+				OutputStream out = shaped(digest.wrap(Streams.writeBehind(scheduled(staged.getOutputStream(), -1))));
+				new Thread(new PutThread(listener, true, staged, out, file, digest, startPut(file, permit), tuned())).start();
+				return listener.getLocalPort();
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
+			}
+		});
+	}
 
-				while (true) {
-					data = in.readNBytes(4096);
+	public FileInfo stat(String file) throws IOException, RemoteException {
+		return rpc("stat", () -> file, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			}
+			BasicFileAttributes attrs = storage.attributes(resolve(file));
+			return new FileInfo(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+		});
+	}
 
-					if (data.length == 0) {
-						break;
+	public int openGetRange(String file, long offset, long length) throws IOException, RemoteException {
+		return rpc("openGetRange", () -> file + "@" + offset + "+" + length, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			} else if (offset < 0 || length < 0) {
+				throw new IOException("Bad range: " + offset + "+" + length);
+			}
+			AdmissionController.Permit permit = admit();
+			try {
+				FileChannel channel = storage.openRead(resolve(file));
+				InputStream in = null;
+				ServerSocket listener;
+				try {
+					channel.position(offset);
+					in = shaped(Streams.readAhead(Streams.limit(Channels.newInputStream(channel), length)));
+					listener = dedicatedChannel();
+				} catch (IOException e) {
+					if (in != null) {
+						in.close();
+					} else {
+						channel.close();
 					}
-					out.write(data);
+					throw e;
 				}
 				/*
-				 * End TODO.
+				 * The digest of a range is not recorded for transferDigest.
 				 */
+				TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+				CompletableFuture<String> done = new CompletableFuture<String>();
+				AdmissionController.Permit slot = permit;
+				done.whenComplete((d, e) -> slot.release());
+				new Thread(new GetThread(listener, true, in, file, digest, done, tuned(), flow(length))).start();
+				return listener.getLocalPort();
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
+			}
+		});
+	}
+
+	/*
+	 * Files being followed on this session.
+	 */
+	private final Set<FileFollower> follows = ConcurrentHashMap.newKeySet();
+
+	public int openFollow(String file, long offset) throws IOException, RemoteException {
+		return rpc("openFollow", () -> file + "@" + offset, () -> {
+			if (closed.get()) {
+				throw new IOException("Session closed");
+			} else if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			} else if (offset < 0) {
+				throw new IOException("Bad offset: " + offset);
+			}
+			Path target = resolve(file);
+			FileChannel channel = storage.openRead(target);
+			ServerSocket listener;
+			try {
+				listener = dedicatedChannel();
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			FileFollower follower = new FileFollower(listener, storage, target, channel, file, offset,
+					context.getNotifier(), out -> shaped(scheduled(out, -1)), follows::remove);
+			follows.add(follower);
+			new Thread(follower, "follow").start();
+			return listener.getLocalPort();
+		});
+	}
+
+	/*
+	 * A directory below the working directory, or the working directory itself
+	 * ("."), sent as a tar archive on a dedicated data connection.
+	 */
+	public int getArchive(String dir, boolean compress) throws IOException, RemoteException {
+		return rpc("getArchive", () -> dir, () -> {
+			if (!valid(dir) || "..".equals(dir)) {
+				throw new IOException("Bad directory name: " + dir);
+			}
+			Path tree = resolve(dir);
+			if (!isDirectory(tree)) {
+				throw new IOException("Not a directory: " + dir);
+			}
+			AdmissionController.Permit permit = admit();
+			try {
+				ServerSocket listener = dedicatedChannel();
+				TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+				ArchiveSender sender = new ArchiveSender(listener, storage, tree, ".".equals(dir) ? "" : dir, compress,
+						context.getArchiveReaders(), storage::newInputStream, out -> shaped(scheduled(out, -1)), digest,
+						startTransfer(dir, permit));
+				new Thread(sender).start();
+				return listener.getLocalPort();
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
+			}
+		});
+	}
+
+	/*
+	 * Packed uploads in progress on this session, by data port.
+	 */
+	private final Map<Integer, CompletableFuture<FileStatus[]>> packedPuts = new ConcurrentHashMap<Integer, CompletableFuture<FileStatus[]>>();
+
+	public int openPackedPut() throws IOException, RemoteException {
+		return rpc("openPackedPut", null, () -> {
+			AdmissionController.Permit permit = admit();
+			try {
+				ServerSocket listener = dedicatedChannel();
+				CompletableFuture<FileStatus[]> result = new CompletableFuture<FileStatus[]>();
+				AdmissionController.Permit slot = permit;
+				result.whenComplete((r, e) -> slot.release());
+				packedPuts.put(listener.getLocalPort(), result);
+				new Thread(new PackedPutReceiver(listener, cwd, this::valid, context,
+						context.getUnpackWriters(), this::shaped, result)).start();
+				return listener.getLocalPort();
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
+			}
+		});
+	}
+
+	public FileStatus[] packedPutResult(int port) throws IOException, RemoteException {
+		return rpc("packedPutResult", () -> Integer.toString(port), () -> {
+			CompletableFuture<FileStatus[]> result = packedPuts.get(port);
+			if (result == null) {
+				throw new IOException("No packed upload on port " + port);
+			}
+			try {
+				FileStatus[] statuses = result.get(DIGEST_WAIT_SECONDS, TimeUnit.SECONDS);
+				packedPuts.remove(port);
+				return statuses;
+			} catch (ExecutionException e) {
+				packedPuts.remove(port);
+				throw new IOException("Packed upload failed.", e.getCause());
+			} catch (TimeoutException e) {
+				throw new IOException("Packed upload has not finished.");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for packed upload");
+			}
+		});
+	}
+
+	/*
+	 * Connect to the client and send a file in active mode.
+	 */
+	private void sendActive(String file, InputStream in, TransferDigest digest, CompletableFuture<String> done,
+			TransferTuner.Transfer transfer, TransferScheduler.Flow flow) throws IOException {
+		try {
+			log.info("Server connecting to client at address " + clientSocket.getHostName() + " and port "+clientSocket.getPort());
+			Socket socket;
+			try {
+				socket = context.getDataSecurity().secure(
+						transfer.connect(new InetSocketAddress(clientSocket.getHostName(), clientSocket.getPort())), null);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			OutputStream out = TransferScheduler.schedule(socket.getOutputStream(), flow);
+
+			TransferEvent event = new TransferEvent(SIDE, "get", file, Mode.ACTIVE.name());
+			event.begin();
+			try {
+				event.bytes = transfer.copy(in, out);
 			} finally {
 				out.flush();
 				out.close();
 				in.close();
 				socket.close();
+				event.commit();
 			}
-		} else if (mode == Mode.PASSIVE) {
-			InputStream in = new BufferedInputStream(new FileInputStream(path() + file));
-			new Thread(new GetThread(dataChan, in)).start();
+			transfer.finish();
+			done.complete(digest.value());
+		} catch (IOException e) {
+			done.completeExceptionally(e);
+			throw e;
 		}
 	}
 
+	public FileInfo getIfChanged(String file, FileInfo cached) throws IOException, RemoteException {
+		return rpc("getIfChanged", () -> file, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			} else if (mode == Mode.NONE) {
+				throw new IOException("No mode set--use port or pasv command.");
+			}
+			Path target = resolve(file);
+			BasicFileAttributes attrs = storage.attributes(target);
+			if (!attrs.isRegularFile()) {
+				throw new FileNotFoundException("Not a file: " + file);
+			}
+			FileInfo info = new FileInfo(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+			if (info.sameVersion(cached)) {
+				return info;
+			}
+			AdmissionController.Permit permit = admit();
+			try {
+				TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+				TransferScheduler.Flow flow = flow(attrs.size());
+				InputStream in = shaped(digest.wrap(Streams.readAhead(storage.newInputStream(target))));
+				CompletableFuture<String> done = startGet(file, permit);
+				TransferTuner.Transfer transfer = tuned();
+				if (mode == Mode.ACTIVE) {
+					/*
+					 * The client only starts accepting once it knows a transfer is coming, so
+					 * the server cannot send from within this call.
+					 */
+					new Thread(() -> {
+						try {
+							sendActive(file, in, digest, done, transfer, flow);
+						} catch (IOException e) {
+							log.warning("Exception while transferring data to client in active mode: " + e);
+						}
+					}).start();
+				} else {
+					new Thread(new GetThread(dataChan, false, in, file, digest, done, transfer, flow)).start();
+				}
+				return info;
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
+			}
+		});
+	}
+
 	public void put(String file) throws IOException, FileNotFoundException, RemoteException {
-		if (!valid(file)) {
-			throw new IOException("Bad file name: " + file);
-		} else if (mode == Mode.ACTIVE) {
-			/*
-			 * TODO
-			 */
-			OutputStream out = new BufferedOutputStream(new FileOutputStream(path() + file));
-			log.info("Server connecting to client at address " + clientSocket.getHostName() + " and port "+clientSocket.getPort());
-			Socket socket = new Socket(clientSocket.getHostName(), clientSocket.getPort());
-			InputStream in = socket.getInputStream();
+		upload("put", file, false, -1);
+	}
 
-			try {
-				byte[] data;
+	public void append(String file, long expectedSize) throws IOException, RemoteException {
+		upload("append", file, true, expectedSize);
+	}
+
+	private StagedFile stage(String file, boolean append, long expectedSize) throws IOException {
+		if (append) {
+			return StagedFile.append(resolve(file), context.getDurability(), storage, expectedSize);
+		}
+		return new StagedFile(resolve(file), context.getDurability());
+	}
 
-				while (true) {
-					data = in.readNBytes(4096);
+	private void upload(String method, String file, boolean append, long expectedSize) throws IOException {
+		rpc(method, () -> file, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			}
+			AdmissionController.Permit permit = admit();
+			try {
+				if (mode == Mode.ACTIVE) {
+					TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+					StagedFile staged = stage(file, append, expectedSize);
+					CompletableFuture<String> done = append ? startAppend(file, permit) : startPut(file, permit);
+					OutputStream out = shaped(digest.wrap(Streams.writeBehind(scheduled(staged.getOutputStream(), -1))));
+					try {
+						log.info("Server connecting to client at address " + clientSocket.getHostName() + " and port "+clientSocket.getPort());
+						TransferTuner.Transfer transfer = tuned();
+						Socket socket = context.getDataSecurity().secure(
+								transfer.connect(new InetSocketAddress(clientSocket.getHostName(), clientSocket.getPort())), null);
+						InputStream in = socket.getInputStream();
 
-					if (data.length == 0) {
-						break;
+						TransferEvent event = new TransferEvent(SIDE, method, file, mode.name());
+						event.begin();
+						try {
+							event.bytes = transfer.copy(in, out);
+						} finally {
+							out.flush();
+							out.close();
+							in.close();
+							socket.close();
+							event.commit();
+						}
+						staged.commit();
+						transfer.finish();
+						done.complete(digest.value());
+					} catch (IOException e) {
+						try {
+							out.close();
+						} catch (IOException ignored) {
+						}
+						staged.abort();
+						done.completeExceptionally(e);
+						throw e;
 					}
-					out.write(data);
+				} else if (mode == Mode.PASSIVE) {
+					TransferDigest digest = TransferDigest.create(context.getDigestAlgorithm());
+					StagedFile staged = stage(file, append, expectedSize);
+					OutputStream out = shaped(digest.wrap(Streams.writeBehind(scheduled(staged.getOutputStream(), -1))));
+					new Thread(new PutThread(dataChan, false, staged, out, file, digest,
+							append ? startAppend(file, permit) : startPut(file, permit), tuned())).start();
 				}
-			} finally {
-				out.flush();
-				out.close();
-				in.close();
-				socket.close();
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
 			}
-		} else if (mode == Mode.PASSIVE) {
-			/*
-			 * TODO
-			 */
-			OutputStream out = new BufferedOutputStream(new FileOutputStream(path() + file));
-			new Thread(new PutThread(dataChan, out)).start();
-		}
+		});
 	}
 
 	public String[] dir() throws RemoteException {
-		// List the contents of the current directory.
-		return new File(path()).list();
+		try {
+			// List the contents of the current directory.
+			return rpc("dir", null, () -> storage.list(cwd));
+		} catch (IOException e) {
+			log.warning("Could not list " + cwd + ": " + e);
+			return null;
+		}
 	}
 
 	public void cd(String dir) throws IOException, RemoteException {
-		// Change current working directory (".." is parent directory)
-		if (!valid(dir)) {
-			throw new IOException("Bad file name: " + dir);
-		} else {
-			if ("..".equals(dir)) {
-				if (cwd.size() > 0)
-					cwd.pop();
-				else
-					throw new IOException("Already in root directory!");
-			} else if (".".equals(dir)) {
-				;
+		rpc("cd", () -> dir, () -> {
+			// Change current working directory (".." is parent directory)
+			if (!valid(dir)) {
+				throw new IOException("Bad file name: " + dir);
 			} else {
-				File f = new File(path() + "/" + dir);
-				if (!f.exists())
-					throw new IOException("Directory does not exist: " + dir);
-				else if (!f.isDirectory())
-					throw new IOException("Not a directory: " + dir);
-				else
-					cwd.push(dir);
+				if ("..".equals(dir)) {
+					if (!cwd.equals(root))
+						cwd = cwd.getParent();
+					else
+						throw new IOException("Already in root directory!");
+				} else if (".".equals(dir)) {
+					;
+				} else {
+					Path d = cwd.resolve(dir);
+					BasicFileAttributes attrs;
+					try {
+						attrs = storage.attributes(d);
+					} catch (NoSuchFileException e) {
+						throw new IOException("Directory does not exist: " + dir);
+					}
+					if (!attrs.isDirectory())
+						throw new IOException("Not a directory: " + dir);
+					else
+						cwd = d;
+				}
 			}
-		}
+		});
 	}
 
 	public String pwd() throws RemoteException {
+		return rpc("pwd", null, () -> {
+			return cwdPath();
+		});
+	}
+
+	private String cwdPath() {
 		// List the current working directory.
 		String p = "/";
-		for (Enumeration<String> e = cwd.elements(); e.hasMoreElements();) {
-			p = p + e.nextElement() + "/";
+		for (Path name : root.relativize(cwd)) {
+			if (!name.toString().isEmpty()) {
+				p = p + name + "/";
+			}
 		}
 		return p;
 	}
 
-	private String path() throws RemoteException {
-		return pathPrefix + pwd();
+	/*
+	 * A name in the working directory.
+	 */
+	private Path resolve(String file) {
+		return cwd.resolve(file);
+	}
+
+	/*
+	 * Whether a path is a directory, in whichever part of storage it is kept.
+	 */
+	private boolean isDirectory(Path dir) {
+		try {
+			return storage.attributes(dir, LinkOption.NOFOLLOW_LINKS).isDirectory();
+		} catch (IOException e) {
+			return false;
+		}
 	}
 
 	public void port(int clientPort) {
-		makeActive(clientPort);
+		rpc("port", () -> Integer.toString(clientPort), () -> {
+			makeActive(clientPort);
+		});
+	}
+
+	/*
+	 * The lowest port a session can be pointed at on another host: the server
+	 * will not be used to reach services on well-known ports.
+	 */
+	static final int MIN_THIRD_PARTY_PORT = 1024;
+
+	public void port(String host, int port) throws IOException {
+		rpc("port", () -> host + ":" + port, () -> {
+			if (!context.isThirdPartyAllowed()) {
+				throw new IOException("Transfers to other hosts are disabled on this server.");
+			} else if (context.getDataSecurity().isSecure()) {
+				throw new IOException("Transfers to other hosts need data connections in the clear.");
+			} else if (port < MIN_THIRD_PARTY_PORT || port > 65535) {
+				throw new IOException("Bad port for a transfer to another host: " + port);
+			}
+			InetAddress peer = context.thirdPartyPeer(host);
+			if (peer == null) {
+				throw new IOException("Not a peer server for transfers: " + host);
+			}
+			log.info("Session pointed at " + host + ":" + port + " for transfers.");
+			makeActive(peer.getHostAddress(), port);
+		});
 	}
 
 	public int pasv() throws IOException {
-		return makePassive();
+		return rpc("pasv", null, () -> {
+			return makePassive();
+		});
+	}
+
+	public String digestAlgorithm() {
+		return rpc("digestAlgorithm", null, () -> context.getDigestAlgorithm());
+	}
+
+	public boolean dataSecure() {
+		return rpc("dataSecure", null, () -> context.getDataSecurity().isSecure());
+	}
+
+	public String transferDigest(String file) throws IOException, RemoteException {
+		return rpc("transferDigest", () -> file, () -> {
+			CompletableFuture<String> done = digests.get(file);
+			if (done == null) {
+				throw new IOException("No transfer of " + file + " on this session.");
+			}
+			try {
+				String value = done.get(DIGEST_WAIT_SECONDS, TimeUnit.SECONDS);
+				digests.remove(file, done);
+				return value;
+			} catch (ExecutionException e) {
+				digests.remove(file, done);
+				throw new IOException("Transfer of " + file + " failed.", e.getCause());
+			} catch (TimeoutException e) {
+				throw new IOException("Transfer of " + file + " has not finished.");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for transfer of " + file);
+			}
+		});
+	}
+
+	public String checksum(String file) throws IOException, RemoteException {
+		return rpc("checksum", () -> file, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			}
+			return context.getChecksumIndex().lookup(resolve(file));
+		});
+	}
+
+	/*
+	 *********************************************************************************************
+	 * Chunked uploads in progress on this session, by id.
+	 */
+	private final Map<String, ChunkedUploadReceiver> uploads = new ConcurrentHashMap<String, ChunkedUploadReceiver>();
+
+	/*
+	 * An upload holds its transfer slot from begin until commit or abort.
+	 */
+	private final Map<String, AdmissionController.Permit> uploadPermits = new ConcurrentHashMap<String, AdmissionController.Permit>();
+
+	/*
+	 *********************************************************************************************
+	 * Searches in progress on this session, by id.
+	 */
+	static final int MAX_FIND_PAGE = 1000;
+
+	static final int MAX_SEARCHES = 4;
+
+	private final Map<String, FileSearch> searches = new ConcurrentHashMap<String, FileSearch>();
+
+	public FindPage find(FindQuery query, int pageSize) throws IOException, RemoteException {
+		if (query == null) {
+			throw new IllegalArgumentException("No search query");
+		}
+		return rpc("find", () -> query.getGlob(), () -> {
+			if (pageSize <= 0 || pageSize > MAX_FIND_PAGE) {
+				throw new IOException("Page size must be between 1 and " + MAX_FIND_PAGE);
+			}
+			/*
+			 * Searches the client has stopped reading count against the limit until
+			 * they go idle.
+			 */
+			searches.values().removeIf(search -> {
+				if (search.isCancelled() || search.isIdle()) {
+					search.cancel();
+					return true;
+				}
+				return false;
+			});
+			if (searches.size() >= MAX_SEARCHES) {
+				throw new IOException("Too many searches open (at most " + MAX_SEARCHES + "): close one with findClose");
+			}
+			String id = UUID.randomUUID().toString();
+			FileSearch search = new FileSearch(storage, cwd, query);
+			search.start(context.getSearchPool());
+			searches.put(id, search);
+			return nextPage(id, search, pageSize);
+		});
+	}
+
+	public FindPage findNext(String id, int pageSize) throws IOException, RemoteException {
+		return rpc("findNext", () -> id, () -> {
+			FileSearch search = searches.get(id);
+			if (search == null) {
+				throw new IOException("No such search: " + id);
+			} else if (search.isCancelled()) {
+				searches.remove(id);
+				throw new IOException("Search abandoned after " + FileSearch.IDLE_MILLIS + " ms idle: " + id);
+			} else if (pageSize <= 0 || pageSize > MAX_FIND_PAGE) {
+				throw new IOException("Page size must be between 1 and " + MAX_FIND_PAGE);
+			}
+			return nextPage(id, search, pageSize);
+		});
+	}
+
+	public void findClose(String id) throws RemoteException {
+		rpc("findClose", () -> id, () -> {
+			FileSearch search = searches.remove(id);
+			if (search != null) {
+				search.cancel();
+			}
+		});
+	}
+
+	private FindPage nextPage(String id, FileSearch search, int pageSize) throws IOException {
+		try {
+			FileInfo[] matches = search.nextPage(pageSize);
+			if (search.isFinished()) {
+				searches.remove(id);
+				return new FindPage(null, matches);
+			}
+			return new FindPage(id, matches);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted during search");
+		}
+	}
+
+	/*
+	 *********************************************************************************************
+	 * Change notifications subscribed to on this session, by id.
+	 */
+	private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+
+	public String subscribe(String dir, IChangeListener listener) throws IOException, RemoteException {
+		return rpc("subscribe", () -> dir, () -> {
+			if (closed.get()) {
+				throw new IOException("Session closed");
+			} else if (!valid(dir) || "..".equals(dir)) {
+				throw new IOException("Bad directory name: " + dir);
+			}
+			Path watched = resolve(dir);
+			try {
+				if (!storage.attributes(watched, LinkOption.NOFOLLOW_LINKS).isDirectory()) {
+					throw new IOException("Not a directory: " + dir);
+				}
+			} catch (NoSuchFileException e) {
+				throw new IOException("Not a directory: " + dir);
+			}
+			String id = context.getNotifier().subscribe(watched, ".".equals(dir) ? cwdPath() : cwdPath() + dir + "/",
+					listener);
+			subscriptions.add(id);
+			return id;
+		});
+	}
+
+	public void unsubscribe(String id) throws RemoteException {
+		rpc("unsubscribe", () -> id, () -> {
+			if (subscriptions.remove(id)) {
+				context.getNotifier().unsubscribe(id);
+			}
+		});
+	}
+
+	public ChunkedUpload beginChunkedPut(String file, long size, int chunkSize) throws IOException, RemoteException {
+		return rpc("beginChunkedPut", () -> file, () -> {
+			if (!valid(file)) {
+				throw new IOException("Bad file name: " + file);
+			} else if (size < 0) {
+				throw new IOException("Bad file size: " + size);
+			}
+			ChunkedUploadReceiver.checkChunks(size, chunkSize);
+			AdmissionController.Permit permit = admit();
+			try {
+				String id = UUID.randomUUID().toString();
+				ServerSocket listener = listen(BACKLOG_LENGTH);
+				ChunkedUpload upload = new ChunkedUpload(id, listener.getLocalPort(), size, chunkSize);
+				StagedFile staged = null;
+				try {
+					staged = new StagedFile(resolve(file), context.getDurability());
+					uploads.put(id, new ChunkedUploadReceiver(upload, staged, listener, this::shaped, flow(size)));
+					uploadPermits.put(id, permit);
+				} catch (IOException e) {
+					listener.close();
+					if (staged != null) {
+						staged.abort();
+					}
+					throw e;
+				}
+				return upload;
+			} catch (IOException | RuntimeException e) {
+				release(permit);
+				throw e;
+			}
+		});
+	}
+
+	public int[] commitChunkedPut(String id) throws IOException, RemoteException {
+		return rpc("commitChunkedPut", () -> id, () -> {
+			ChunkedUploadReceiver receiver = uploads.get(id);
+			if (receiver == null) {
+				throw new IOException("No such upload: " + id);
+			}
+			int[] missing = receiver.commit();
+			if (missing.length == 0) {
+				uploads.remove(id);
+				release(uploadPermits.remove(id));
+				storage.written(receiver.getTarget());
+				context.getChecksumIndex().invalidate(receiver.getTarget());
+			}
+			return missing;
+		});
+	}
+
+	public void abortChunkedPut(String id) throws RemoteException {
+		rpc("abortChunkedPut", () -> id, () -> {
+			ChunkedUploadReceiver receiver = uploads.remove(id);
+			release(uploadPermits.remove(id));
+			if (receiver != null) {
+				receiver.abort();
+			}
+		});
 	}
 
 }
@@ -0,0 +1,223 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.stevens.cs549.util.DataChannelSecurity;
+import edu.stevens.cs549.util.RpcSocketFactory;
+import edu.stevens.cs549.util.TransferDigest;
+import edu.stevens.cs549.util.TransferTuner;
+
+/**
+ * Configuration shared by all of the sessions created by a server factory,
+ * read from server.properties.
+ * 
+ * @author dduggan
+ */
+class ServerContext {
+
+	private final Properties props;
+
+	private final Storage storage;
+
+	private final String digestAlgorithm;
+
+	private final ChecksumIndex checksumIndex;
+
+	private final Durability durability;
+
+	private final AdmissionController admission;
+
+	private final Bandwidth bandwidth;
+
+	private final TransferScheduler scheduler;
+
+	private final ForkJoinPool searchPool;
+
+	private final ExecutorService archiveReaders;
+
+	private final ExecutorService unpackWriters;
+
+	private final ChangeNotifier notifier;
+
+	/*
+	 * Settings learned from transfers, by client host, shared by its sessions.
+	 */
+	private final TransferTuner tuner = new TransferTuner(1);
+
+	/*
+	 * Sockets for the control connections of the factory and its sessions.
+	 */
+	private final RpcSocketFactory rpcSockets;
+
+	/*
+	 * Encryption of data connections, if server.dataTls is set.
+	 */
+	private final DataChannelSecurity dataSecurity;
+
+	/*
+	 * Whether sessions may be pointed at hosts other than the client's, for
+	 * transfers between servers, and the peer servers they may be pointed at.
+	 */
+	private final boolean thirdParty;
+
+	private final List<String> thirdPartyPeers = new ArrayList<String>();
+
+	ServerContext(String pathPrefix, Properties props) {
+		this.props = props;
+		this.rpcSockets = RpcSocketFactory.fromProperties(props, "server.");
+		if (Boolean.parseBoolean(get("server.dataTls", "false"))) {
+			try {
+				this.dataSecurity = DataChannelSecurity.server(get("server.keystore", ""),
+						get("server.keystorePassword", "").toCharArray(),
+						get("server.tlsProtocols", DataChannelSecurity.DEFAULT_PROTOCOLS),
+						get("server.tlsCipherSuites", DataChannelSecurity.DEFAULT_CIPHER_SUITES));
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot set up TLS for data connections", e);
+			}
+		} else {
+			this.dataSecurity = DataChannelSecurity.PLAIN;
+		}
+		this.thirdParty = Boolean.parseBoolean(get("server.thirdParty", "false"));
+		for (String peer : get("server.thirdPartyPeers", "").split(",")) {
+			if (!peer.trim().isEmpty()) {
+				thirdPartyPeers.add(peer.trim());
+			}
+		}
+		this.digestAlgorithm = get("server.digest", TransferDigest.DEFAULT_ALGORITHM);
+		/*
+		 * Fail at start-up rather than on the first transfer.
+		 */
+		TransferDigest.create(digestAlgorithm);
+		this.storage = Storage.open(pathPrefix, this);
+		this.checksumIndex = new ChecksumIndex(storage, digestAlgorithm,
+				getInt("server.checksumThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+		this.durability = new Durability(Durability.Policy.valueOf(get("server.durability", "none").toUpperCase()),
+				getInt("server.groupCommitMillis", 10));
+		this.admission = new AdmissionController(getInt("server.maxSessions", 0), getInt("server.maxTransfers", 0),
+				getInt("server.maxQueued", 0), getInt("server.admissionWaitMillis", 0));
+		this.bandwidth = new Bandwidth(getLong("server.globalBytesPerSecond", 0),
+				getLong("server.sessionBytesPerSecond", 0));
+		this.bandwidth.register();
+		this.scheduler = new TransferScheduler(
+				getInt("server.ioSlots", 2),
+				getLong("server.interactiveBytes", 1024 * 1024), getLong("server.bulkBytes", 64 * 1024 * 1024));
+		this.searchPool = new ForkJoinPool(getInt("server.findThreads", Runtime.getRuntime().availableProcessors()));
+		this.archiveReaders = Executors.newFixedThreadPool(getInt("server.archiveThreads", 4), r -> {
+			Thread t = new Thread(r, "archive-reader");
+			t.setDaemon(true);
+			return t;
+		});
+		this.unpackWriters = Executors.newFixedThreadPool(getInt("server.unpackThreads", 4), r -> {
+			Thread t = new Thread(r, "unpack-writer");
+			t.setDaemon(true);
+			return t;
+		});
+		this.notifier = new ChangeNotifier(storage, getLong("server.watchDebounceMillis", 200),
+				getLong("server.watchMaxDelayMillis", 2000), getInt("server.watchThreads", 2));
+	}
+
+	String get(String key, String defaultValue) {
+		String value = props.getProperty(key);
+		return (value == null || value.isEmpty() || value.startsWith("${")) ? defaultValue : value.trim();
+	}
+
+	int getInt(String key, int defaultValue) {
+		return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+	}
+
+	long getLong(String key, long defaultValue) {
+		return Long.parseLong(get(key, Long.toString(defaultValue)));
+	}
+
+	Storage getStorage() {
+		return storage;
+	}
+
+	String getDigestAlgorithm() {
+		return digestAlgorithm;
+	}
+
+	ChecksumIndex getChecksumIndex() {
+		return checksumIndex;
+	}
+
+	Durability getDurability() {
+		return durability;
+	}
+
+	AdmissionController getAdmission() {
+		return admission;
+	}
+
+	Bandwidth getBandwidth() {
+		return bandwidth;
+	}
+
+	TransferScheduler getScheduler() {
+		return scheduler;
+	}
+
+	ForkJoinPool getSearchPool() {
+		return searchPool;
+	}
+
+	ExecutorService getArchiveReaders() {
+		return archiveReaders;
+	}
+
+	ExecutorService getUnpackWriters() {
+		return unpackWriters;
+	}
+
+	ChangeNotifier getNotifier() {
+		return notifier;
+	}
+
+	TransferTuner getTuner() {
+		return tuner;
+	}
+
+	RpcSocketFactory getRpcSockets() {
+		return rpcSockets;
+	}
+
+	DataChannelSecurity getDataSecurity() {
+		return dataSecurity;
+	}
+
+	boolean isThirdPartyAllowed() {
+		return thirdParty;
+	}
+
+	/*
+	 * The address of host if it is one of the peer servers, or null. The
+	 * session connects to the address returned, so that the name cannot be
+	 * made to resolve elsewhere in the meantime.
+	 */
+	InetAddress thirdPartyPeer(String host) {
+		try {
+			InetAddress[] targets = InetAddress.getAllByName(host);
+			for (String peer : thirdPartyPeers) {
+				for (InetAddress allowed : InetAddress.getAllByName(peer)) {
+					for (InetAddress target : targets) {
+						if (allowed.equals(target)) {
+							return target;
+						}
+					}
+				}
+			}
+		} catch (UnknownHostException e) {
+			;
+		}
+		return null;
+	}
+
+}
@@ -3,9 +3,11 @@ package edu.stevens.cs549.ftpserver;
 import java.net.InetAddress;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Properties;
 
 import edu.stevens.cs549.ftpinterface.IServer;
 import edu.stevens.cs549.ftpinterface.IServerFactory;
+import edu.stevens.cs549.ftpinterface.ServerBusyException;
 
 /**
  * @author dduggan
@@ -14,26 +16,43 @@ import edu.stevens.cs549.ftpinterface.IServerFactory;
 public class ServerFactory extends UnicastRemoteObject implements
 		IServerFactory {
 	
-	private String pathPrefix = "/";
-	
 	/*
 	 * Specify host (IP address) for multi-homed hosts.
 	 * Specify port of server for allowing access through a firewall.
 	 */
 	private InetAddress host;
 	private int serverPort;
+
+	/*
+	 * Configuration shared by all sessions.
+	 */
+	private ServerContext context;
 	
 	static final long serialVersionUID = 0L;
 
-	public ServerFactory(InetAddress h, int port, String p) throws RemoteException {
-		super(port);
+	public ServerFactory(InetAddress h, int port, String p, Properties props) throws RemoteException {
+		this(h, port, new ServerContext(p, props));
+	}
+
+	private ServerFactory(InetAddress h, int port, ServerContext context) throws RemoteException {
+		super(port, context.getRpcSockets(), context.getRpcSockets());
 		this.host = h;
 		this.serverPort = port;
-		this.pathPrefix = p;
+		this.context = context;
+	}
+
+	public ServerFactory(InetAddress h, int port, String p) throws RemoteException {
+		this(h, port, p, new Properties());
 	}
 
-	public IServer createServer() throws RemoteException {
-		return new Server(host, serverPort, pathPrefix);
+	public IServer createServer() throws ServerBusyException, RemoteException {
+		context.getAdmission().openSession();
+		try {
+			return new Server(host, serverPort, context);
+		} catch (RemoteException | RuntimeException e) {
+			context.getAdmission().closeSession();
+			throw e;
+		}
 	}
 
 }
@@ -11,6 +11,8 @@ import java.util.List;
 import java.util.Properties;
 import java.util.logging.Logger;
 
+import edu.stevens.cs549.util.RpcSocketFactory;
+
 /**
  *
  * @author dduggan
@@ -21,6 +23,8 @@ public class ServerMain {
 	
 	protected int serverPort;
 	
+	protected String storage;
+	
 	private static String serverPropsFile = "/server.properties";
 
 	private static Logger log = Logger.getLogger(ServerMain.class.getCanonicalName());
@@ -65,6 +69,8 @@ public class ServerMain {
 				serverIp = opts.get("serverIp");
 			else if ("serverPort".equals(k))
 				serverPort = Integer.parseInt(opts.get("serverPort"));
+			else if ("storage".equals(k))
+				storage = opts.get("storage");
 			else
 				severe("Unrecognized option: --" + k);
 		}
@@ -97,16 +103,25 @@ public class ServerMain {
         	 * Process overrides from command line
         	 */
         	processArgs(args);
+        	if (storage != null) {
+        		props.setProperty("server.storage", storage);
+        	}
         	
 			log.info("Server IP = "+serverIp);
 			log.info("Server port = "+serverPort);
 			log.info("Server name = "+serverName);
 			log.info("Root dir = "+rootDir);
+			log.info("Storage = "+props.getProperty("server.storage"));
         	/*
         	 * Register factory object in registry.
         	 */
-            ServerFactory serverFactory = new ServerFactory (InetAddress.getByName(serverIp), serverPort, rootDir);
-            Registry registry = LocateRegistry.createRegistry(serverPort);
+            ServerFactory serverFactory = new ServerFactory (InetAddress.getByName(serverIp), serverPort, rootDir, props);
+            /*
+             * The registry shares the port, so it must use the same socket settings.
+             */
+            RpcSocketFactory rpcSockets = RpcSocketFactory.fromProperties(props, "server.");
+            log.info("RPC sockets = "+rpcSockets);
+            Registry registry = LocateRegistry.createRegistry(serverPort, rpcSockets, rpcSockets);
             registry.rebind(serverName, serverFactory); 
             
             Server.log.info("Server bound [port="+serverPort+"]");
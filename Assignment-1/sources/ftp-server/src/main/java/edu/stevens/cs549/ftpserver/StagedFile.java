@@ -0,0 +1,173 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An upload written to a hidden file next to its target and renamed over the
+ * target only when complete, so that readers never see a partial file. The
+ * durability policy decides what is forced to disk before the rename.
+ *
+ * An append is staged in the same way, and its bytes added to the end of the
+ * target in one go when complete, so a failed append adds nothing. Commits to
+ * the same target, whether puts or appends and from whichever session, hold a
+ * lock chosen by its path, so concurrent appends never interleave and none is
+ * lost to a put renamed over the target meanwhile.
+ * 
+ * @author dduggan
+ */
+class StagedFile {
+
+	private static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+
+	static {
+		for (int i = 0; i < LOCKS.length; i++) {
+			LOCKS[i] = new ReentrantLock();
+		}
+	}
+
+	private final Path target;
+
+	private final Path staging;
+
+	private final FileChannel channel;
+
+	private final Durability durability;
+
+	/*
+	 * For an append, the storage holding the target, and the size the target
+	 * must have when the staged bytes are added (-1 for any size).
+	 */
+	private final Storage appendTo;
+
+	private final long expectedSize;
+
+	StagedFile(Path target, Durability durability) throws IOException {
+		this(target, durability, null, -1);
+	}
+
+	private StagedFile(Path target, Durability durability, Storage appendTo, long expectedSize) throws IOException {
+		this.target = target;
+		this.staging = target.resolveSibling(Server.INTERNAL_PREFIX + "put-" + UUID.randomUUID());
+		this.durability = durability;
+		this.appendTo = appendTo;
+		this.expectedSize = expectedSize;
+		this.channel = FileChannel.open(staging, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	static StagedFile append(Path target, Durability durability, Storage storage, long expectedSize)
+			throws IOException {
+		return new StagedFile(target, durability, storage, expectedSize);
+	}
+
+	private static ReentrantLock lock(Path target) {
+		ReentrantLock lock = LOCKS[Math.floorMod(target.toAbsolutePath().normalize().toString().hashCode(),
+				LOCKS.length)];
+		lock.lock();
+		return lock;
+	}
+
+	Path getTarget() {
+		return target;
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/*
+	 * A stream onto the staging file. Closing it leaves the file open for
+	 * commit() or abort().
+	 */
+	OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+			}
+		};
+	}
+
+	void commit() throws IOException {
+		ReentrantLock lock = lock(target);
+		try {
+			if (appendTo != null) {
+				appendToTarget();
+			} else {
+				durability.syncFile(channel);
+				channel.close();
+				Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				durability.syncDirectory(target.toAbsolutePath().getParent());
+			}
+		} catch (IOException e) {
+			abort();
+			throw e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void appendToTarget() throws IOException {
+		appendTo.materialize(target);
+		boolean exists = Files.exists(target);
+		long size = exists ? Files.size(target) : 0;
+		if (expectedSize >= 0 && size != expectedSize) {
+			throw new IOException("Not appended to " + target.getFileName() + ": it has " + size + " bytes, expected "
+					+ expectedSize);
+		}
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			long length = channel.size();
+			try {
+				for (long done = 0; done < length;) {
+					done += channel.transferTo(done, length - done, out.position(size + done));
+				}
+				durability.syncFile(out);
+			} catch (IOException e) {
+				/*
+				 * Take back whatever part of the append made it to the target.
+				 */
+				try {
+					out.truncate(size);
+					if (!exists) {
+						Files.delete(target);
+					}
+				} catch (IOException te) {
+					e.addSuppressed(te);
+				}
+				throw e;
+			}
+		}
+		channel.close();
+		Files.delete(staging);
+		if (!exists) {
+			durability.syncDirectory(target.toAbsolutePath().getParent());
+		}
+	}
+
+	void abort() {
+		try {
+			channel.close();
+			Files.deleteIfExists(staging);
+		} catch (IOException e) {
+			Server.log.warning("Could not remove staging file " + staging + ": " + e);
+		}
+	}
+
+}
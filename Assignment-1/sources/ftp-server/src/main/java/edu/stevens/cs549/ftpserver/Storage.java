@@ -0,0 +1,151 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the server keeps its files. Sessions resolve names against the root
+ * as nio paths, so the rest of the server works the same whatever file system
+ * the root is on. The operations here are the ones sessions go through to read
+ * and list files, so that a backend can intervene.
+ *
+ * Backends are "local", a directory on disk, "memory", an in-memory file
+ * system that is discarded when the server exits, and "tiered", a directory
+ * on disk whose idle files are moved to a compressed cold directory.
+ *
+ * @author dduggan
+ */
+abstract class Storage {
+
+	/*
+	 * The absolute, normalized root of the tree served.
+	 */
+	abstract Path getRoot();
+
+	/*
+	 * Sequential reads of a whole file.
+	 */
+	InputStream newInputStream(Path file) throws IOException {
+		return Files.newInputStream(file);
+	}
+
+	/*
+	 * A read of a whole file by the server itself, e.g. to compute its checksum,
+	 * which the backend should not take as a sign that the file is in use.
+	 */
+	InputStream openScan(Path file) throws IOException {
+		return newInputStream(file);
+	}
+
+	/*
+	 * Reads that may seek, e.g. for ranges.
+	 */
+	FileChannel openRead(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.READ);
+	}
+
+	/*
+	 * Make sure a file can be used directly through its path, rather than only
+	 * through this class.
+	 */
+	void materialize(Path file) throws IOException {
+	}
+
+	/*
+	 * A new version of a file has been committed.
+	 */
+	void written(Path file) {
+	}
+
+	/*
+	 * Whether a file appearing at a path, or disappearing from it, was the
+	 * backend moving it rather than a client changing it.
+	 */
+	boolean relocated(Path file, boolean appeared) {
+		return false;
+	}
+
+	BasicFileAttributes attributes(Path file, LinkOption... options) throws IOException {
+		return Files.readAttributes(file, BasicFileAttributes.class, options);
+	}
+
+	/*
+	 * Names in a directory, leaving out the server's internal files. Anything
+	 * that walks the tree goes through this and attributes, so that it sees
+	 * files wherever the backend keeps them.
+	 */
+	String[] list(Path dir) throws IOException {
+		List<String> names = new ArrayList<String>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				if (!name.startsWith(Server.INTERNAL_PREFIX)) {
+					names.add(name);
+				}
+			}
+		}
+		return names.toArray(new String[0]);
+	}
+
+	static Storage open(String location, ServerContext context) {
+		String backend = context.get("server.storage", "local");
+		if ("local".equals(backend)) {
+			return new Local(Paths.get(location));
+		} else if ("memory".equals(backend)) {
+			return new Memory(location, context.getLong("server.memoryBytes", 0));
+		} else if ("tiered".equals(backend)) {
+			return new TieredStorage(Paths.get(location), Paths.get(context.get("server.coldPath", location + "-cold")),
+					context.getLong("server.tierColdAfterSeconds", 7 * 24 * 3600) * 1000,
+					context.getLong("server.tierScanSeconds", 3600) * 1000, context.getInt("server.tierPromoteReads", 3));
+		}
+		throw new IllegalArgumentException("Unknown storage backend: " + backend);
+	}
+
+	static class Local extends Storage {
+
+		private final Path root;
+
+		Local(Path root) {
+			this.root = root.toAbsolutePath().normalize();
+		}
+
+		Path getRoot() {
+			return root;
+		}
+
+		public String toString() {
+			return root.toString();
+		}
+	}
+
+	/*
+	 * capacity bounds the bytes of file data held, 0 for no limit.
+	 */
+	static class Memory extends Storage {
+
+		private final MemoryFileSystem fs;
+
+		Memory(String name, long capacity) {
+			this.fs = new MemoryFileSystem(name, capacity);
+		}
+
+		Path getRoot() {
+			return fs.getPath("/");
+		}
+
+		public String toString() {
+			return "memory:" + getRoot();
+		}
+	}
+
+}
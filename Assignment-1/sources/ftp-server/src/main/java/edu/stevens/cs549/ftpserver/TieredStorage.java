@@ -0,0 +1,548 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tiered storage: the root is the hot tier, and files that have sat idle are
+ * moved in the background to a cold directory, gzipped, at the same relative
+ * path. Clients see one namespace. Listings merge the two tiers, and a cold
+ * file is decompressed as it is read. Reads are counted, with older reads
+ * counting for less, and a cold file that is read often enough is promoted
+ * back to the hot tier. Where both tiers have a file, the hot copy wins, so a
+ * put simply writes to the hot tier and the cold copy is dropped.
+ *
+ * The size and modification time of each cold file are kept in a catalogue in
+ * the cold directory.
+ *
+ * @author dduggan
+ */
+class TieredStorage extends Storage.Local {
+
+	private static Logger log = Logger.getLogger(TieredStorage.class.getCanonicalName());
+
+	static final String CATALOGUE_FILE = Server.INTERNAL_PREFIX + "tiers";
+
+	static final String COLD_SUFFIX = ".gz";
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	static final long SAVE_DELAY_MILLIS = 1000;
+
+	private static class ColdEntry {
+		final long size;
+		final long modified;
+
+		ColdEntry(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	/*
+	 * Reads of a file, decayed by half every half-life.
+	 */
+	private static class Heat {
+		private double score = 0;
+		private long last = 0;
+
+		synchronized double touch(long now, long halfLife) {
+			score = score(now, halfLife) + 1;
+			last = now;
+			return score;
+		}
+
+		synchronized double score(long now, long halfLife) {
+			return last == 0 ? 0 : score * Math.pow(0.5, (double) (now - last) / halfLife);
+		}
+
+		synchronized long last() {
+			return last;
+		}
+	}
+
+	private final Path hot;
+
+	private final Path cold;
+
+	private final Path catalogueFile;
+
+	/*
+	 * A file is migrated once it has been neither read nor modified for this
+	 * long, which is also the half-life of its reads.
+	 */
+	private final long coldAfterMillis;
+
+	/*
+	 * A cold file is promoted once its decayed read count, rounded, reaches
+	 * this.
+	 */
+	private final int promoteReads;
+
+	private final Map<String, ColdEntry> catalogue = new ConcurrentHashMap<String, ColdEntry>();
+
+	private final Map<String, Heat> heat = new ConcurrentHashMap<String, Heat>();
+
+	/*
+	 * Migration and promotion of a file are serialized by a lock chosen by its
+	 * name.
+	 */
+	private final ReentrantLock[] locks = new ReentrantLock[64];
+
+	private final ScheduledExecutorService migrator;
+
+	private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+
+	TieredStorage(Path hot, Path cold, long coldAfterMillis, long scanMillis, int promoteReads) {
+		super(hot);
+		this.hot = getRoot();
+		this.cold = cold.toAbsolutePath().normalize();
+		this.catalogueFile = this.cold.resolve(CATALOGUE_FILE);
+		this.coldAfterMillis = coldAfterMillis;
+		this.promoteReads = promoteReads;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		load();
+		this.migrator = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "tier-migrator");
+			t.setDaemon(true);
+			return t;
+		});
+		migrator.scheduleWithFixedDelay(this::scan, scanMillis, scanMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private String key(Path file) {
+		return hot.relativize(file.toAbsolutePath().normalize()).toString();
+	}
+
+	private Path coldPath(String key) {
+		return cold.resolve(key + COLD_SUFFIX);
+	}
+
+	private ReentrantLock lock(String key) {
+		ReentrantLock lock = locks[Math.floorMod(key.hashCode(), locks.length)];
+		lock.lock();
+		return lock;
+	}
+
+	private double touch(String key) {
+		return heat.computeIfAbsent(key, k -> new Heat()).touch(System.currentTimeMillis(), coldAfterMillis);
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Access through the single namespace.
+	 */
+
+	/*
+	 * A directory that only the cold tier still has is listed, so it has
+	 * attributes too.
+	 */
+	@Override
+	BasicFileAttributes attributes(Path file, LinkOption... options) throws IOException {
+		try {
+			return super.attributes(file, options);
+		} catch (NoSuchFileException e) {
+			String key = key(file);
+			ColdEntry entry = catalogue.get(key);
+			if (entry != null) {
+				return attributes(entry);
+			}
+			Path coldDir = cold.resolve(key);
+			if (!key.isEmpty() && Files.isDirectory(coldDir, LinkOption.NOFOLLOW_LINKS)) {
+				return Files.readAttributes(coldDir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	InputStream newInputStream(Path file) throws IOException {
+		String key = key(file);
+		double score = touch(key);
+		try {
+			return super.newInputStream(file);
+		} catch (NoSuchFileException e) {
+			if (!catalogue.containsKey(key)) {
+				throw e;
+			} else if (Math.round(score) >= promoteReads) {
+				promote(key, file);
+				return super.newInputStream(file);
+			}
+		}
+		try {
+			return new GZIPInputStream(Files.newInputStream(coldPath(key)), BUFFER_SIZE);
+		} catch (NoSuchFileException e) {
+			/*
+			 * Promoted in the meantime.
+			 */
+			return super.newInputStream(file);
+		}
+	}
+
+	/*
+	 * Read where the file is, without counting the read or promoting it.
+	 */
+	@Override
+	InputStream openScan(Path file) throws IOException {
+		try {
+			return super.newInputStream(file);
+		} catch (NoSuchFileException e) {
+			if (!catalogue.containsKey(key(file))) {
+				throw e;
+			}
+		}
+		try {
+			return new GZIPInputStream(Files.newInputStream(coldPath(key(file))), BUFFER_SIZE);
+		} catch (NoSuchFileException e) {
+			return super.newInputStream(file);
+		}
+	}
+
+	/*
+	 * A compressed file cannot be read at an offset, so one that is read this
+	 * way is promoted first.
+	 */
+	@Override
+	FileChannel openRead(Path file) throws IOException {
+		touch(key(file));
+		materialize(file);
+		return super.openRead(file);
+	}
+
+	@Override
+	void materialize(Path file) throws IOException {
+		String key = key(file);
+		if (!Files.exists(file) && catalogue.containsKey(key)) {
+			promote(key, file);
+		}
+	}
+
+	@Override
+	void written(Path file) {
+		String key = key(file);
+		if (catalogue.containsKey(key)) {
+			ReentrantLock lock = lock(key);
+			try {
+				dropCold(key);
+			} catch (IOException e) {
+				log.warning("Could not remove cold copy of " + key + ": " + e);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	String[] list(Path dir) throws IOException {
+		Set<String> names = new LinkedHashSet<String>(List.of(super.list(dir)));
+		Path coldDir = cold.resolve(key(dir));
+		if (Files.isDirectory(coldDir)) {
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(coldDir)) {
+				for (Path entry : entries) {
+					String name = entry.getFileName().toString();
+					if (name.startsWith(Server.INTERNAL_PREFIX)) {
+						continue;
+					} else if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+						names.add(name);
+					} else if (name.endsWith(COLD_SUFFIX)) {
+						String base = name.substring(0, name.length() - COLD_SUFFIX.length());
+						if (catalogue.containsKey(key(dir.resolve(base)))) {
+							names.add(base);
+						}
+					}
+				}
+			}
+		}
+		return names.toArray(new String[0]);
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Moving files between the tiers.
+	 */
+
+	/*
+	 * Decompress a cold file back into the hot tier. A hard link puts it in
+	 * place only if no put has got there first.
+	 */
+	private void promote(String key, Path file) throws IOException {
+		ReentrantLock lock = lock(key);
+		try {
+			ColdEntry entry = catalogue.get(key);
+			if (entry == null || Files.exists(file)) {
+				return;
+			}
+			Files.createDirectories(file.getParent());
+			Path staging = file.resolveSibling(Server.INTERNAL_PREFIX + "promote-" + UUID.randomUUID());
+			try {
+				try (InputStream in = new GZIPInputStream(Files.newInputStream(coldPath(key)), BUFFER_SIZE);
+						OutputStream out = Files.newOutputStream(staging, StandardOpenOption.CREATE_NEW,
+								StandardOpenOption.WRITE)) {
+					in.transferTo(out);
+				}
+				Files.setLastModifiedTime(staging, FileTime.fromMillis(entry.modified));
+				try {
+					Files.createLink(file, staging);
+				} catch (FileAlreadyExistsException e) {
+					;
+				} catch (UnsupportedOperationException e) {
+					Files.move(staging, file);
+				}
+			} finally {
+				Files.deleteIfExists(staging);
+			}
+			dropCold(key);
+			log.info("Promoted " + key + " to the hot tier.");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * A demoted file leaves the hot tier once it is in the catalogue, and a
+	 * promoted one arrives with the modification time it had when it went cold.
+	 */
+	@Override
+	boolean relocated(Path file, boolean appeared) {
+		if (!appeared) {
+			return catalogue.containsKey(key(file));
+		}
+		try {
+			FileTime modified = Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS);
+			return System.currentTimeMillis() - modified.toMillis() >= coldAfterMillis;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void dropCold(String key) throws IOException {
+		if (catalogue.remove(key) != null) {
+			scheduleSave();
+		}
+		Files.deleteIfExists(coldPath(key));
+	}
+
+	/*
+	 * Migrate every idle file in the hot tier.
+	 */
+	void scan() {
+		long now = System.currentTimeMillis();
+		int files = 0;
+		long bytes = 0;
+		try (Stream<Path> paths = Files.walk(hot)) {
+			Iterator<Path> it = paths.iterator();
+			while (it.hasNext()) {
+				Path path = it.next();
+				if (path.startsWith(cold) || internal(path)) {
+					continue;
+				}
+				BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+				if (!attrs.isRegularFile()) {
+					continue;
+				}
+				String key = key(path);
+				Heat h = heat.get(key);
+				long last = Math.max(attrs.lastModifiedTime().toMillis(), h == null ? 0 : h.last());
+				if (now - last >= coldAfterMillis && (h == null || h.score(now, coldAfterMillis) < 1)
+						&& demote(key, path, attrs)) {
+					files++;
+					bytes += attrs.size();
+				}
+			}
+		} catch (IOException | UncheckedIOException e) {
+			log.warning("Tier scan stopped early: " + e);
+		}
+		if (files > 0) {
+			log.info("Migrated " + files + " files (" + bytes + " bytes) to the cold tier.");
+		}
+	}
+
+	private boolean internal(Path path) {
+		for (Path part : hot.relativize(path)) {
+			if (part.toString().startsWith(Server.INTERNAL_PREFIX)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Compress a file into the cold tier and then remove the hot copy, unless it
+	 * was rewritten in the meantime. Until the hot copy is gone, reads are still
+	 * served from it.
+	 */
+	private boolean demote(String key, Path file, BasicFileAttributes attrs) {
+		ReentrantLock lock = lock(key);
+		try {
+			Path target = coldPath(key);
+			Files.createDirectories(target.getParent());
+			Path tmp = target.resolveSibling(Server.INTERNAL_PREFIX + "demote-" + UUID.randomUUID());
+			try {
+				try (InputStream in = Files.newInputStream(file);
+						OutputStream out = new GZIPOutputStream(
+								Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+								BUFFER_SIZE)) {
+					in.transferTo(out);
+				}
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+			catalogue.put(key, new ColdEntry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+			scheduleSave();
+
+			Path aside = file.resolveSibling(Server.INTERNAL_PREFIX + "demote-" + UUID.randomUUID());
+			Files.move(file, aside, StandardCopyOption.ATOMIC_MOVE);
+			BasicFileAttributes now = Files.readAttributes(aside, BasicFileAttributes.class);
+			if (now.size() == attrs.size() && now.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+				Files.delete(aside);
+				heat.remove(key);
+				return true;
+			}
+			/*
+			 * Rewritten while it was being compressed: put it back, unless a still
+			 * newer version has arrived since.
+			 */
+			try {
+				Files.createLink(file, aside);
+			} catch (FileAlreadyExistsException e) {
+				;
+			}
+			Files.delete(aside);
+			dropCold(key);
+			return false;
+		} catch (IOException e) {
+			log.warning("Could not migrate " + key + ": " + e);
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static BasicFileAttributes attributes(ColdEntry entry) {
+		return new BasicFileAttributes() {
+			public FileTime lastModifiedTime() {
+				return FileTime.fromMillis(entry.modified);
+			}
+
+			public FileTime lastAccessTime() {
+				return FileTime.fromMillis(entry.modified);
+			}
+
+			public FileTime creationTime() {
+				return FileTime.fromMillis(entry.modified);
+			}
+
+			public boolean isRegularFile() {
+				return true;
+			}
+
+			public boolean isDirectory() {
+				return false;
+			}
+
+			public boolean isSymbolicLink() {
+				return false;
+			}
+
+			public boolean isOther() {
+				return false;
+			}
+
+			public long size() {
+				return entry.size;
+			}
+
+			public Object fileKey() {
+				return null;
+			}
+		};
+	}
+
+	/*
+	 * *****************************************************************************
+	 * Persistence of the catalogue: one line per cold file, "size modified path".
+	 */
+
+	private void load() {
+		try (BufferedReader in = Files.newBufferedReader(catalogueFile, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ", 3);
+				if (fields.length == 3) {
+					catalogue.put(fields[2], new ColdEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+				}
+			}
+			log.info("Loaded " + catalogue.size() + " cold files from " + catalogueFile);
+		} catch (NoSuchFileException e) {
+			;
+		} catch (IOException | RuntimeException e) {
+			log.warning("Ignoring unreadable tier catalogue " + catalogueFile + ": " + e);
+			catalogue.clear();
+		}
+	}
+
+	private void scheduleSave() {
+		if (saveScheduled.compareAndSet(false, true)) {
+			migrator.schedule(this::save, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	void save() {
+		saveScheduled.set(false);
+		Path tmp = catalogueFile.resolveSibling(CATALOGUE_FILE + ".tmp");
+		try {
+			Files.createDirectories(cold);
+			List<String> lines = new ArrayList<String>();
+			for (Map.Entry<String, ColdEntry> e : catalogue.entrySet()) {
+				lines.add(e.getValue().size + " " + e.getValue().modified + " " + e.getKey());
+			}
+			try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				for (String line : lines) {
+					out.write(line);
+					out.newLine();
+				}
+			}
+			Files.move(tmp, catalogueFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warning("Could not save tier catalogue " + catalogueFile + ": " + e);
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Token-bucket rate limiter, in bytes per second. The rate is read on every
+ * request, so it can be changed while transfers are running; a rate of zero
+ * means no limit. A transfer that overdraws the bucket sleeps off the debt
+ * while holding a fair lock, so transfers waiting on the same bucket take
+ * turns and share its rate evenly.
+ * 
+ * @author dduggan
+ */
+class TokenBucket {
+
+	/*
+	 * Transfers are charged in pieces of at most this many bytes, so that one
+	 * large write cannot hold the bucket for long.
+	 */
+	static final int MAX_REQUEST = 16 * 1024;
+
+	/*
+	 * How much an idle bucket may save up, in seconds of its rate.
+	 */
+	static final double BURST_SECONDS = 0.1;
+
+	private final LongSupplier rate;
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+
+	private double tokens = 0;
+
+	private long last = System.nanoTime();
+
+	TokenBucket(LongSupplier rate) {
+		this.rate = rate;
+	}
+
+	void take(int bytes) throws InterruptedIOException {
+		long r = rate.getAsLong();
+		if (r <= 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			long now = System.nanoTime();
+			tokens = Math.min(r * BURST_SECONDS, tokens + (now - last) * r / 1e9);
+			last = now;
+			tokens -= bytes;
+			if (tokens < 0) {
+				TimeUnit.NANOSECONDS.sleep((long) (-tokens * 1e9 / r));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while shaping a transfer");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void take(TokenBucket[] buckets, int bytes) throws InterruptedIOException {
+		for (TokenBucket bucket : buckets) {
+			bucket.take(bytes);
+		}
+	}
+
+	/*
+	 * Streams charged against one or more buckets, e.g. the session's and the
+	 * server's.
+	 */
+	static InputStream shape(InputStream in, TokenBucket... buckets) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					take(buckets, 1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, Math.min(len, MAX_REQUEST));
+				if (n > 0) {
+					take(buckets, n);
+				}
+				return n;
+			}
+		};
+	}
+
+	static OutputStream shape(OutputStream out, TokenBucket... buckets) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				take(buckets, 1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int n = Math.min(len, MAX_REQUEST);
+					take(buckets, n);
+					out.write(b, off, n);
+					off += n;
+					len -= n;
+				}
+			}
+		};
+	}
+
+}
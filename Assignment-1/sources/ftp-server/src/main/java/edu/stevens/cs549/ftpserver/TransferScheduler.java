@@ -0,0 +1,169 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.PriorityQueue;
+
+import edu.stevens.cs549.ftpinterface.TransferPriority;
+
+/**
+ * Weighted fair scheduling of transfer I/O. Each write on a scheduled stream
+ * (a data connection for downloads, the disk for uploads) needs one of a fixed
+ * number of slots, held until the write returns, so a slow connection keeps
+ * its slot while the socket buffer drains. When all the slots are busy,
+ * waiting requests are granted in order of virtual finish time: a transfer's
+ * tag advances by the size of each request divided by the weight of its
+ * class, so interactive transfers get their turn sooner and small files finish
+ * quickly even while bulk transfers run (start-time fair queueing).
+ * 
+ * @author dduggan
+ */
+class TransferScheduler {
+
+	/*
+	 * Files up to this size are interactive, and above the bulk threshold are
+	 * bulk, unless the session asks for a class.
+	 */
+	private final long interactiveBytes;
+
+	private final long bulkBytes;
+
+	private final int slots;
+
+	private int busy = 0;
+
+	private double virtualTime = 0;
+
+	private long sequence = 0;
+
+	private static class Request implements Comparable<Request> {
+		final double start;
+		final double finish;
+		final long seq;
+		boolean granted = false;
+
+		Request(double start, double finish, long seq) {
+			this.start = start;
+			this.finish = finish;
+			this.seq = seq;
+		}
+
+		public int compareTo(Request other) {
+			int c = Double.compare(finish, other.finish);
+			return c != 0 ? c : Long.compare(seq, other.seq);
+		}
+	}
+
+	private final PriorityQueue<Request> waiting = new PriorityQueue<Request>();
+
+	TransferScheduler(int slots, long interactiveBytes, long bulkBytes) {
+		this.slots = slots;
+		this.interactiveBytes = interactiveBytes;
+		this.bulkBytes = bulkBytes;
+	}
+
+	static int weight(TransferPriority priority) {
+		switch (priority) {
+		case INTERACTIVE:
+			return 16;
+		case BULK:
+			return 1;
+		default:
+			return 4;
+		}
+	}
+
+	TransferPriority classify(long size) {
+		if (size <= interactiveBytes) {
+			return TransferPriority.INTERACTIVE;
+		} else if (size > bulkBytes) {
+			return TransferPriority.BULK;
+		} else {
+			return TransferPriority.NORMAL;
+		}
+	}
+
+	/*
+	 * The scheduling state of one transfer.
+	 */
+	class Flow {
+		private final int weight;
+		private double tag;
+
+		Flow(TransferPriority priority) {
+			this.weight = weight(priority);
+		}
+
+		void acquire(int bytes) throws InterruptedIOException {
+			synchronized (TransferScheduler.this) {
+				double start = Math.max(tag, virtualTime);
+				tag = start + (double) bytes / weight;
+				if (busy < slots && waiting.isEmpty()) {
+					busy++;
+					virtualTime = Math.max(virtualTime, start);
+					return;
+				}
+				Request request = new Request(start, tag, sequence++);
+				waiting.add(request);
+				try {
+					while (!request.granted) {
+						TransferScheduler.this.wait();
+					}
+				} catch (InterruptedException e) {
+					if (!waiting.remove(request)) {
+						release();
+					}
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for an I/O slot");
+				}
+			}
+		}
+
+		void release() {
+			synchronized (TransferScheduler.this) {
+				busy--;
+				while (busy < slots && !waiting.isEmpty()) {
+					Request next = waiting.poll();
+					next.granted = true;
+					busy++;
+					virtualTime = Math.max(virtualTime, next.start);
+				}
+				TransferScheduler.this.notifyAll();
+			}
+		}
+	}
+
+	Flow open(TransferPriority priority) {
+		return new Flow(priority);
+	}
+
+	/*
+	 * A stream whose writes are each scheduled as one request.
+	 */
+	static OutputStream schedule(OutputStream out, Flow flow) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				flow.acquire(1);
+				try {
+					out.write(b);
+				} finally {
+					flow.release();
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				flow.acquire(len);
+				try {
+					out.write(b, off, len);
+				} finally {
+					flow.release();
+				}
+			}
+		};
+	}
+
+}
@@ -0,0 +1,146 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.stevens.cs549.ftpinterface.ServerBusyException;
+import junit.framework.TestCase;
+
+/**
+ * Sessions and transfers admitted by an AdmissionController, alone and from
+ * many threads at once.
+ */
+public class AdmissionControllerTest extends TestCase {
+
+	public void testSessionLimit() throws Exception {
+		AdmissionController admission = new AdmissionController(2, 0, 0, 0);
+		admission.openSession();
+		admission.openSession();
+		try {
+			admission.openSession();
+			fail("Expected the third session to be turned away");
+		} catch (ServerBusyException e) {
+			assertTrue(e.getRetryAfterMillis() >= AdmissionController.MIN_RETRY_MILLIS);
+		}
+		admission.closeSession();
+		admission.openSession();
+	}
+
+	public void testNoLimits() throws Exception {
+		AdmissionController admission = new AdmissionController(0, 0, 0, 0);
+		for (int i = 0; i < 100; i++) {
+			admission.openSession();
+			admission.admit();
+		}
+	}
+
+	/*
+	 * A queue limit of zero is no limit: transfers wait for a slot rather than
+	 * being turned away.
+	 */
+	public void testUnboundedQueue() throws Exception {
+		AdmissionController admission = new AdmissionController(0, 1, 0, 5000);
+		AdmissionController.Permit held = admission.admit();
+		Thread releaser = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				;
+			}
+			held.release();
+		});
+		releaser.start();
+		admission.admit().release();
+		releaser.join();
+	}
+
+	public void testQueueFull() throws Exception {
+		AdmissionController admission = new AdmissionController(0, 1, 1, 2000);
+		AdmissionController.Permit held = admission.admit();
+		Thread waiter = new Thread(() -> {
+			try {
+				admission.admit().release();
+			} catch (Exception e) {
+				;
+			}
+		});
+		waiter.start();
+		while (waiter.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+		try {
+			admission.admit();
+			fail("Expected the transfer to be turned away");
+		} catch (ServerBusyException e) {
+			;
+		}
+		held.release();
+		waiter.join();
+	}
+
+	public void testWaitRunsOut() throws Exception {
+		AdmissionController admission = new AdmissionController(0, 1, 0, 50);
+		admission.admit();
+		try {
+			admission.admit();
+			fail("Expected the wait to run out");
+		} catch (ServerBusyException e) {
+			;
+		}
+	}
+
+	public void testReleaseTwice() throws Exception {
+		AdmissionController admission = new AdmissionController(0, 1, 0, 50);
+		AdmissionController.Permit permit = admission.admit();
+		permit.release();
+		permit.release();
+		admission.admit();
+		try {
+			admission.admit();
+			fail("Expected a second release to leave only one slot");
+		} catch (ServerBusyException e) {
+			;
+		}
+	}
+
+	/*
+	 * Many threads admitting and releasing never hold more than the limit, and
+	 * all get through when the wait is long enough.
+	 */
+	public void testContention() throws Exception {
+		int limit = 3;
+		AdmissionController admission = new AdmissionController(0, limit, 0, 10000);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger most = new AtomicInteger();
+		AtomicInteger admitted = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 16; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					for (int j = 0; j < 20; j++) {
+						AdmissionController.Permit permit = admission.admit();
+						try {
+							most.accumulateAndGet(running.incrementAndGet(), Math::max);
+							Thread.sleep(1);
+							running.decrementAndGet();
+						} finally {
+							permit.release();
+						}
+						admitted.incrementAndGet();
+					}
+				} catch (Exception e) {
+					;
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join(30000);
+		}
+		assertEquals(16 * 20, admitted.get());
+		assertTrue(most.get() <= limit);
+	}
+
+}
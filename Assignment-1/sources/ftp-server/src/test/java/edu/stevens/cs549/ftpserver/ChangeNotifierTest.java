@@ -0,0 +1,144 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import edu.stevens.cs549.ftpinterface.ChangeEvent;
+import edu.stevens.cs549.ftpinterface.IChangeListener;
+import junit.framework.TestCase;
+
+/**
+ * Batches of changes delivered for a subscription to a temporary directory.
+ * Changes made in quick succession are expected in one batch, with those to the
+ * same name combined.
+ */
+public class ChangeNotifierTest extends TestCase {
+
+	private static final long DEBOUNCE_MILLIS = 200;
+
+	private static final long MAX_DELAY_MILLIS = 600;
+
+	/*
+	 * Long enough for a batch to be due and delivered.
+	 */
+	private static final long SETTLE_MILLIS = 5 * DEBOUNCE_MILLIS;
+
+	private Path dir;
+
+	private ChangeNotifier notifier;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("notifier-test");
+		notifier = new ChangeNotifier(new Storage.Local(dir), DEBOUNCE_MILLIS, MAX_DELAY_MILLIS, 1);
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.toFile().listFiles()) {
+			f.delete();
+		}
+		dir.toFile().delete();
+	}
+
+	/*
+	 * Records each batch delivered, as the strings of its events.
+	 */
+	private static class Batches implements IChangeListener {
+		final List<List<String>> received = new ArrayList<List<String>>();
+
+		public synchronized void changed(String subscription, String path, ChangeEvent[] events) {
+			received.add(Stream.of(events).map(ChangeEvent::toString).collect(Collectors.toList()));
+		}
+
+		synchronized List<List<String>> get() {
+			return new ArrayList<List<String>>(received);
+		}
+	}
+
+	private Batches subscribe() throws IOException {
+		Batches batches = new Batches();
+		notifier.subscribe(dir, "/", batches);
+		return batches;
+	}
+
+	public void testWritesCoalesced() throws Exception {
+		Batches batches = subscribe();
+		Path file = dir.resolve("a.txt");
+		Files.writeString(file, "one");
+		for (int i = 0; i < 5; i++) {
+			Files.writeString(file, "more", StandardOpenOption.APPEND);
+		}
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(List.of(List.of("created a.txt")), batches.get());
+	}
+
+	public void testNamesKeptInOrder() throws Exception {
+		Path existing = dir.resolve("old.txt");
+		Files.writeString(existing, "old");
+		Batches batches = subscribe();
+		Files.writeString(dir.resolve("b.txt"), "b");
+		Files.writeString(existing, "changed", StandardOpenOption.APPEND);
+		Files.delete(existing);
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(List.of(List.of("created b.txt", "deleted old.txt")), batches.get());
+	}
+
+	/*
+	 * A file created and deleted within a batch is not reported at all.
+	 */
+	public void testCancelledOut() throws Exception {
+		Batches batches = subscribe();
+		Path file = dir.resolve("temp.txt");
+		Files.writeString(file, "temp");
+		Files.delete(file);
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(List.of(), batches.get());
+	}
+
+	public void testInternalFilesIgnored() throws Exception {
+		Batches batches = subscribe();
+		Files.writeString(dir.resolve(Server.INTERNAL_PREFIX + "upload"), "staged");
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(List.of(), batches.get());
+	}
+
+	/*
+	 * Changes that never stop are still delivered, at most MAX_DELAY_MILLIS
+	 * apart.
+	 */
+	public void testMaxDelay() throws Exception {
+		Batches batches = subscribe();
+		Path file = dir.resolve("log.txt");
+		Files.writeString(file, "");
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() - start < 4 * MAX_DELAY_MILLIS) {
+			Files.writeString(file, "line\n", StandardOpenOption.APPEND);
+			Thread.sleep(DEBOUNCE_MILLIS / 4);
+		}
+		int whileWriting = batches.get().size();
+		assertTrue("delivered " + whileWriting + " batches", whileWriting >= 2);
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(List.of("created log.txt"), batches.get().get(0));
+		for (List<String> batch : batches.get().subList(1, batches.get().size())) {
+			assertEquals(List.of("modified log.txt"), batch);
+		}
+	}
+
+	public void testUnsubscribe() throws Exception {
+		Batches batches = new Batches();
+		String id = notifier.subscribe(dir, "/", batches);
+		notifier.unsubscribe(id);
+		Files.writeString(dir.resolve("a.txt"), "a");
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(List.of(), batches.get());
+	}
+
+}
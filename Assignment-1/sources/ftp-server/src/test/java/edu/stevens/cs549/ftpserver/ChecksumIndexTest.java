@@ -0,0 +1,135 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import junit.framework.TestCase;
+
+/**
+ * Digests looked up in a ChecksumIndex over a temporary directory. A file whose
+ * contents are replaced while its size and modification time are put back
+ * shows whether an answer came from the index or from reading the file.
+ */
+public class ChecksumIndexTest extends TestCase {
+
+	private static final String ALGORITHM = "SHA-256";
+
+	private static final FileTime MODIFIED = FileTime.fromMillis(1700000000000L);
+
+	private Path dir;
+
+	private Storage storage;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("checksum-test");
+		storage = new Storage.Local(dir);
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.toFile().listFiles()) {
+			f.delete();
+		}
+		dir.toFile().delete();
+	}
+
+	private Path write(String name, String contents) throws IOException {
+		Path file = dir.resolve(name);
+		Files.writeString(file, contents);
+		Files.setLastModifiedTime(file, MODIFIED);
+		return file;
+	}
+
+	private static String sha256(String contents) throws Exception {
+		return HexFormat.of()
+				.formatHex(MessageDigest.getInstance(ALGORITHM).digest(contents.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	public void testLookup() throws Exception {
+		Path file = write("a.txt", "first");
+		ChecksumIndex index = new ChecksumIndex(storage, ALGORITHM, 2);
+		assertEquals(sha256("first"), index.lookup(file));
+	}
+
+	public void testAnsweredFromIndex() throws Exception {
+		Path file = write("a.txt", "first");
+		ChecksumIndex index = new ChecksumIndex(storage, ALGORITHM, 2);
+		index.lookup(file);
+		write("a.txt", "other");
+		assertEquals(sha256("first"), index.lookup(file));
+	}
+
+	public void testModifiedFileRecomputed() throws Exception {
+		Path file = write("a.txt", "first");
+		ChecksumIndex index = new ChecksumIndex(storage, ALGORITHM, 2);
+		index.lookup(file);
+		Files.writeString(file, "second, longer");
+		assertEquals(sha256("second, longer"), index.lookup(file));
+	}
+
+	public void testInvalidate() throws Exception {
+		Path file = write("a.txt", "first");
+		ChecksumIndex index = new ChecksumIndex(storage, ALGORITHM, 2);
+		index.lookup(file);
+		write("a.txt", "other");
+		index.invalidate(file);
+		assertEquals(sha256("other"), index.lookup(file));
+	}
+
+	public void testRecord() throws Exception {
+		Path file = write("a.txt", "first");
+		ChecksumIndex index = new ChecksumIndex(storage, ALGORITHM, 2);
+		index.record(file, "recorded");
+		assertEquals("recorded", index.lookup(file));
+	}
+
+	/*
+	 * A digest computed before the file changed is not kept.
+	 */
+	public void testStaleRecordDiscarded() throws Exception {
+		Path file = write("a.txt", "first");
+		BasicFileAttributes before = storage.attributes(file);
+		Files.writeString(file, "second, longer");
+		ChecksumIndex index = new ChecksumIndex(storage, ALGORITHM, 2);
+		index.record(file, before, "stale");
+		assertEquals(sha256("second, longer"), index.lookup(file));
+	}
+
+	public void testSavedAndLoaded() throws Exception {
+		Path file = write("a.txt", "first");
+		ChecksumIndex index = new ChecksumIndex(storage, ALGORITHM, 2);
+		index.lookup(file);
+		index.save();
+		assertTrue(Files.exists(dir.resolve(ChecksumIndex.INDEX_FILE)));
+		write("a.txt", "other");
+		assertEquals(sha256("first"), new ChecksumIndex(storage, ALGORITHM, 2).lookup(file));
+	}
+
+	public void testOtherAlgorithmIgnored() throws Exception {
+		Path file = write("a.txt", "first");
+		ChecksumIndex index = new ChecksumIndex(storage, "CRC32C", 2);
+		index.lookup(file);
+		index.save();
+		write("a.txt", "other");
+		assertEquals(sha256("other"), new ChecksumIndex(storage, ALGORITHM, 2).lookup(file));
+	}
+
+	public void testNotAFile() throws Exception {
+		ChecksumIndex index = new ChecksumIndex(storage, ALGORITHM, 2);
+		try {
+			index.lookup(dir);
+			fail("Expected a directory to be refused");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Not a file"));
+		}
+	}
+
+}
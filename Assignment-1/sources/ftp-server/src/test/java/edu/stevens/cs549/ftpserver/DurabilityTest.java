@@ -0,0 +1,96 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Syncs under each durability policy, and group commits requested from many
+ * threads at once.
+ */
+public class DurabilityTest extends TestCase {
+
+	private Path dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("durability-test");
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.toFile().listFiles()) {
+			f.delete();
+		}
+		dir.toFile().delete();
+	}
+
+	private FileChannel written(String name) throws IOException {
+		FileChannel channel = FileChannel.open(dir.resolve(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.write(ByteBuffer.wrap(name.getBytes()));
+		return channel;
+	}
+
+	public void testPolicies() throws IOException {
+		for (Durability.Policy policy : Durability.Policy.values()) {
+			Durability durability = new Durability(policy, 1);
+			try (FileChannel channel = written(policy.name())) {
+				durability.syncFile(channel);
+			}
+			durability.syncDirectory(dir);
+		}
+	}
+
+	public void testGroupCommit() throws Exception {
+		Durability durability = new Durability(Durability.Policy.GROUP, 20);
+		List<Thread> threads = new ArrayList<Thread>();
+		List<Throwable> failures = new ArrayList<Throwable>();
+		for (int i = 0; i < 16; i++) {
+			String name = "file" + i;
+			Thread t = new Thread(() -> {
+				try (FileChannel channel = written(name)) {
+					durability.syncFile(channel);
+					durability.syncDirectory(dir);
+				} catch (IOException e) {
+					synchronized (failures) {
+						failures.add(e);
+					}
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join(30000);
+			assertFalse(t.isAlive());
+		}
+		assertEquals(List.of(), failures);
+	}
+
+	/*
+	 * A force that fails is reported to its own upload only.
+	 */
+	public void testGroupCommitFailure() throws Exception {
+		Durability durability = new Durability(Durability.Policy.GROUP, 20);
+		FileChannel closed = written("closed");
+		closed.close();
+		try {
+			durability.syncFile(closed);
+			fail("Expected the sync to fail");
+		} catch (IOException e) {
+			assertEquals("Sync failed", e.getMessage());
+		}
+		try (FileChannel channel = written("open")) {
+			durability.syncFile(channel);
+		}
+	}
+
+}
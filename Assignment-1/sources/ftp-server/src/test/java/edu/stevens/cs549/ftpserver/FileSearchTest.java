@@ -0,0 +1,112 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.stevens.cs549.ftpinterface.FileInfo;
+import edu.stevens.cs549.ftpinterface.FindQuery;
+import junit.framework.TestCase;
+
+/**
+ * Searches of a tree in memory.
+ */
+public class FileSearchTest extends TestCase {
+
+	private Storage storage;
+
+	private Path root;
+
+	private ForkJoinPool pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		storage = new Storage.Memory("search-test", 0);
+		root = storage.getRoot();
+		pool = new ForkJoinPool(2);
+		for (String dir : new String[] { "src/a", "src/b/c", "doc" }) {
+			Files.createDirectories(root.resolve(dir));
+		}
+		for (String file : new String[] { "Top.java", "src/a/A.java", "src/b/c/C.java", "src/b/notes.txt",
+				"doc/D.java" }) {
+			Files.writeString(root.resolve(file), file);
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		pool.shutdownNow();
+	}
+
+	private List<String> find(String glob) throws InterruptedException {
+		FileSearch search = new FileSearch(storage, root, new FindQuery(glob));
+		search.start(pool);
+		List<String> names = new ArrayList<String>();
+		for (FileInfo[] page = search.nextPage(2); page.length > 0; page = search.nextPage(2)) {
+			for (FileInfo info : page) {
+				names.add(info.getName());
+			}
+		}
+		assertTrue(search.isFinished());
+		Collections.sort(names);
+		return names;
+	}
+
+	public void testNameGlob() throws Exception {
+		assertEquals(List.of("Top.java", "doc/D.java", "src/a/A.java", "src/b/c/C.java"), find("*.java"));
+	}
+
+	public void testPathGlob() throws Exception {
+		assertEquals(List.of("src/a/A.java", "src/b/c/C.java"), find("src/**.java"));
+		assertEquals(List.of("src/b/notes.txt"), find("src/*/*.txt"));
+		assertEquals(List.of(), find("doc/*.txt"));
+	}
+
+	public void testAnyName() throws Exception {
+		assertEquals(5, find(null).size());
+	}
+
+	/*
+	 * The walk stops at a full queue until pages are read.
+	 */
+	public void testQueueBounded() throws Exception {
+		Path many = root.resolve("many");
+		Files.createDirectories(many);
+		int files = FileSearch.MAX_QUEUED + 500;
+		for (int i = 0; i < files; i++) {
+			Files.writeString(many.resolve("f" + i), "");
+		}
+		FileSearch search = new FileSearch(storage, many, new FindQuery(null));
+		search.start(pool);
+		Thread.sleep(500);
+		assertFalse(search.isFinished());
+		int found = 0;
+		for (FileInfo[] page = search.nextPage(Server.MAX_FIND_PAGE); page.length > 0; page = search
+				.nextPage(Server.MAX_FIND_PAGE)) {
+			found += page.length;
+		}
+		assertEquals(files, found);
+	}
+
+	public void testCancel() throws Exception {
+		Path many = root.resolve("many");
+		Files.createDirectories(many);
+		for (int i = 0; i < FileSearch.MAX_QUEUED + 1; i++) {
+			Files.writeString(many.resolve("f" + i), "");
+		}
+		FileSearch search = new FileSearch(storage, many, new FindQuery(null));
+		search.start(pool);
+		Thread.sleep(500);
+		search.cancel();
+		assertTrue(search.isCancelled());
+		search.nextPage(Server.MAX_FIND_PAGE);
+		for (int i = 0; i < FileSearch.MAX_QUEUED && search.nextPage(Server.MAX_FIND_PAGE).length > 0; i++) {
+			;
+		}
+		assertTrue(search.isFinished());
+	}
+
+}
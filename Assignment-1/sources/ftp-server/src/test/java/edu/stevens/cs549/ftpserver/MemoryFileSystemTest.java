@@ -0,0 +1,205 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Files and directories in a MemoryFileSystem, used through java.nio.file as
+ * the server uses them.
+ */
+public class MemoryFileSystemTest extends TestCase {
+
+	private static final long CAPACITY = 4 * MemoryFileSystem.BLOCK_SIZE;
+
+	private MemoryFileSystem fs;
+
+	private Path root;
+
+	@Override
+	protected void setUp() {
+		fs = new MemoryFileSystem("test", CAPACITY);
+		root = fs.getPath("/");
+	}
+
+	private FileChannel open(Path file, StandardOpenOption... options) throws IOException {
+		return FileChannel.open(file, options);
+	}
+
+	public void testReadWrite() throws IOException {
+		Path file = root.resolve("a.txt");
+		Files.writeString(file, "hello");
+		assertEquals("hello", Files.readString(file));
+		Files.writeString(file, " world", StandardOpenOption.APPEND);
+		assertEquals("hello world", Files.readString(file));
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		assertTrue(attrs.isRegularFile());
+		assertEquals(11, attrs.size());
+	}
+
+	public void testBlocksAndHoles() throws IOException {
+		Path file = root.resolve("sparse.bin");
+		try (FileChannel channel = open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			long position = MemoryFileSystem.BLOCK_SIZE + 10;
+			channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), position);
+			assertEquals(position + 3, channel.size());
+			ByteBuffer hole = ByteBuffer.allocate(10);
+			channel.read(hole, 0);
+			assertTrue(Arrays.equals(new byte[10], hole.array()));
+			ByteBuffer data = ByteBuffer.allocate(3);
+			channel.read(data, position);
+			assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, data.array()));
+			channel.truncate(position);
+			assertEquals(position, channel.size());
+			assertEquals(-1, channel.read(ByteBuffer.allocate(1), position));
+		}
+	}
+
+	public void testDirectories() throws IOException {
+		Files.createDirectories(root.resolve("a/b"));
+		Files.writeString(root.resolve("a/z.txt"), "z");
+		Files.writeString(root.resolve("a/m.txt"), "m");
+		try (Stream<Path> listing = Files.list(root.resolve("a"))) {
+			assertEquals(List.of("b", "m.txt", "z.txt"),
+					listing.map(p -> p.getFileName().toString()).collect(Collectors.toList()));
+		}
+		assertTrue(Files.isDirectory(root.resolve("a/b")));
+		try {
+			Files.delete(root.resolve("a"));
+			fail("Expected a non-empty directory to stay");
+		} catch (DirectoryNotEmptyException e) {
+			;
+		}
+		try {
+			Files.writeString(root.resolve("missing/file.txt"), "x");
+			fail("Expected a missing parent to be reported");
+		} catch (NoSuchFileException e) {
+			;
+		}
+	}
+
+	public void testMoveAndCopy() throws IOException {
+		Path a = root.resolve("a.txt");
+		Path b = root.resolve("b.txt");
+		Files.writeString(a, "first");
+		Files.writeString(b, "second");
+		try {
+			Files.move(a, b);
+			fail("Expected the target to be kept");
+		} catch (FileAlreadyExistsException e) {
+			;
+		}
+		Files.move(a, b, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		assertFalse(Files.exists(a));
+		assertEquals("first", Files.readString(b));
+		Files.copy(b, a);
+		assertEquals("first", Files.readString(a));
+		assertEquals("first", Files.readString(b));
+	}
+
+	/*
+	 * Writes past the capacity fail, and deleting a file gives its space back.
+	 */
+	public void testCapacity() throws IOException {
+		Path big = root.resolve("big.bin");
+		byte[] block = new byte[MemoryFileSystem.BLOCK_SIZE];
+		try (FileChannel channel = open(big, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			for (int i = 0; i < CAPACITY / block.length; i++) {
+				channel.write(ByteBuffer.wrap(block));
+			}
+			try {
+				channel.write(ByteBuffer.wrap(block));
+				fail("Expected the memory storage to be full");
+			} catch (FileSystemException e) {
+				assertTrue(e.getMessage().contains("No space left"));
+			}
+		}
+		Files.delete(big);
+		Files.write(root.resolve("again.bin"), block);
+	}
+
+	public void testMapRefused() throws IOException {
+		Path file = root.resolve("a.txt");
+		Files.writeString(file, "hello");
+		try (FileChannel channel = open(file, StandardOpenOption.READ)) {
+			channel.map(FileChannel.MapMode.READ_ONLY, 0, 5);
+			fail("Expected mapping to be refused");
+		} catch (IOException e) {
+			assertEquals("Memory files cannot be mapped", e.getMessage());
+		}
+	}
+
+	public void testLocks() throws Exception {
+		Path file = root.resolve("locked.txt");
+		Files.writeString(file, "contents");
+		try (FileChannel first = open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				FileChannel second = open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			FileLock shared = first.tryLock(0, Long.MAX_VALUE, true);
+			assertNotNull(shared);
+			FileLock alsoShared = second.tryLock(0, Long.MAX_VALUE, true);
+			assertNotNull(alsoShared);
+			assertNull(second.tryLock(0, 4, false));
+			shared.release();
+			alsoShared.release();
+			assertFalse(shared.isValid());
+
+			FileLock exclusive = first.lock(0, 4, false);
+			assertNotNull(second.tryLock(4, 4, false));
+			try {
+				first.tryLock(2, 4, false);
+				fail("Expected an overlapping lock on one channel to be refused");
+			} catch (OverlappingFileLockException e) {
+				;
+			}
+			CompletableFuture<FileLock> waiting = CompletableFuture.supplyAsync(() -> {
+				try {
+					return second.lock(0, 4, false);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			try {
+				waiting.get(200, TimeUnit.MILLISECONDS);
+				fail("Expected the lock to wait");
+			} catch (TimeoutException e) {
+				;
+			}
+			exclusive.release();
+			assertTrue(waiting.get(5, TimeUnit.SECONDS).isValid());
+		}
+	}
+
+	public void testCloseReleasesLocks() throws IOException {
+		Path file = root.resolve("locked.txt");
+		Files.writeString(file, "contents");
+		FileChannel first = open(file, StandardOpenOption.WRITE);
+		FileLock lock = first.lock();
+		first.close();
+		assertFalse(lock.isValid());
+		try (FileChannel second = open(file, StandardOpenOption.WRITE)) {
+			assertNotNull(second.tryLock());
+		}
+	}
+
+}
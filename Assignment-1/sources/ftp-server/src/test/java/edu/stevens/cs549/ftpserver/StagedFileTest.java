@@ -0,0 +1,192 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Puts and appends staged next to their target in a temporary directory.
+ */
+public class StagedFileTest extends TestCase {
+
+	private Path dir;
+
+	private Storage storage;
+
+	private Durability durability;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("staged-test");
+		storage = new Storage.Local(dir);
+		durability = new Durability(Durability.Policy.NONE, 0);
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.toFile().listFiles()) {
+			f.delete();
+		}
+		dir.toFile().delete();
+	}
+
+	private static void write(StagedFile staged, String contents) throws IOException {
+		OutputStream out = staged.getOutputStream();
+		out.write(contents.getBytes());
+		out.close();
+	}
+
+	/*
+	 * The directory holds just these files: no staging file is left behind.
+	 */
+	private void assertOnly(String... names) {
+		String[] found = dir.toFile().list();
+		Arrays.sort(found);
+		assertEquals(Arrays.asList(names), Arrays.asList(found));
+	}
+
+	public void testPut() throws IOException {
+		Path target = dir.resolve("file.txt");
+		Files.writeString(target, "old");
+		StagedFile staged = new StagedFile(target, durability);
+		write(staged, "new contents");
+		assertEquals("old", Files.readString(target));
+		staged.commit();
+		assertEquals("new contents", Files.readString(target));
+		assertOnly("file.txt");
+	}
+
+	public void testAbort() throws IOException {
+		StagedFile staged = new StagedFile(dir.resolve("file.txt"), durability);
+		write(staged, "discarded");
+		staged.abort();
+		assertOnly();
+	}
+
+	public void testAppend() throws IOException {
+		Path target = dir.resolve("log.txt");
+		Files.writeString(target, "one,");
+		StagedFile staged = StagedFile.append(target, durability, storage, 4);
+		write(staged, "two");
+		assertEquals("one,", Files.readString(target));
+		staged.commit();
+		assertEquals("one,two", Files.readString(target));
+		assertOnly("log.txt");
+	}
+
+	public void testAppendCreates() throws IOException {
+		Path target = dir.resolve("log.txt");
+		StagedFile staged = StagedFile.append(target, durability, storage, -1);
+		write(staged, "first");
+		staged.commit();
+		assertEquals("first", Files.readString(target));
+	}
+
+	public void testAppendWrongSize() throws IOException {
+		Path target = dir.resolve("log.txt");
+		Files.writeString(target, "one,");
+		StagedFile staged = StagedFile.append(target, durability, storage, 10);
+		write(staged, "two");
+		try {
+			staged.commit();
+			fail("Expected the append to be refused");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Not appended"));
+		}
+		assertEquals("one,", Files.readString(target));
+		assertOnly("log.txt");
+	}
+
+	/*
+	 * A durability policy that fails every sync, after the bytes are appended.
+	 */
+	private static class FailingDurability extends Durability {
+		FailingDurability() {
+			super(Policy.NONE, 0);
+		}
+
+		@Override
+		void syncFile(FileChannel channel) throws IOException {
+			throw new IOException("Sync failed");
+		}
+	}
+
+	public void testAppendFailureTruncates() throws IOException {
+		Path target = dir.resolve("log.txt");
+		Files.writeString(target, "one,");
+		StagedFile staged = StagedFile.append(target, new FailingDurability(), storage, 4);
+		write(staged, "two");
+		try {
+			staged.commit();
+			fail("Expected the append to fail");
+		} catch (IOException e) {
+			assertEquals("Sync failed", e.getMessage());
+		}
+		assertEquals("one,", Files.readString(target));
+		assertOnly("log.txt");
+	}
+
+	public void testAppendFailureRemovesNewTarget() throws IOException {
+		StagedFile staged = StagedFile.append(dir.resolve("log.txt"), new FailingDurability(), storage, -1);
+		write(staged, "two");
+		try {
+			staged.commit();
+			fail("Expected the append to fail");
+		} catch (IOException e) {
+			;
+		}
+		assertOnly();
+	}
+
+	/*
+	 * Appends committed at once from many threads are each added whole.
+	 */
+	public void testConcurrentAppends() throws Exception {
+		Path target = dir.resolve("log.txt");
+		Files.writeString(target, "");
+		int appends = 8;
+		int length = 10000;
+		CountDownLatch ready = new CountDownLatch(appends);
+		List<Thread> threads = new ArrayList<Thread>();
+		List<Throwable> failures = new ArrayList<Throwable>();
+		for (int i = 0; i < appends; i++) {
+			char c = (char) ('a' + i);
+			Thread t = new Thread(() -> {
+				try {
+					StagedFile staged = StagedFile.append(target, durability, storage, -1);
+					write(staged, String.valueOf(c).repeat(length));
+					ready.countDown();
+					ready.await();
+					staged.commit();
+				} catch (Exception e) {
+					synchronized (failures) {
+						failures.add(e);
+					}
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join(30000);
+		}
+		assertEquals(List.of(), failures);
+		String contents = Files.readString(target);
+		assertEquals(appends * length, contents.length());
+		for (int i = 0; i < appends; i++) {
+			char c = contents.charAt(i * length);
+			assertEquals(String.valueOf(c).repeat(length), contents.substring(i * length, (i + 1) * length));
+		}
+		assertOnly("log.txt");
+	}
+
+}
@@ -0,0 +1,96 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Streams shaped by token buckets, alone and through the session and global
+ * buckets of Bandwidth. Rates are chosen so that a limited transfer takes
+ * about half a second, and the bounds checked are loose.
+ */
+public class TokenBucketTest extends TestCase {
+
+	private static final long RATE = 100000;
+
+	/*
+	 * Bytes that take about half a second at RATE, past the initial burst.
+	 */
+	private static final int BYTES = 50000;
+
+	private static long millisToWrite(OutputStream out, int bytes) throws IOException {
+		long start = System.nanoTime();
+		out.write(new byte[bytes]);
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	public void testNoLimit() throws IOException {
+		TokenBucket bucket = new TokenBucket(() -> 0);
+		assertTrue(millisToWrite(TokenBucket.shape(OutputStream.nullOutputStream(), bucket), 10 * BYTES) < 200);
+	}
+
+	public void testLimit() throws IOException {
+		TokenBucket bucket = new TokenBucket(() -> RATE);
+		long millis = millisToWrite(TokenBucket.shape(OutputStream.nullOutputStream(), bucket), BYTES);
+		assertTrue("took " + millis + " ms", millis >= 350 && millis < 2000);
+	}
+
+	public void testRateChanges() throws IOException {
+		AtomicLong rate = new AtomicLong(RATE);
+		OutputStream out = TokenBucket.shape(OutputStream.nullOutputStream(), new TokenBucket(rate::get));
+		assertTrue(millisToWrite(out, BYTES) >= 350);
+		rate.set(0);
+		assertTrue(millisToWrite(out, 10 * BYTES) < 200);
+	}
+
+	public void testShapedContents() throws IOException {
+		byte[] contents = new byte[3 * TokenBucket.MAX_REQUEST + 5];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) i;
+		}
+		TokenBucket bucket = new TokenBucket(() -> 10 * RATE);
+		InputStream in = TokenBucket.shape(new ByteArrayInputStream(contents), bucket);
+		assertTrue(in.read(new byte[contents.length]) <= TokenBucket.MAX_REQUEST);
+		in = TokenBucket.shape(new ByteArrayInputStream(contents), bucket);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		in.transferTo(TokenBucket.shape(received, bucket));
+		assertTrue(Arrays.equals(contents, received.toByteArray()));
+	}
+
+	public void testSessionLimit() throws IOException {
+		Bandwidth bandwidth = new Bandwidth(0, RATE);
+		OutputStream out = bandwidth.shape(OutputStream.nullOutputStream(), bandwidth.newSessionBucket());
+		assertTrue(millisToWrite(out, BYTES) >= 350);
+		bandwidth.setSessionBytesPerSecond(0);
+		assertTrue(millisToWrite(out, 10 * BYTES) < 200);
+	}
+
+	/*
+	 * Two sessions share the global rate.
+	 */
+	public void testGlobalLimit() throws Exception {
+		Bandwidth bandwidth = new Bandwidth(RATE, 0);
+		OutputStream first = bandwidth.shape(OutputStream.nullOutputStream(), bandwidth.newSessionBucket());
+		OutputStream second = bandwidth.shape(OutputStream.nullOutputStream(), bandwidth.newSessionBucket());
+		long start = System.nanoTime();
+		Thread other = new Thread(() -> {
+			try {
+				second.write(new byte[BYTES / 2]);
+			} catch (IOException e) {
+				;
+			}
+		});
+		other.start();
+		first.write(new byte[BYTES / 2]);
+		other.join();
+		long millis = (System.nanoTime() - start) / 1000000;
+		assertTrue("took " + millis + " ms", millis >= 350 && millis < 2000);
+	}
+
+}
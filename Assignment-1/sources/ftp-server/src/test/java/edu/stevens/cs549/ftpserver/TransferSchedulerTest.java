@@ -0,0 +1,129 @@
+package edu.stevens.cs549.ftpserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import edu.stevens.cs549.ftpinterface.TransferPriority;
+import junit.framework.TestCase;
+
+/**
+ * Transfers contending for the slots of a TransferScheduler, through streams
+ * slow enough that requests queue.
+ */
+public class TransferSchedulerTest extends TestCase {
+
+	private static final int CHUNK = 8192;
+
+	/*
+	 * A data connection that takes a millisecond for each write.
+	 */
+	private static class SlowSink extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	public void testClassify() {
+		TransferScheduler scheduler = new TransferScheduler(1, 100, 1000);
+		assertEquals(TransferPriority.INTERACTIVE, scheduler.classify(100));
+		assertEquals(TransferPriority.NORMAL, scheduler.classify(101));
+		assertEquals(TransferPriority.NORMAL, scheduler.classify(1000));
+		assertEquals(TransferPriority.BULK, scheduler.classify(1001));
+	}
+
+	/*
+	 * With the slot held, an interactive request made after a bulk one is
+	 * granted first.
+	 */
+	public void testWaitingOrder() throws Exception {
+		TransferScheduler scheduler = new TransferScheduler(1, 0, 0);
+		TransferScheduler.Flow holder = scheduler.open(TransferPriority.NORMAL);
+		holder.acquire(CHUNK);
+		List<TransferPriority> granted = Collections.synchronizedList(new ArrayList<TransferPriority>());
+		Thread bulk = waiter(scheduler, TransferPriority.BULK, granted);
+		Thread interactive = waiter(scheduler, TransferPriority.INTERACTIVE, granted);
+		holder.release();
+		bulk.join(5000);
+		interactive.join(5000);
+		assertEquals(List.of(TransferPriority.INTERACTIVE, TransferPriority.BULK), granted);
+	}
+
+	private static Thread waiter(TransferScheduler scheduler, TransferPriority priority, List<TransferPriority> granted)
+			throws InterruptedException {
+		TransferScheduler.Flow flow = scheduler.open(priority);
+		Thread t = new Thread(() -> {
+			try {
+				flow.acquire(CHUNK);
+				granted.add(priority);
+				flow.release();
+			} catch (InterruptedIOException e) {
+				;
+			}
+		});
+		t.start();
+		while (t.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		return t;
+	}
+
+	/*
+	 * An interactive transfer started while bulk transfers hold the slot
+	 * finishes before any of them, though it writes more than each: taking
+	 * turns would finish it last.
+	 */
+	public void testInteractiveFinishesFirst() throws Exception {
+		TransferScheduler scheduler = new TransferScheduler(1, 0, 0);
+		int bulkTransfers = 3;
+		CountDownLatch started = new CountDownLatch(bulkTransfers);
+		List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < bulkTransfers; i++) {
+			threads.add(transfer(scheduler, TransferPriority.BULK, 100, "bulk", started, finished));
+		}
+		started.await();
+		threads.add(transfer(scheduler, TransferPriority.INTERACTIVE, 150, "interactive", null, finished));
+		for (Thread t : threads) {
+			t.join(30000);
+		}
+		assertEquals(bulkTransfers + 1, finished.size());
+		assertEquals("interactive", finished.get(0));
+	}
+
+	private static Thread transfer(TransferScheduler scheduler, TransferPriority priority, int chunks, String name,
+			CountDownLatch started, List<String> finished) {
+		OutputStream out = TransferScheduler.schedule(new SlowSink(), scheduler.open(priority));
+		Thread t = new Thread(() -> {
+			try {
+				byte[] buf = new byte[CHUNK];
+				for (int i = 0; i < chunks; i++) {
+					out.write(buf);
+					if (i == 0 && started != null) {
+						started.countDown();
+					}
+				}
+				finished.add(name);
+			} catch (IOException e) {
+				;
+			}
+		});
+		t.start();
+		return t;
+	}
+
+}